@@ -0,0 +1,129 @@
+package server;
+
+import interfaces.Car;
+import interfaces.DealerException;
+import interfaces.DealerInterface;
+import interfaces.Receipt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JMH benchmarks of the six core Dealer operations, calling a Dealer directly and through a local RMI registry,
+ * on data sets of a thousand, a hundred thousand and a million cars and receipts. Every run reports the
+ * throughput and the latency percentiles, the gc profiler adds the allocation rate.
+ * <p>
+ * Usage: {@code mvn -B package} then {@code java -jar jmh/target/benchmarks.jar -prof gc}, pick the data sets
+ * and transports with {@code -p size=1000,100000 -p mode=local}. {@link server.Benchmark} measures the same
+ * operations without JMH and also covers the binary transport.
+ * <p>
+ * The data set is generated like {@link server.Benchmark}'s in a temporary directory that is deleted afterwards.
+ * The server settings (-Ddealer.fsync, -Ddealer.storage, ...) apply as usual when passed with {@code -jvmArgs}.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class DealerBenchmark {
+    private static final int RMI_PORT = 4445;
+
+    @Param({"1000", "100000", "1000000"})
+    int size;
+
+    @Param({"local", "rmi"})
+    String mode;
+
+    private Path directory;
+    private DataStore store;
+    private DealerInterface exported;
+    private Registry registry;
+    private DealerInterface dealer;
+    private int names;
+    // Keys of the records created while measuring
+    private final AtomicLong created = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("dealer-jmh");
+        store = server.Benchmark.openStore(directory);
+        server.Benchmark.populate(store, size);
+        names = server.Benchmark.names(size);
+        Dealer local = new Dealer(store);
+        if (mode.equals("rmi")) {
+            exported = local.admission.wrap(local);
+            registry = LocateRegistry.createRegistry(RMI_PORT);
+            registry.rebind("Dealer", UnicastRemoteObject.exportObject(exported, 0));
+            dealer = (DealerInterface) LocateRegistry.getRegistry("localhost", RMI_PORT).lookup("Dealer");
+        } else {
+            dealer = local;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (registry != null) {
+            UnicastRemoteObject.unexportObject(exported, true);
+            UnicastRemoteObject.unexportObject(registry, true);
+        }
+        store.close();
+        server.Benchmark.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public Car findCarBySerialNumber() throws RemoteException {
+        return dealer.findCarBySerialNumber("C" + ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    public List<Car> findCarsByBrand() throws RemoteException {
+        return dealer.findCarsByBrand("Brand " + ThreadLocalRandom.current().nextInt(names));
+    }
+
+    @Benchmark
+    public Receipt findReceiptById() throws RemoteException {
+        return dealer.findReceiptById("R" + ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    public List<Receipt> getReceiptsByVendor() throws RemoteException {
+        return dealer.getReceiptsByVendor("Vendor " + ThreadLocalRandom.current().nextInt(names));
+    }
+
+    /**
+     * New records get their own brand and vendor so the lists read above keep their size.
+     */
+    @Benchmark
+    public void createCar() throws RemoteException, DealerException {
+        dealer.createCar("N" + created.incrementAndGet(), "New", "Model", "Red", 2020, 20_000, 1200);
+    }
+
+    @Benchmark
+    public void createReceipt() throws RemoteException, DealerException {
+        dealer.createReceipt("N" + created.incrementAndGet(), "New", "C" + ThreadLocalRandom.current().nextInt(size),
+                new Date());
+    }
+}
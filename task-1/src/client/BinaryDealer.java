@@ -0,0 +1,401 @@
+package client;
+
+import interfaces.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of the binary transport, see {@link BinaryProtocol}. It implements the same interface as the
+ * RMI stub so the two can be swapped.
+ * <p>
+ * All the calls share one connection. Every thread writes its request as soon as it is made and a reader
+ * thread hands each response to the thread waiting for it, so calls from several threads are pipelined
+ * instead of taking turns. The remote iterators are emulated with the paged queries.
+ */
+public class BinaryDealer implements DealerInterface, AutoCloseable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final Object writeLock = new Object();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    // Set once the connection is lost, later calls fail right away
+    private volatile IOException failure;
+
+    /**
+     * Connects to a server.
+     * @param host Host name of the server
+     * @param port Port of its binary transport
+     */
+    public BinaryDealer(String host, int port) throws RemoteException {
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            throw new ConnectException("Could not connect to " + host + ":" + port, e);
+        }
+        Thread reader = new Thread(this::readResponses, "binary-dealer-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readResponses() {
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            while (true) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                in.flip();
+                int needed = 0;
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < BinaryProtocol.HEADER_SIZE - 4 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid frame length " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        needed = 4 + length;
+                        break;
+                    }
+                    int start = in.position() + 4;
+                    ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOfRange(in.array(), start, start + length));
+                    in.position(start + length);
+                    CompletableFuture<ByteBuffer> call = pending.remove(frame.getInt());
+                    if (call != null) {
+                        call.complete(frame);
+                    }
+                }
+                in.compact();
+                if (needed > in.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(needed);
+                    in.flip();
+                    larger.put(in);
+                    in = larger;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            for (Integer requestId : pending.keySet()) {
+                CompletableFuture<ByteBuffer> call = pending.remove(requestId);
+                if (call != null) {
+                    call.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     * @param request Request frame
+     * @param requestId Id the request was built with
+     * @return The body of the response
+     * @throws RemoteException The exception thrown by the call on the server, or the failure of the connection
+     */
+    private ByteBuffer call(BinaryProtocol.FrameWriter request, int requestId) throws RemoteException {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        // The reader may have failed the pending calls before this one was added
+        if (failure != null) {
+            pending.remove(requestId);
+            throw new ConnectException("Connection to the server lost", failure);
+        }
+        ByteBuffer frame = request.finish();
+        try {
+            synchronized (writeLock) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            throw new ConnectException("Could not send the request", e);
+        }
+        ByteBuffer body;
+        try {
+            body = response.get();
+        } catch (InterruptedException e) {
+            pending.remove(requestId);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the server", e);
+        } catch (ExecutionException e) {
+            throw new ConnectException("Connection to the server lost", (Exception) e.getCause());
+        }
+        if (body.get() == BinaryProtocol.OK) {
+            return body;
+        }
+        Object thrown;
+        try {
+            thrown = BinaryProtocol.readObject(body, null);
+        } catch (IOException e) {
+            throw new UnmarshalException("Could not read the error of the server", e);
+        }
+        if (thrown instanceof RemoteException) {
+            throw (RemoteException) thrown;
+        }
+        if (thrown instanceof RuntimeException) {
+            throw (RuntimeException) thrown;
+        }
+        // Checked exceptions of the dealer, such as a DealerException, are unwrapped by the calls declaring them
+        throw new RemoteException("Server exception", (Exception) thrown);
+    }
+
+    private BinaryProtocol.FrameWriter request(int requestId, byte operation, String key) {
+        BinaryProtocol.FrameWriter request = new BinaryProtocol.FrameWriter(requestId, operation);
+        request.writeString(key);
+        return request;
+    }
+
+    /**
+     * Calls a method that has no binary operation of its own with Java serialization.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T invoke(String name, Class<?>[] parameterTypes, Object... arguments) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        BinaryProtocol.FrameWriter request = request(requestId, BinaryProtocol.INVOKE,
+                BinaryProtocol.signature(name, parameterTypes));
+        try {
+            request.writeObject(arguments);
+        } catch (IOException e) {
+            throw new MarshalException("Could not serialize the arguments of " + name, e);
+        }
+        ByteBuffer body = call(request, requestId);
+        try {
+            return (T) BinaryProtocol.readObject(body, null);
+        } catch (IOException e) {
+            throw new UnmarshalException("Could not read the result of " + name, e);
+        }
+    }
+
+    /**
+     * Wraps a decoding failure of a response, which means client and server don't agree on the protocol.
+     */
+    private static UnmarshalException unmarshal(IOException e) {
+        return new UnmarshalException("Malformed response", e);
+    }
+
+    @Override
+    public Car findCarBySerialNumber(String serialNumber) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        ByteBuffer body = call(request(requestId, BinaryProtocol.FIND_CAR, serialNumber), requestId);
+        try {
+            return BinaryProtocol.readCar(body);
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public List<Car> findCarsByBrand(String brand) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        ByteBuffer body = call(request(requestId, BinaryProtocol.FIND_CARS_BY_BRAND, brand), requestId);
+        try {
+            return BinaryProtocol.readCars(body);
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws DuplicateKeyException, RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        BinaryProtocol.FrameWriter request = new BinaryProtocol.FrameWriter(requestId, BinaryProtocol.CREATE_CAR);
+        request.writeCar(new Car(serialNumber, brand, model, color, year, price, weight));
+        try {
+            call(request, requestId);
+        } catch (RemoteException e) {
+            if (e.getCause() instanceof DuplicateKeyException) {
+                throw (DuplicateKeyException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Receipt findReceiptById(String id) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        ByteBuffer body = call(request(requestId, BinaryProtocol.FIND_RECEIPT, id), requestId);
+        try {
+            return BinaryProtocol.readReceipt(body);
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public List<Receipt> getReceiptsByVendor(String vendor) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        ByteBuffer body = call(request(requestId, BinaryProtocol.RECEIPTS_BY_VENDOR, vendor), requestId);
+        try {
+            return BinaryProtocol.readReceipts(body);
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws DealerException, RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        BinaryProtocol.FrameWriter request = new BinaryProtocol.FrameWriter(requestId, BinaryProtocol.CREATE_RECEIPT);
+        request.writeReceipt(new Receipt(ID, vendor, carSerialNumber, date));
+        try {
+            call(request, requestId);
+        } catch (RemoteException e) {
+            if (e.getCause() instanceof DealerException) {
+                throw (DealerException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public List<InsertStatus> createCars(List<Car> cars) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        BinaryProtocol.FrameWriter request = new BinaryProtocol.FrameWriter(requestId, BinaryProtocol.CREATE_CARS);
+        request.writeCars(cars);
+        try {
+            return BinaryProtocol.readStatuses(call(request, requestId));
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public List<InsertStatus> createReceipts(List<Receipt> receipts) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        BinaryProtocol.FrameWriter request = new BinaryProtocol.FrameWriter(requestId, BinaryProtocol.CREATE_RECEIPTS);
+        request.writeReceipts(receipts);
+        try {
+            return BinaryProtocol.readStatuses(call(request, requestId));
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public long getBrandVersion(String brand) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        ByteBuffer body = call(request(requestId, BinaryProtocol.BRAND_VERSION, brand), requestId);
+        try {
+            return BinaryProtocol.readLong(body);
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public long getVendorVersion(String vendor) throws RemoteException {
+        int requestId = nextRequestId.incrementAndGet();
+        ByteBuffer body = call(request(requestId, BinaryProtocol.VENDOR_VERSION, vendor), requestId);
+        try {
+            return BinaryProtocol.readLong(body);
+        } catch (IOException e) {
+            throw unmarshal(e);
+        }
+    }
+
+    @Override
+    public Map<String, Car> findCarsBySerialNumbers(Collection<String> serialNumbers) throws RemoteException {
+        return invoke("findCarsBySerialNumbers", new Class<?>[]{Collection.class}, serialNumbers);
+    }
+
+    @Override
+    public Map<String, Receipt> findReceiptsByIds(Collection<String> ids) throws RemoteException {
+        return invoke("findReceiptsByIds", new Class<?>[]{Collection.class}, ids);
+    }
+
+    @Override
+    public Page<Car> findCarsByBrand(String brand, int limit, String continuationToken) throws RemoteException {
+        return invoke("findCarsByBrand", new Class<?>[]{String.class, int.class, String.class}, brand, limit, continuationToken);
+    }
+
+    @Override
+    public Page<Receipt> getReceiptsByVendor(String vendor, int limit, String continuationToken) throws RemoteException {
+        return invoke("getReceiptsByVendor", new Class<?>[]{String.class, int.class, String.class}, vendor, limit, continuationToken);
+    }
+
+    @Override
+    public RemoteIterator<Car> iterateCarsByBrand(String brand) {
+        return new PagingIterator<>((limit, token) -> findCarsByBrand(brand, limit, token));
+    }
+
+    @Override
+    public RemoteIterator<Receipt> iterateReceiptsByVendor(String vendor) {
+        return new PagingIterator<>((limit, token) -> getReceiptsByVendor(vendor, limit, token));
+    }
+
+    @Override
+    public Page<Car> getCars(int limit, String continuationToken) throws RemoteException {
+        return invoke("getCars", new Class<?>[]{int.class, String.class}, limit, continuationToken);
+    }
+
+    @Override
+    public Page<Receipt> getReceipts(int limit, String continuationToken) throws RemoteException {
+        return invoke("getReceipts", new Class<?>[]{int.class, String.class}, limit, continuationToken);
+    }
+
+    @Override
+    public List<Car> findCars(CarQuery query) throws RemoteException {
+        return invoke("findCars", new Class<?>[]{CarQuery.class}, query);
+    }
+
+    @Override
+    public List<Receipt> findReceipts(ReceiptQuery query) throws RemoteException {
+        return invoke("findReceipts", new Class<?>[]{ReceiptQuery.class}, query);
+    }
+
+    @Override
+    public ChangeBatch getChanges(ChangeFilter filter, long afterSequence, int maxRecords, long waitMillis) throws RemoteException {
+        return invoke("getChanges", new Class<?>[]{ChangeFilter.class, long.class, int.class, long.class},
+                filter, afterSequence, maxRecords, waitMillis);
+    }
+
+    /**
+     * The server can't call back over the binary transport, the subscription polls {@link #getChanges} instead.
+     */
+    @Override
+    public Subscription subscribe(ChangeFilter filter, long afterSequence, ChangeListener listener) throws RemoteException {
+        return new PollingSubscription(this, filter, afterSequence, listener).start();
+    }
+
+    @Override
+    public List<SearchHit> search(SearchQuery query) throws RemoteException {
+        return invoke("search", new Class<?>[]{SearchQuery.class}, query);
+    }
+
+    @Override
+    public List<SalesTotal> getRevenueByVendor() throws RemoteException {
+        return invoke("getRevenueByVendor", new Class<?>[0]);
+    }
+
+    @Override
+    public Map<String, List<SalesTotal>> getSalesByBrandPerMonth() throws RemoteException {
+        return invoke("getSalesByBrandPerMonth", new Class<?>[0]);
+    }
+
+    @Override
+    public List<SalesTotal> getTopModels(int n) throws RemoteException {
+        return invoke("getTopModels", new Class<?>[]{int.class}, n);
+    }
+
+    /**
+     * Closes the connection, calls in progress fail.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
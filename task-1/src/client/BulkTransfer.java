@@ -0,0 +1,521 @@
+package client;
+
+import interfaces.Car;
+import interfaces.DealerInterface;
+import interfaces.InsertStatus;
+import interfaces.Page;
+import interfaces.Receipt;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Streams cars and receipts between CSV or JSON lines files and a dealer, for loading a whole inventory at
+ * once rather than through the interactive client.
+ * <p>
+ * An import reads the file in chunks of a batch of lines. The chunks are parsed and validated on a pool of
+ * threads and each one is saved by a single batch insert on a second pool, so several batches are in flight
+ * while the next lines are parsed. The reader waits once twice as many chunks as there are threads are in
+ * progress, which keeps the memory used independent of the size of the file and lets a slow server hold the
+ * whole pipeline back. Batches the server turns away because it is busy are retried with a growing delay.
+ * Invalid lines are reported with their line number and skipped, they don't stop the import. Batches are
+ * saved in no particular order, so when a key occurs in several batches it isn't defined which record wins.
+ * <p>
+ * An export reads the records page by page, fetching the next page while the current one is written, so
+ * neither the client nor the server ever holds all of them.
+ */
+public class BulkTransfer {
+    static final String[] CAR_COLUMNS = {"serialNumber", "brand", "model", "color", "year", "price", "weight"};
+    static final String[] RECEIPT_COLUMNS = {"id", "vendor", "carSerialNumber", "date"};
+    private static final Set<String> NUMERIC_COLUMNS = Set.of("year", "price", "weight");
+    private static final int FIRST_CAR_YEAR = 1886;
+    private static final long BUSY_RETRY_MILLIS = 50;
+    private static final long MAX_BUSY_RETRY_MILLIS = 2000;
+    private static final int MAX_BUSY_RETRIES = 20;
+    private static final int MAX_REPORTED_ERRORS = 20;
+    private static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final DealerInterface dealer;
+    private final int batchSize;
+    private final int threads;
+
+    /**
+     * @param dealer Dealer to load the records into or read them from
+     * @param batchSize Records per batch insert and per page read
+     * @param threads Threads parsing and threads saving batches
+     */
+    public BulkTransfer(DealerInterface dealer, int batchSize, int threads) {
+        if (batchSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("The batch size and the number of threads must be positive");
+        }
+        this.dealer = dealer;
+        this.batchSize = batchSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Saves a batch of records and returns the status of each.
+     */
+    private interface Inserter<T> {
+        List<InsertStatus> insert(DealerInterface dealer, List<T> records) throws RemoteException;
+    }
+
+    /**
+     * Reads a page of every record.
+     */
+    private interface Pager<T> {
+        Page<T> fetch(DealerInterface dealer, int limit, String continuationToken) throws RemoteException;
+    }
+
+    /**
+     * Columns, conversions and remote calls of one type of record.
+     */
+    private static final class RecordKind<T> {
+        final String[] columns;
+        final Function<String[], T> parse;
+        final Function<T, String[]> format;
+        final Inserter<T> insert;
+        final Pager<T> pages;
+
+        RecordKind(String[] columns, Function<String[], T> parse, Function<T, String[]> format,
+                   Inserter<T> insert, Pager<T> pages) {
+            this.columns = columns;
+            this.parse = parse;
+            this.format = format;
+            this.insert = insert;
+            this.pages = pages;
+        }
+    }
+
+    private static final RecordKind<Car> CARS = new RecordKind<>(CAR_COLUMNS, BulkTransfer::toCar,
+            BulkTransfer::values, DealerInterface::createCars, DealerInterface::getCars);
+    private static final RecordKind<Receipt> RECEIPTS = new RecordKind<>(RECEIPT_COLUMNS, BulkTransfer::toReceipt,
+            BulkTransfer::values, DealerInterface::createReceipts, DealerInterface::getReceipts);
+
+    private static RecordKind<?> kind(String name) {
+        switch (name) {
+            case "cars":
+                return CARS;
+            case "receipts":
+                return RECEIPTS;
+            default:
+                throw new IllegalArgumentException("Unknown record type " + name + ", expected cars or receipts");
+        }
+    }
+
+    /**
+     * Counts of an import.
+     */
+    public static final class Result {
+        final LongAdder created = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+        final LongAdder refused = new LongAdder();
+        final LongAdder invalid = new LongAdder();
+        long millis;
+
+        public long getCreated() {
+            return created.sum();
+        }
+
+        /**
+         * @return Records skipped because their key was already taken
+         */
+        public long getDuplicates() {
+            return duplicates.sum();
+        }
+
+        /**
+         * @return Receipts the server refused because their car is unknown or already sold
+         */
+        public long getRefused() {
+            return refused.sum();
+        }
+
+        /**
+         * @return Lines skipped because they could not be parsed or failed validation
+         */
+        public long getInvalid() {
+            return invalid.sum();
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            long records = getCreated() + getDuplicates() + getRefused() + getInvalid();
+            return records + " records in " + millis + " ms (" + perSecond(records, millis) + " records/s): "
+                    + getCreated() + " created, " + getDuplicates() + " duplicates, " + getRefused() + " refused, "
+                    + getInvalid() + " invalid";
+        }
+    }
+
+    /**
+     * Imports the records of a file.
+     * @param type cars or receipts
+     * @param in Lines of the file
+     * @param format csv or jsonl
+     * @throws IOException If the file can't be read, or a batch could not be saved, which stops the import
+     */
+    public Result importRecords(String type, Reader in, String format) throws IOException {
+        RecordKind<?> kind = kind(type);
+        return importRecords(kind, new BufferedReader(in, 1 << 16),
+                RecordFormat.of(format, kind.columns, NUMERIC_COLUMNS));
+    }
+
+    private <T> Result importRecords(RecordKind<T> kind, BufferedReader in, RecordFormat format) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        AtomicInteger reportedErrors = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, daemon("bulk-parse"));
+        ExecutorService writers = Executors.newFixedThreadPool(threads, daemon("bulk-write"));
+        // Chunks read but not saved yet
+        int maxInFlight = 2 * threads;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long lineNumber = 0;
+        long lastReport = start;
+        try {
+            if (format.header() != null) {
+                String header = in.readLine();
+                if (header == null) {
+                    return result;
+                }
+                lineNumber++;
+                format.readHeader(header);
+            }
+            while (failure.get() == null) {
+                inFlight.acquireUninterruptibly();
+                List<String> lines = new ArrayList<>(batchSize);
+                long firstLine = lineNumber + 1;
+                String line;
+                while (lines.size() < batchSize && (line = in.readLine()) != null) {
+                    lines.add(line);
+                }
+                if (lines.isEmpty()) {
+                    inFlight.release();
+                    break;
+                }
+                lineNumber += lines.size();
+                CompletableFuture.supplyAsync(() -> parse(kind, format, lines, firstLine, result, reportedErrors), parsers)
+                        .thenAcceptAsync(records -> write(kind, records, result), writers)
+                        .whenComplete((ignored, e) -> {
+                            if (e != null) {
+                                failure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+                            }
+                            inFlight.release();
+                        });
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+                    lastReport = now;
+                    long records = result.getCreated() + result.getDuplicates() + result.getInvalid();
+                    System.err.println("Imported " + records + " records, "
+                            + perSecond(records, (now - start) / 1_000_000) + " records/s");
+                }
+            }
+            // Waits for the batches still in flight
+            inFlight.acquireUninterruptibly(maxInFlight);
+        } finally {
+            parsers.shutdown();
+            writers.shutdown();
+        }
+        result.millis = (System.nanoTime() - start) / 1_000_000;
+        Throwable cause = failure.get();
+        if (cause != null) {
+            throw new IOException("Import stopped after " + result.getCreated() + " records were created", cause);
+        }
+        return result;
+    }
+
+    private <T> List<T> parse(RecordKind<T> kind, RecordFormat format, List<String> lines, long firstLine,
+                              Result result, AtomicInteger reportedErrors) {
+        List<T> records = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                records.add(kind.parse.apply(format.parse(line)));
+            } catch (IllegalArgumentException e) {
+                result.invalid.increment();
+                int reported = reportedErrors.incrementAndGet();
+                if (reported <= MAX_REPORTED_ERRORS) {
+                    System.err.println("Line " + (firstLine + i) + ": " + e.getMessage());
+                } else if (reported == MAX_REPORTED_ERRORS + 1) {
+                    System.err.println("Further invalid lines are counted but not reported");
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Saves a batch, retrying while the server is too busy to take it.
+     */
+    private <T> void write(RecordKind<T> kind, List<T> records, Result result) {
+        if (records.isEmpty()) {
+            return;
+        }
+        long delay = BUSY_RETRY_MILLIS;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                for (InsertStatus status : kind.insert.insert(dealer, records)) {
+                    switch (status) {
+                        case CREATED:
+                            result.created.increment();
+                            break;
+                        case DUPLICATE:
+                            result.duplicates.increment();
+                            break;
+                        default:
+                            result.refused.increment();
+                    }
+                }
+                return;
+            } catch (RemoteException e) {
+                if (attempt == MAX_BUSY_RETRIES || !isBusy(e)) {
+                    throw new CompletionException(e);
+                }
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            delay = Math.min(2 * delay, MAX_BUSY_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * @return True if admission control turned the call away, the message of the server's exception is part
+     * of the one RMI throws on the client
+     */
+    private static boolean isBusy(RemoteException e) {
+        return e.getMessage() != null && e.getMessage().contains("Server busy");
+    }
+
+    /**
+     * Exports every record of a type, in insertion order.
+     * @param type cars or receipts
+     * @param out Receives the lines of the file
+     * @param format csv or jsonl
+     * @return Number of records written
+     */
+    public long exportRecords(String type, Writer out, String format) throws IOException {
+        RecordKind<?> kind = kind(type);
+        return exportRecords(kind, new BufferedWriter(out, 1 << 16), RecordFormat.of(format, kind.columns, NUMERIC_COLUMNS));
+    }
+
+    private <T> long exportRecords(RecordKind<T> kind, BufferedWriter out, RecordFormat format) throws IOException {
+        long start = System.nanoTime();
+        long lastReport = start;
+        long exported = 0;
+        ExecutorService fetcher = Executors.newSingleThreadExecutor(daemon("bulk-fetch"));
+        try {
+            if (format.header() != null) {
+                out.write(format.header());
+                out.newLine();
+            }
+            Future<Page<T>> next = fetcher.submit(() -> kind.pages.fetch(dealer, batchSize, null));
+            while (true) {
+                Page<T> page = await(next);
+                if (page.hasMore()) {
+                    String continuationToken = page.getContinuationToken();
+                    next = fetcher.submit(() -> kind.pages.fetch(dealer, batchSize, continuationToken));
+                }
+                for (T record : page.getItems()) {
+                    out.write(format.format(kind.format.apply(record)));
+                    out.newLine();
+                }
+                exported += page.getItems().size();
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+                    lastReport = now;
+                    System.err.println("Exported " + exported + " records, "
+                            + perSecond(exported, (now - start) / 1_000_000) + " records/s");
+                }
+                if (!page.hasMore()) {
+                    break;
+                }
+            }
+            out.flush();
+        } finally {
+            fetcher.shutdownNow();
+        }
+        return exported;
+    }
+
+    private static <T> Page<T> await(Future<Page<T>> page) throws IOException {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the records");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    static Car toCar(String[] values) {
+        return new Car(required(values[0], "serialNumber"), required(values[1], "brand"),
+                required(values[2], "model"), required(values[3], "color"),
+                year(values[4]), number(values[5], "price", false), number(values[6], "weight", true));
+    }
+
+    static String[] values(Car car) {
+        return new String[]{car.getSerialNumber(), car.getBrand(), car.getModel(), car.getColor(),
+                Integer.toString(car.getYear()), Float.toString(car.getPrice()), Float.toString(car.getWeight())};
+    }
+
+    static Receipt toReceipt(String[] values) {
+        return new Receipt(required(values[0], "id"), required(values[1], "vendor"),
+                required(values[2], "carSerialNumber"), date(values[3]));
+    }
+
+    static String[] values(Receipt receipt) {
+        return new String[]{receipt.getID(), receipt.getVendor(), receipt.getCarSerialNumber(),
+                receipt.getDate() == null ? null : receipt.getDate().toInstant().toString()};
+    }
+
+    private static String required(String value, String column) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException(column + " is missing");
+        }
+        return value;
+    }
+
+    private static int year(String value) {
+        int year;
+        try {
+            year = Integer.parseInt(required(value, "year").trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("year is not a whole number: " + value);
+        }
+        int latest = Year.now(ZoneOffset.UTC).getValue() + 1;
+        if (year < FIRST_CAR_YEAR || year > latest) {
+            throw new IllegalArgumentException("year " + year + " is not between " + FIRST_CAR_YEAR + " and " + latest);
+        }
+        return year;
+    }
+
+    /**
+     * @param positive True if zero is not allowed either
+     */
+    private static float number(String value, String column, boolean positive) {
+        float number;
+        try {
+            number = Float.parseFloat(required(value, column).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(column + " is not a number: " + value);
+        }
+        if (!Float.isFinite(number) || number < 0 || (positive && number == 0)) {
+            throw new IllegalArgumentException(column + " must be " + (positive ? "positive" : "zero or more") + ": " + value);
+        }
+        return number;
+    }
+
+    /**
+     * @return The date of an ISO instant, or of the start of an ISO date in UTC, null for an empty value
+     */
+    private static Date date(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            String trimmed = value.trim();
+            Instant instant = trimmed.indexOf('T') >= 0 ? Instant.parse(trimmed)
+                    : LocalDate.parse(trimmed).atStartOfDay(ZoneOffset.UTC).toInstant();
+            return Date.from(instant);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("date is not an ISO date or instant: " + value);
+        }
+    }
+
+    private static long perSecond(long records, long millis) {
+        return millis == 0 ? records : records * 1000 / millis;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Usage: {@code java -classpath "out" client.BulkTransfer import|export cars|receipts file [--format csv|jsonl]
+     * [--batch records] [--threads threads]}. A file of - is standard input or output. The format defaults to
+     * jsonl for .jsonl and .json files and to csv otherwise. The dealer is found as the interactive client finds it.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: BulkTransfer import|export cars|receipts file [--format csv|jsonl] [--batch records] [--threads threads]");
+            System.exit(1);
+        }
+        String file = args[2];
+        String format = file.endsWith(".jsonl") || file.endsWith(".json") ? "jsonl" : "csv";
+        int batchSize = 1000;
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int i = 3; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--format":
+                    format = args[i + 1];
+                    break;
+                case "--batch":
+                    batchSize = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        DealerInterface dealer = Client.connect();
+        try {
+            BulkTransfer transfer = new BulkTransfer(dealer, batchSize, threads);
+            if (args[0].equals("import")) {
+                try (Reader in = file.equals("-") ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                        : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                    System.err.println("Imported " + transfer.importRecords(args[1], in, format));
+                }
+            } else {
+                long start = System.nanoTime();
+                long exported;
+                if (file.equals("-")) {
+                    Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+                    exported = transfer.exportRecords(args[1], out, format);
+                } else {
+                    try (Writer out = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+                        exported = transfer.exportRecords(args[1], out, format);
+                    }
+                }
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                System.err.println("Exported " + exported + " records in " + millis + " ms (" + perSecond(exported, millis) + " records/s)");
+            }
+        } finally {
+            if (dealer instanceof AutoCloseable) {
+                ((AutoCloseable) dealer).close();
+            }
+        }
+    }
+}
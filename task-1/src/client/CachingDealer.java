@@ -0,0 +1,406 @@
+package client;
+
+import interfaces.*;
+
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Read-through cache in front of a {@link DealerInterface}, usually the RMI stub of the server.
+ * <p>
+ * Cars and receipts never change once created, so lookups by serial number and id are cached until they
+ * are evicted or expire. Lookups that find nothing are cached as well, with a shorter time to live since
+ * another client may create the record meanwhile. Results by brand and by vendor do change as records
+ * are added: each of them is stored with the version stamp the server gave for its brand or vendor, and
+ * is only used while the server still reports the same stamp. Checking the stamp is a call without a
+ * payload, so it is much cheaper than fetching the records again.
+ * <p>
+ * Every cache holds at most maxEntries entries and drops the least recently used ones first.
+ * Cached lists are shared between callers and must not be modified. Everything else goes straight to
+ * the server. The cache is thread safe.
+ */
+public class CachingDealer implements DealerInterface {
+    private final DealerInterface delegate;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Cache<String, Car> cars;
+    private final Cache<String, Receipt> receipts;
+    // Keyed by a list starting with the case folded brand or vendor, followed by the page parameters if any
+    private final Cache<List<Object>, Object> carsByBrand;
+    private final Cache<List<Object>, Object> receiptsByVendor;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * A remote call whose result can be cached.
+     */
+    private interface RemoteCall<T> {
+        T call() throws RemoteException;
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long version;
+        final long expiresAt;
+
+        Entry(V value, long version, long expiresAt) {
+            this.value = value;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Size bounded LRU map whose entries expire.
+     */
+    private static final class Cache<K, V> {
+        private final Map<K, Entry<V>> entries;
+
+        Cache(int maxEntries) {
+            entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        /**
+         * @return The entry of the key, null if there is none or it has expired
+         */
+        synchronized Entry<V> get(K key) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() < 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+
+        synchronized void put(K key, V value, long version, long ttlNanos) {
+            entries.put(key, new Entry<>(value, version, System.nanoTime() + ttlNanos));
+        }
+
+        synchronized void remove(K key) {
+            entries.remove(key);
+        }
+
+        synchronized void removeIf(Predicate<K> filter) {
+            entries.keySet().removeIf(filter);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @param delegate Dealer to forward calls to
+     * @param maxEntries Maximum number of entries in each of the caches
+     * @param ttlMillis Time after which a cached result is fetched again
+     * @param negativeTtlMillis Time after which a lookup that found nothing is tried again
+     */
+    public CachingDealer(DealerInterface delegate, int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this.delegate = delegate;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.negativeTtlNanos = negativeTtlMillis * 1_000_000;
+        cars = new Cache<>(maxEntries);
+        receipts = new Cache<>(maxEntries);
+        carsByBrand = new Cache<>(maxEntries);
+        receiptsByVendor = new Cache<>(maxEntries);
+    }
+
+    private static String fold(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    private <V> V cached(Cache<String, V> cache, String key, RemoteCall<V> call) throws RemoteException {
+        Entry<V> entry = cache.get(key);
+        if (entry != null) {
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        V value = call.call();
+        cache.put(key, value, 0, value == null ? negativeTtlNanos : ttlNanos);
+        return value;
+    }
+
+    /**
+     * Returns a cached result if the server still reports the version stamp it was fetched at.
+     * The stamp is read before the result, so a result is never stored with a stamp newer than itself.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T versioned(Cache<List<Object>, Object> cache, List<Object> key, long version, RemoteCall<T> call)
+            throws RemoteException {
+        Entry<Object> entry = cache.get(key);
+        if (entry != null && entry.version == version) {
+            hits.increment();
+            return (T) entry.value;
+        }
+        misses.increment();
+        T value = call.call();
+        cache.put(key, value, version, ttlNanos);
+        return value;
+    }
+
+    private void remember(Collection<Car> found) {
+        for (Car car : found) {
+            cars.put(car.getSerialNumber(), car, 0, ttlNanos);
+        }
+    }
+
+    private void rememberReceipts(Collection<Receipt> found) {
+        for (Receipt receipt : found) {
+            receipts.put(receipt.getID(), receipt, 0, ttlNanos);
+        }
+    }
+
+    private void invalidateBrand(String brand) {
+        String folded = fold(brand);
+        carsByBrand.removeIf(key -> key.get(0).equals(folded));
+    }
+
+    private void invalidateVendor(String vendor) {
+        String folded = fold(vendor);
+        receiptsByVendor.removeIf(key -> key.get(0).equals(folded));
+    }
+
+    @Override
+    public Car findCarBySerialNumber(String serialNumber) throws RemoteException {
+        return cached(cars, serialNumber, () -> delegate.findCarBySerialNumber(serialNumber));
+    }
+
+    @Override
+    public List<Car> findCarsByBrand(String brand) throws RemoteException {
+        return versioned(carsByBrand, List.of(fold(brand)), delegate.getBrandVersion(brand), () -> {
+            List<Car> found = Collections.unmodifiableList(delegate.findCarsByBrand(brand));
+            remember(found);
+            return found;
+        });
+    }
+
+    @Override
+    public void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws DuplicateKeyException, RemoteException {
+        delegate.createCar(serialNumber, brand, model, color, year, price, weight);
+        cars.remove(serialNumber);
+        invalidateBrand(brand);
+    }
+
+    @Override
+    public Receipt findReceiptById(String id) throws RemoteException {
+        return cached(receipts, id, () -> delegate.findReceiptById(id));
+    }
+
+    @Override
+    public List<Receipt> getReceiptsByVendor(String vendor) throws RemoteException {
+        return versioned(receiptsByVendor, List.of(fold(vendor)), delegate.getVendorVersion(vendor), () -> {
+            List<Receipt> found = Collections.unmodifiableList(delegate.getReceiptsByVendor(vendor));
+            rememberReceipts(found);
+            return found;
+        });
+    }
+
+    @Override
+    public void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws DealerException, RemoteException {
+        delegate.createReceipt(ID, vendor, carSerialNumber, date);
+        receipts.remove(ID);
+        invalidateVendor(vendor);
+    }
+
+    @Override
+    public List<InsertStatus> createCars(List<Car> cars) throws RemoteException {
+        List<InsertStatus> statuses = delegate.createCars(cars);
+        for (Car car : cars) {
+            this.cars.remove(car.getSerialNumber());
+            invalidateBrand(car.getBrand());
+        }
+        return statuses;
+    }
+
+    @Override
+    public List<InsertStatus> createReceipts(List<Receipt> receipts) throws RemoteException {
+        List<InsertStatus> statuses = delegate.createReceipts(receipts);
+        for (Receipt receipt : receipts) {
+            this.receipts.remove(receipt.getID());
+            invalidateVendor(receipt.getVendor());
+        }
+        return statuses;
+    }
+
+    /**
+     * Serves the cached serial numbers and fetches the others in one call.
+     */
+    @Override
+    public Map<String, Car> findCarsBySerialNumbers(Collection<String> serialNumbers) throws RemoteException {
+        Map<String, Car> found = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String serialNumber : serialNumbers) {
+            Entry<Car> entry = cars.get(serialNumber);
+            if (entry == null) {
+                misses.increment();
+                missing.add(serialNumber);
+            } else {
+                hits.increment();
+                if (entry.value != null) {
+                    found.put(serialNumber, entry.value);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, Car> fetched = delegate.findCarsBySerialNumbers(missing);
+            for (String serialNumber : missing) {
+                Car car = fetched.get(serialNumber);
+                cars.put(serialNumber, car, 0, car == null ? negativeTtlNanos : ttlNanos);
+                if (car != null) {
+                    found.put(serialNumber, car);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Serves the cached ids and fetches the others in one call.
+     */
+    @Override
+    public Map<String, Receipt> findReceiptsByIds(Collection<String> ids) throws RemoteException {
+        Map<String, Receipt> found = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            Entry<Receipt> entry = receipts.get(id);
+            if (entry == null) {
+                misses.increment();
+                missing.add(id);
+            } else {
+                hits.increment();
+                if (entry.value != null) {
+                    found.put(id, entry.value);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, Receipt> fetched = delegate.findReceiptsByIds(missing);
+            for (String id : missing) {
+                Receipt receipt = fetched.get(id);
+                receipts.put(id, receipt, 0, receipt == null ? negativeTtlNanos : ttlNanos);
+                if (receipt != null) {
+                    found.put(id, receipt);
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Page<Car> findCarsByBrand(String brand, int limit, String continuationToken) throws RemoteException {
+        List<Object> key = Arrays.asList(fold(brand), limit, continuationToken);
+        return versioned(carsByBrand, key, delegate.getBrandVersion(brand), () -> {
+            Page<Car> page = delegate.findCarsByBrand(brand, limit, continuationToken);
+            remember(page.getItems());
+            return page;
+        });
+    }
+
+    @Override
+    public Page<Receipt> getReceiptsByVendor(String vendor, int limit, String continuationToken) throws RemoteException {
+        List<Object> key = Arrays.asList(fold(vendor), limit, continuationToken);
+        return versioned(receiptsByVendor, key, delegate.getVendorVersion(vendor), () -> {
+            Page<Receipt> page = delegate.getReceiptsByVendor(vendor, limit, continuationToken);
+            rememberReceipts(page.getItems());
+            return page;
+        });
+    }
+
+    @Override
+    public RemoteIterator<Car> iterateCarsByBrand(String brand) throws RemoteException {
+        return delegate.iterateCarsByBrand(brand);
+    }
+
+    @Override
+    public RemoteIterator<Receipt> iterateReceiptsByVendor(String vendor) throws RemoteException {
+        return delegate.iterateReceiptsByVendor(vendor);
+    }
+
+    @Override
+    public Page<Car> getCars(int limit, String continuationToken) throws RemoteException {
+        return delegate.getCars(limit, continuationToken);
+    }
+
+    @Override
+    public Page<Receipt> getReceipts(int limit, String continuationToken) throws RemoteException {
+        return delegate.getReceipts(limit, continuationToken);
+    }
+
+    @Override
+    public List<Car> findCars(CarQuery query) throws RemoteException {
+        return delegate.findCars(query);
+    }
+
+    @Override
+    public List<Receipt> findReceipts(ReceiptQuery query) throws RemoteException {
+        return delegate.findReceipts(query);
+    }
+
+    @Override
+    public List<SearchHit> search(SearchQuery query) throws RemoteException {
+        return delegate.search(query);
+    }
+
+    @Override
+    public long getBrandVersion(String brand) throws RemoteException {
+        return delegate.getBrandVersion(brand);
+    }
+
+    @Override
+    public long getVendorVersion(String vendor) throws RemoteException {
+        return delegate.getVendorVersion(vendor);
+    }
+
+    @Override
+    public ChangeBatch getChanges(ChangeFilter filter, long afterSequence, int maxRecords, long waitMillis) throws RemoteException {
+        return delegate.getChanges(filter, afterSequence, maxRecords, waitMillis);
+    }
+
+    @Override
+    public Subscription subscribe(ChangeFilter filter, long afterSequence, ChangeListener listener) throws RemoteException {
+        return delegate.subscribe(filter, afterSequence, listener);
+    }
+
+    @Override
+    public List<SalesTotal> getRevenueByVendor() throws RemoteException {
+        return delegate.getRevenueByVendor();
+    }
+
+    @Override
+    public Map<String, List<SalesTotal>> getSalesByBrandPerMonth() throws RemoteException {
+        return delegate.getSalesByBrandPerMonth();
+    }
+
+    @Override
+    public List<SalesTotal> getTopModels(int n) throws RemoteException {
+        return delegate.getTopModels(n);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return A one line summary of the hit rate and the number of cached entries
+     */
+    public String getStats() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        return "Cache: " + hitCount + " hits, " + (total - hitCount) + " misses"
+                + (total > 0 ? String.format(" (%.1f%% hit rate)", 100.0 * hitCount / total) : "")
+                + ", " + (cars.size() + receipts.size()) + " records and "
+                + (carsByBrand.size() + receiptsByVendor.size()) + " lists cached";
+    }
+}
@@ -1,8 +1,12 @@
 package client;
 
 import interfaces.Car;
+import interfaces.DealerException;
 import interfaces.DealerInterface;
+import interfaces.Page;
 import interfaces.Receipt;
+import interfaces.SearchHit;
+import interfaces.SearchQuery;
 
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -10,21 +14,55 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Scanner;
 
 public class Client {
     final static int port = 4444;
-    final DealerInterface server;
+    final static int binaryPort = 4446;
+    // rmi or binary, set with -Ddealer.transport=binary
+    final static String transport = System.getProperty("dealer.transport", "rmi");
+    // Nodes of a cluster as host:port/name separated by commas, set with -Ddealer.shards=...
+    final static String shards = System.getProperty("dealer.shards");
+    // Primary and replicas as host:port/name separated by commas, set with -Ddealer.replicas=...
+    final static String replicas = System.getProperty("dealer.replicas");
+    // How far behind the primary a replica may be to serve reads, set with -Ddealer.maxStalenessMs=...
+    final static long maxStalenessMillis = Long.getLong("dealer.maxStalenessMs", 1000);
+    final static int pageSize = 100;
+    final static int cacheSize = 10_000;
+    final static long cacheTtlMillis = 10 * 60 * 1000;
+    final static long negativeCacheTtlMillis = 5 * 1000;
+    // One scanner for the whole session, a new one per line would lose what the previous one buffered
+    private static final Scanner scanner = new Scanner(System.in);
+    final CachingDealer server;
 
     /**
      * Constructor function for the class Client.
-     * Looks for the server on the given port and connects if the registry is found.
+     * Connects as {@link #connect()} does, lookups go through a client side cache.
      */
     public Client() throws RemoteException, NotBoundException {
-        Registry registry = LocateRegistry.getRegistry(port);
-        server = (DealerInterface) registry.lookup("Dealer");
+        server = new CachingDealer(connect(), cacheSize, cacheTtlMillis, negativeCacheTtlMillis);
+    }
+
+    /**
+     * Looks for the server on the given port and connects if the registry is found,
+     * or connects to the binary transport of the server if that transport is configured,
+     * or to every node of a cluster if its nodes are configured,
+     * or to a primary and its replicas if they are configured, reading back its own writes.
+     */
+    static DealerInterface connect() throws RemoteException, NotBoundException {
+        if (shards != null) {
+            return new ShardedDealer(Arrays.asList(shards.split(",")));
+        } else if (replicas != null) {
+            return new ReplicatedDealer(Arrays.asList(replicas.split(",")), maxStalenessMillis, true);
+        } else if (transport.equalsIgnoreCase("binary")) {
+            return new BinaryDealer("localhost", binaryPort);
+        } else {
+            Registry registry = LocateRegistry.getRegistry(port);
+            return (DealerInterface) registry.lookup("Dealer");
+        }
     }
 
     /**
@@ -41,11 +79,13 @@ public class Client {
                     "4. Print cars by brand\n" +
                     "5. Print receipt by id\n" +
                     "6. Print receipts by buyer\n" +
+                    "7. Search brands, models, colors and buyers\n" +
                     "0. Exit");
 
             selection = scanString();
             switch (selection) {
                 case "0":
+                    System.out.println(client.server.getStats());
                     System.out.println("Exiting...");
                     break;
                 case "1":
@@ -66,6 +106,9 @@ public class Client {
                 case "6":
                     client.handlePrintReceiptsByVendor();
                     break;
+                case "7":
+                    client.handleSearch();
+                    break;
                 default:
                     System.out.println("Invalid selection!");
             }
@@ -79,7 +122,6 @@ public class Client {
      * @return Input string.
      */
     public static String scanString() {
-        Scanner scanner = new Scanner(System.in);
         String text;
         while (true) {
             text = scanner.nextLine();
@@ -144,8 +186,12 @@ public class Client {
         float weight = scanFloat();
         System.out.println("Price");
         float price = scanFloat();
-        server.createCar(serialNumber, brand, model, color, year, price, weight);
-        System.out.println("Registration successful...\n");
+        try {
+            server.createCar(serialNumber, brand, model, color, year, price, weight);
+            System.out.println("Registration successful...\n");
+        } catch (DealerException e) {
+            System.out.println("Registration refused: " + e.getMessage() + "\n");
+        }
     }
 
     /**
@@ -165,7 +211,11 @@ public class Client {
         System.out.println("Receipt date in the format day/month/year: ");
         Date receiptDate = scanDate();
 
-        server.createReceipt(ReceiptID, vendor, serialNumber, receiptDate);
+        try {
+            server.createReceipt(ReceiptID, vendor, serialNumber, receiptDate);
+        } catch (DealerException e) {
+            System.out.println("Receipt refused: " + e.getMessage());
+        }
     }
 
     /**
@@ -183,19 +233,25 @@ public class Client {
     }
 
     /**
-     * Asks the user for a brand name and prints the car objects with the given brand name.
+     * Asks the user for a brand name and prints the car objects with the given brand name
+     * one page at a time, as the pages arrive from the server.
      */
     public void handlePrintCarsByBrand() throws RemoteException {
         System.out.println("Brand: ");
         String brand = scanString();
-        List<Car> carListByBrand = server.findCarsByBrand(brand);
-
-        if (carListByBrand == null || carListByBrand.size() == 0) {
-            System.out.println("No car list found with this brand!");
-        } else {
-            for (Car car : carListByBrand) {
+        String continuationToken = null;
+        boolean found = false;
+        do {
+            Page<Car> page = server.findCarsByBrand(brand, pageSize, continuationToken);
+            for (Car car : page.getItems()) {
                 System.out.println(car);
+                found = true;
             }
+            continuationToken = page.getContinuationToken();
+        } while (continuationToken != null);
+
+        if (!found) {
+            System.out.println("No car list found with this brand!");
         }
     }
 
@@ -214,18 +270,41 @@ public class Client {
     }
 
     /**
-     * Asks the user for a vendor name and prints the receipt objects with the given vendor name.
+     * Asks the user for a vendor name and prints the receipt objects with the given vendor name
+     * one page at a time, as the pages arrive from the server.
      */
     public void handlePrintReceiptsByVendor() throws RemoteException {
         System.out.println("Buyer name: ");
         String buyerName = scanString();
-        List<Receipt> receiptList = server.getReceiptsByVendor(buyerName);
-        if (receiptList == null || receiptList.size() == 0) {
-            System.out.println("No receipt found with this buyer name!");
-        } else {
-            for (Receipt receipt : receiptList) {
+        String continuationToken = null;
+        boolean found = false;
+        do {
+            Page<Receipt> page = server.getReceiptsByVendor(buyerName, pageSize, continuationToken);
+            for (Receipt receipt : page.getItems()) {
                 System.out.println(receipt);
+                found = true;
             }
+            continuationToken = page.getContinuationToken();
+        } while (continuationToken != null);
+
+        if (!found) {
+            System.out.println("No receipt found with this buyer name!");
+        }
+    }
+
+    /**
+     * Asks the user for the start of a name
+     * and prints the best matching brands, models, colors and buyers with their number of records.
+     */
+    public void handleSearch() throws RemoteException {
+        System.out.println("Search: ");
+        String text = scanString();
+        List<SearchHit> hits = server.search(new SearchQuery(text).limit(10));
+        for (SearchHit hit : hits) {
+            System.out.println(hit.getField() + " " + hit.getValue() + " (" + hit.getRecords() + ")");
+        }
+        if (hits.isEmpty()) {
+            System.out.println("Nothing found!");
         }
     }
 }
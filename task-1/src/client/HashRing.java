@@ -0,0 +1,64 @@
+package client;
+
+import java.util.*;
+
+/**
+ * Consistent hash ring assigning keys to the nodes of a cluster. Every node is placed at a number of points
+ * on the ring and owns the keys hashing between the point before and its own, so each node owns many small
+ * ranges spread over the whole ring. Adding or removing a node only moves the keys of the ranges it gains or
+ * loses, about 1/n of them, and takes them evenly from or gives them evenly to the other nodes.
+ * <p>
+ * The hash only depends on the key and the node names, so every client with the same node list routes the
+ * same way.
+ */
+final class HashRing {
+    private static final int POINTS_PER_NODE = 128;
+
+    private final List<String> nodes;
+    private final TreeMap<Integer, String> points = new TreeMap<>();
+
+    /**
+     * @param nodes Names of the nodes, at least one
+     */
+    HashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+        for (String node : this.nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                // Ties are broken by name so that the order of the list doesn't matter
+                points.merge(hash(node + "#" + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+    }
+
+    /**
+     * @return Name of the node owning the key
+     */
+    String ownerOf(String key) {
+        Map.Entry<Integer, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * @return Names of the nodes in the order they were given
+     */
+    List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Spreads String.hashCode, which is the same on every JVM but clusters similar keys such as consecutive
+     * serial numbers, with the finalizer of MurmurHash3.
+     */
+    static int hash(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,393 @@
+package client;
+
+import interfaces.Car;
+import interfaces.DealerException;
+import interfaces.DealerInterface;
+import interfaces.Receipt;
+import interfaces.SearchQuery;
+
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a dealer with a mix of operations at a fixed rate for a given time and reports the throughput and the
+ * latency percentiles of every operation, to find out how much load a server takes before rolling it out.
+ * <p>
+ * The load is an open loop: call n is due at start + n / rate, whatever happened to the calls before it, and
+ * its latency is counted from when it was due rather than from when a thread got round to it. A server that
+ * stalls for a second therefore shows a second's worth of calls with growing latencies, where a closed loop
+ * would wait with it and record a single slow call (coordinated omission). The service time, from the actual
+ * start of the call, is reported next to it, the difference is time spent waiting for a free thread. Calls still
+ * not started when the run ends are counted as missed, with the time they had waited by then as their latency.
+ * Use enough threads for the rate times the latency expected, the progress lines show when the calls fall behind.
+ * <p>
+ * Before the run it inserts records of its own under a prefix unique to the run, so that the lookups hit
+ * known keys and every brand and vendor has about a hundred records. The calls go through the transport the
+ * interactive client is configured with, see {@link Client#connect()}. Inserts refused by the checks of the
+ * server are counted apart from failed calls.
+ * <p>
+ * Usage: {@code java -classpath "out" client.LoadGenerator [--rate calls/s] [--threads threads]
+ * [--seconds seconds] [--warmup seconds] [--records records]
+ * [--mix findCar=30,findReceipt=20,brand=20,vendor=20,createCar=5,createReceipt=5,search=0]}
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_MIX = "findCar=30,findReceipt=20,brand=20,vendor=20,createCar=5,createReceipt=5";
+    private static final int RECORDS_PER_NAME = 100;
+    private static final int SEED_BATCH = 1000;
+    private static final long START_DELAY_NANOS = 100_000_000L;
+    private static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;
+
+    /**
+     * One call of an operation of the mix.
+     */
+    private interface Operation {
+        void run(DealerInterface dealer, SplittableRandom random) throws RemoteException, DealerException;
+    }
+
+    private final DealerInterface dealer;
+    private final String prefix = "LG" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    private final int records;
+    private final int names;
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    // Keys of the records created while running
+    private final AtomicLong created = new AtomicLong();
+
+    /**
+     * @param records Number of cars and receipts inserted before the run
+     */
+    public LoadGenerator(DealerInterface dealer, int records) {
+        if (records < 1) {
+            throw new IllegalArgumentException("At least one record is needed to look up");
+        }
+        this.dealer = dealer;
+        this.records = records;
+        names = Math.max(1, records / RECORDS_PER_NAME);
+        operations.put("findCar", (server, random) -> server.findCarBySerialNumber(prefix + "C" + random.nextInt(records)));
+        operations.put("findReceipt", (server, random) -> server.findReceiptById(prefix + "R" + random.nextInt(records)));
+        operations.put("brand", (server, random) -> server.findCarsByBrand(prefix + "Brand " + random.nextInt(names)));
+        operations.put("vendor", (server, random) -> server.getReceiptsByVendor(prefix + "Vendor " + random.nextInt(names)));
+        operations.put("createCar", (server, random) -> server.createCar(prefix + "N" + created.incrementAndGet(),
+                prefix + "New", "Model", "Red", 2020, 20_000, 1200));
+        // New receipts sell one of the first cars, which have no receipt yet
+        operations.put("createReceipt", (server, random) -> server.createReceipt(prefix + "N" + created.incrementAndGet(),
+                prefix + "New", prefix + "C" + random.nextInt(records / 2 + 1), new Date()));
+        // Typed so far: the first digits of a brand, or a word of a model
+        operations.put("search", (server, random) -> server.search(new SearchQuery(random.nextBoolean()
+                ? prefix + "Brand " + random.nextInt(10) : "Model " + random.nextInt(50)).limit(10)));
+    }
+
+    /**
+     * Inserts the cars and receipts the lookups read, in batches. Every receipt sells a car of the second half,
+     * so the receipts created while running can sell the cars of the first half.
+     */
+    public void seed() throws RemoteException {
+        for (int from = 0; from < records; from += SEED_BATCH) {
+            int to = Math.min(records, from + SEED_BATCH);
+            List<Car> cars = new ArrayList<>(to - from);
+            List<Receipt> receipts = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                cars.add(new Car(prefix + "C" + i, prefix + "Brand " + i % names, "Model " + i % 50,
+                        i % 2 == 0 ? "Red" : "Blue", 2000 + i % 22, 10_000 + i % 40_000, 1000 + i % 800));
+                receipts.add(new Receipt(prefix + "R" + i, prefix + "Vendor " + i % names,
+                        prefix + "C" + (records / 2 + 1 + i % Math.max(1, records - records / 2 - 1)),
+                        new Date(946_684_800_000L + i * 60_000L)));
+            }
+            dealer.createCars(cars);
+            dealer.createReceipts(receipts);
+        }
+    }
+
+    /**
+     * Runs the mix at the given rate and prints the results.
+     * @param mix Weight of every operation by name, the operations left out are not called
+     * @param rate Calls per second over every thread
+     */
+    public void run(Map<String, Integer> mix, double rate, int threads, int warmupSeconds, int seconds)
+            throws InterruptedException {
+        String[] names = mix.keySet().toArray(new String[0]);
+        Operation[] chosen = new Operation[names.length];
+        int[] cumulative = new int[names.length];
+        int total = 0;
+        for (int i = 0; i < names.length; i++) {
+            chosen[i] = operations.get(names[i]);
+            if (chosen[i] == null || mix.get(names[i]) < 0) {
+                throw new IllegalArgumentException("Unknown operation or negative weight: " + names[i]
+                        + ", the operations are " + operations.keySet());
+            }
+            total += mix.get(names[i]);
+            cumulative[i] = total;
+        }
+        if (total == 0 || rate <= 0 || threads < 1) {
+            throw new IllegalArgumentException("The mix, the rate and the number of threads must be positive");
+        }
+        double intervalNanos = 1e9 / rate;
+        long start = System.nanoTime() + START_DELAY_NANOS;
+        long measuredFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measuredFrom + seconds * 1_000_000_000L;
+        AtomicLong next = new AtomicLong();
+        AtomicLong done = new AtomicLong();
+        Histogram[][] latencies = new Histogram[threads][names.length];
+        Histogram[][] serviceTimes = new Histogram[threads][names.length];
+        long[][] errors = new long[threads][names.length];
+        long[][] refused = new long[threads][names.length];
+        long[][] missed = new long[threads][names.length];
+        long[] lastFinished = new long[threads];
+        int weightTotal = total;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            for (int o = 0; o < names.length; o++) {
+                latencies[t][o] = new Histogram();
+                serviceTimes[t][o] = new Histogram();
+            }
+            workers[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(42 + index);
+                while (true) {
+                    long due = start + (long) (next.getAndIncrement() * intervalNanos);
+                    if (due >= end) {
+                        return;
+                    }
+                    int pick = random.nextInt(weightTotal);
+                    int o = 0;
+                    while (cumulative[o] <= pick) {
+                        o++;
+                    }
+                    long now = System.nanoTime();
+                    if (now >= end) {
+                        // Due but never started, leaving it out would hide the calls that waited the longest
+                        if (due >= measuredFrom) {
+                            latencies[index][o].record(now - due);
+                            missed[index][o]++;
+                        }
+                        continue;
+                    }
+                    long wait = due - now;
+                    while (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        wait = due - System.nanoTime();
+                    }
+                    long began = System.nanoTime();
+                    boolean failed = false;
+                    boolean rejected = false;
+                    try {
+                        chosen[o].run(dealer, random);
+                    } catch (DealerException e) {
+                        rejected = true;
+                    } catch (RemoteException | RuntimeException e) {
+                        failed = true;
+                    }
+                    long finished = System.nanoTime();
+                    if (due >= measuredFrom) {
+                        latencies[index][o].record(finished - due);
+                        serviceTimes[index][o].record(finished - began);
+                        errors[index][o] += failed ? 1 : 0;
+                        refused[index][o] += rejected ? 1 : 0;
+                        lastFinished[index] = Math.max(lastFinished[index], finished);
+                    }
+                    done.incrementAndGet();
+                }
+            }, "load-" + t);
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+
+        System.out.println(String.format("%,.0f calls/s on %d threads for %d s after %d s of warm up against %,d cars and receipts",
+                rate, threads, seconds, warmupSeconds, records));
+        long lastReport = start;
+        long lastDone = 0;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                worker.join(100);
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+                    long calls = done.get();
+                    // Due time of the next call not yet started, in the past when the threads can't keep up
+                    long behind = now - (start + (long) (next.get() * intervalNanos));
+                    System.out.println(String.format("%5.0f s %,10.0f calls/s, %s", (now - start) / 1e9,
+                            (calls - lastDone) * 1e9 / (now - lastReport),
+                            behind > 0 ? "behind schedule by " + behind / 1_000_000 + " ms" : "on schedule"));
+                    lastReport = now;
+                    lastDone = calls;
+                }
+            }
+        }
+
+        long finishedAt = measuredFrom;
+        for (long finished : lastFinished) {
+            finishedAt = Math.max(finishedAt, finished);
+        }
+        double elapsedSeconds = Math.max(finishedAt - measuredFrom, 1) / 1e9;
+        System.out.println();
+        System.out.println(String.format("%-14s %10s %10s %7s %7s %7s %9s %9s %9s %9s %9s %11s %11s",
+                "operation", "calls", "calls/s", "errors", "refused", "missed", "p50", "p90", "p99", "p99.9", "max",
+                "service p50", "service p99"));
+        Histogram allLatencies = new Histogram();
+        long allErrors = 0;
+        long allRefused = 0;
+        long allMissed = 0;
+        for (int o = 0; o < names.length; o++) {
+            Histogram latency = new Histogram();
+            Histogram service = new Histogram();
+            long operationErrors = 0;
+            long operationRefused = 0;
+            long operationMissed = 0;
+            for (int t = 0; t < threads; t++) {
+                latency.add(latencies[t][o]);
+                service.add(serviceTimes[t][o]);
+                operationErrors += errors[t][o];
+                operationRefused += refused[t][o];
+                operationMissed += missed[t][o];
+            }
+            allLatencies.add(latency);
+            allErrors += operationErrors;
+            allRefused += operationRefused;
+            allMissed += operationMissed;
+            printRow(names[o], latency, service, operationErrors, operationRefused, operationMissed, elapsedSeconds);
+        }
+        printRow("all", allLatencies, null, allErrors, allRefused, allMissed, elapsedSeconds);
+        System.out.println("Latencies in milliseconds from when each call was due, service times from when it started");
+        if (allMissed > 0) {
+            System.out.println(String.format("%,d of the %,d calls due were not started by the end, the server or the threads can't keep up with the rate",
+                    allMissed, allLatencies.count));
+        }
+    }
+
+    /**
+     * @param missed Calls never started, they are in the latencies but not in the calls
+     */
+    private static void printRow(String name, Histogram latency, Histogram service, long errors, long refused,
+                                 long missed, double seconds) {
+        long calls = latency.count - missed;
+        System.out.println(String.format("%-14s %,10d %,10.0f %7d %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f %11s %11s",
+                name, calls, calls / seconds, errors, refused, missed,
+                latency.percentile(50) / 1e6, latency.percentile(90) / 1e6, latency.percentile(99) / 1e6,
+                latency.percentile(99.9) / 1e6, latency.max / 1e6,
+                service == null ? "" : String.format("%.2f", service.percentile(50) / 1e6),
+                service == null ? "" : String.format("%.2f", service.percentile(99) / 1e6)));
+    }
+
+    /**
+     * Durations in nanoseconds in log-linear buckets, every power of two split into 32, the same buckets as
+     * the server's latency histograms. Each thread records into its own.
+     */
+    private static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_COUNT];
+        private long count;
+        private long max;
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            counts[indexOf(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * @return Value below which the given percentage of the values fall, 0 if nothing was recorded
+         */
+        long percentile(double percentile) {
+            long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int indexOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        private static long upperBoundOf(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            long sub = index % SUB_COUNT;
+            return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    /**
+     * @return Weight of every operation by name, in the order given
+     */
+    static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected operation=weight: " + entry);
+            }
+            weights.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double rate = 1000;
+        int threads = 16;
+        int seconds = 30;
+        int warmupSeconds = 5;
+        int records = 10_000;
+        String mix = DEFAULT_MIX;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rate":
+                    rate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--records":
+                    records = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--mix":
+                    mix = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        DealerInterface dealer = Client.connect();
+        try {
+            LoadGenerator generator = new LoadGenerator(dealer, records);
+            long started = System.nanoTime();
+            generator.seed();
+            System.out.println("Inserted " + records + " cars and receipts in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+            generator.run(parseMix(mix), rate, threads, warmupSeconds, seconds);
+        } finally {
+            if (dealer instanceof AutoCloseable) {
+                ((AutoCloseable) dealer).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package client;
+
+import interfaces.Page;
+import interfaces.RemoteIterator;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remote iterator over the pages of a paged query, for the stubs that can't hand out the server side cursor
+ * of RMI. It holds nothing on the server, so closing it only stops the iteration.
+ *
+ * @param <T> Car or Receipt
+ */
+class PagingIterator<T> implements RemoteIterator<T> {
+    /**
+     * Fetches a page of a paged query.
+     */
+    interface PageSource<T> {
+        Page<T> fetch(int limit, String continuationToken) throws RemoteException;
+    }
+
+    private final PageSource<T> source;
+    private String continuationToken;
+    private boolean exhausted;
+
+    PagingIterator(PageSource<T> source) {
+        this.source = source;
+    }
+
+    @Override
+    public synchronized List<T> next(int max) throws RemoteException {
+        if (exhausted) {
+            return Collections.emptyList();
+        }
+        Page<T> page = source.fetch(max, continuationToken);
+        continuationToken = page.getContinuationToken();
+        exhausted = !page.hasMore();
+        return page.getItems();
+    }
+
+    @Override
+    public synchronized void close() {
+        exhausted = true;
+    }
+}
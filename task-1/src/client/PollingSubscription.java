@@ -0,0 +1,109 @@
+package client;
+
+import interfaces.ChangeBatch;
+import interfaces.ChangeFilter;
+import interfaces.ChangeListener;
+import interfaces.DealerInterface;
+import interfaces.Subscription;
+
+import java.rmi.RemoteException;
+
+/**
+ * Subscription that polls {@link DealerInterface#getChanges} on a thread of the client, for the stubs that
+ * can't be called back by the server. The listener is called on that thread with the same batches a server side
+ * subscription would deliver. It holds nothing on the server, so cancelling it only stops the polling.
+ * <p>
+ * A failed poll or delivery is retried a few times with a growing pause, then the subscription ends.
+ */
+class PollingSubscription implements Subscription {
+    private static final long POLL_WAIT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 500;
+    private static final int MAX_ATTEMPTS = 4;
+
+    private final DealerInterface dealer;
+    private final ChangeFilter filter;
+    private final ChangeListener listener;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long sequence;
+    // Read by start() before the thread runs, delivered first
+    private ChangeBatch first;
+
+    /**
+     * @param afterSequence Sequence number of the last change the listener has, or one of the positions of
+     *                      {@link ChangeBatch}
+     */
+    PollingSubscription(DealerInterface dealer, ChangeFilter filter, long afterSequence, ChangeListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("A subscription needs a listener");
+        }
+        this.dealer = dealer;
+        this.filter = filter;
+        this.listener = listener;
+        sequence = afterSequence;
+        thread = new Thread(this::run, "polling-subscription");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Finds the end of the feed if the subscription starts there, then starts polling. The server finds the
+     * oldest change itself.
+     * @return This subscription
+     */
+    PollingSubscription start() throws RemoteException {
+        if (sequence < ChangeBatch.FROM_OLDEST) {
+            // Anything it returns was inserted after the call and is delivered like the batches that follow
+            first = dealer.getChanges(filter, ChangeBatch.FROM_NOW, 0, 0);
+            if (first.size() == 0) {
+                sequence = first.getLastSequence();
+                first = null;
+            }
+        }
+        thread.start();
+        return this;
+    }
+
+    @Override
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public boolean isActive() {
+        return running;
+    }
+
+    @Override
+    public void cancel() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        int attempt = 1;
+        ChangeBatch batch = first;
+        while (running) {
+            try {
+                if (batch == null) {
+                    batch = dealer.getChanges(filter, sequence, 0, POLL_WAIT_MILLIS);
+                }
+                if (batch.isReset() || batch.size() > 0) {
+                    listener.onChanges(batch);
+                }
+                sequence = batch.isReset() ? batch.getFeedSequence() : batch.getLastSequence();
+                batch = null;
+                attempt = 1;
+            } catch (RemoteException e) {
+                if (!running || attempt == MAX_ATTEMPTS) {
+                    break;
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS * attempt++);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+        running = false;
+    }
+}
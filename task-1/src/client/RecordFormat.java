@@ -0,0 +1,331 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Line oriented text format of the records handled by {@link BulkTransfer}: CSV with a header line naming the
+ * columns, or JSON lines with one flat object per line. A record is handled as the string values of a fixed
+ * list of columns, null for a missing value, so the format knows nothing about cars and receipts.
+ * <p>
+ * CSV fields may be quoted, with doubled quotes inside, but a record can't span several lines. Columns are
+ * matched by name in both formats, so their order doesn't matter and unknown columns are ignored.
+ */
+abstract class RecordFormat {
+    final String[] columns;
+
+    private RecordFormat(String[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @param name csv or jsonl
+     * @param columns Names of the columns of the records
+     */
+    static RecordFormat of(String name, String[] columns, Set<String> numericColumns) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "csv":
+                return new Csv(columns);
+            case "jsonl":
+            case "json":
+                return new JsonLines(columns, numericColumns);
+            default:
+                throw new IllegalArgumentException("Unknown format " + name + ", expected csv or jsonl");
+        }
+    }
+
+    /**
+     * @return The first line of a file, null if the format has none
+     */
+    abstract String header();
+
+    /**
+     * Reads the first line of a file if the format has a header.
+     * @throws IllegalArgumentException If the header is missing a column
+     */
+    abstract void readHeader(String line);
+
+    /**
+     * @return Values of the columns in column order
+     * @throws IllegalArgumentException If the line is malformed
+     */
+    abstract String[] parse(String line);
+
+    /**
+     * @param values Values of the columns in column order
+     * @return The line, without a line separator
+     */
+    abstract String format(String[] values);
+
+    private static final class Csv extends RecordFormat {
+        // Position of every column in the lines, taken from the header
+        private int[] positions;
+
+        Csv(String[] columns) {
+            super(columns);
+        }
+
+        @Override
+        String header() {
+            return String.join(",", columns);
+        }
+
+        @Override
+        void readHeader(String line) {
+            String[] names = parseFields(line);
+            Map<String, Integer> byName = new HashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                byName.putIfAbsent(names[i].trim().toLowerCase(Locale.ROOT), i);
+            }
+            positions = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                Integer position = byName.get(columns[i].toLowerCase(Locale.ROOT));
+                if (position == null) {
+                    throw new IllegalArgumentException("The header has no " + columns[i] + " column");
+                }
+                positions[i] = position;
+            }
+        }
+
+        @Override
+        String[] parse(String line) {
+            String[] fields = parseFields(line);
+            String[] values = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                if (positions[i] >= fields.length) {
+                    throw new IllegalArgumentException("Expected at least " + (positions[i] + 1) + " fields, found " + fields.length);
+                }
+                values[i] = fields[positions[i]];
+            }
+            return values;
+        }
+
+        private static String[] parseFields(String line) {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            int i = 0;
+            while (true) {
+                if (i < line.length() && line.charAt(i) == '"') {
+                    i++;
+                    while (true) {
+                        if (i == line.length()) {
+                            throw new IllegalArgumentException("Unterminated quoted field");
+                        }
+                        char c = line.charAt(i++);
+                        if (c == '"') {
+                            if (i < line.length() && line.charAt(i) == '"') {
+                                field.append('"');
+                                i++;
+                            } else {
+                                break;
+                            }
+                        } else {
+                            field.append(c);
+                        }
+                    }
+                    if (i < line.length() && line.charAt(i) != ',') {
+                        throw new IllegalArgumentException("Unexpected character after a quoted field at column " + (i + 1));
+                    }
+                } else {
+                    while (i < line.length() && line.charAt(i) != ',') {
+                        field.append(line.charAt(i++));
+                    }
+                }
+                fields.add(field.toString());
+                field.setLength(0);
+                if (i == line.length()) {
+                    return fields.toArray(new String[0]);
+                }
+                i++; // comma
+            }
+        }
+
+        @Override
+        String format(String[] values) {
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                String value = values[i] == null ? "" : values[i];
+                if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0) {
+                    line.append('"').append(value.replace("\"", "\"\"")).append('"');
+                } else {
+                    line.append(value);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    private static final class JsonLines extends RecordFormat {
+        private final Map<String, Integer> positions = new HashMap<>();
+        private final boolean[] numeric;
+
+        JsonLines(String[] columns, Set<String> numericColumns) {
+            super(columns);
+            numeric = new boolean[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                positions.put(columns[i], i);
+                numeric[i] = numericColumns.contains(columns[i]);
+            }
+        }
+
+        @Override
+        String header() {
+            return null;
+        }
+
+        @Override
+        void readHeader(String line) {
+        }
+
+        /**
+         * Reads a flat object, strings are unescaped and other values are kept as they are written.
+         */
+        @Override
+        String[] parse(String line) {
+            String[] values = new String[columns.length];
+            int[] at = {skipSpaces(line, 0)};
+            expect(line, at, '{');
+            if (peek(line, at) == '}') {
+                return values;
+            }
+            while (true) {
+                String key = readString(line, at);
+                expect(line, at, ':');
+                String value = peek(line, at) == '"' ? readString(line, at) : readLiteral(line, at);
+                Integer position = positions.get(key);
+                if (position != null) {
+                    values[position] = value;
+                }
+                char next = peek(line, at);
+                at[0]++;
+                if (next == '}') {
+                    return values;
+                }
+                if (next != ',') {
+                    throw new IllegalArgumentException("Expected , or } at column " + at[0]);
+                }
+            }
+        }
+
+        private static int skipSpaces(String line, int i) {
+            while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+
+        private static char peek(String line, int[] at) {
+            at[0] = skipSpaces(line, at[0]);
+            if (at[0] == line.length()) {
+                throw new IllegalArgumentException("Unexpected end of line");
+            }
+            return line.charAt(at[0]);
+        }
+
+        private static void expect(String line, int[] at, char c) {
+            if (peek(line, at) != c) {
+                throw new IllegalArgumentException("Expected " + c + " at column " + (at[0] + 1));
+            }
+            at[0]++;
+        }
+
+        private static String readString(String line, int[] at) {
+            expect(line, at, '"');
+            StringBuilder value = new StringBuilder();
+            int i = at[0];
+            while (true) {
+                if (i >= line.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char c = line.charAt(i++);
+                if (c == '"') {
+                    at[0] = i;
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (i >= line.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char escaped = line.charAt(i++);
+                switch (escaped) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (i + 4 > line.length()) {
+                            throw new IllegalArgumentException("Truncated \\u escape");
+                        }
+                        value.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+        }
+
+        /**
+         * @return A number or true or false as written, null for null
+         */
+        private static String readLiteral(String line, int[] at) {
+            int start = at[0];
+            int i = start;
+            while (i < line.length() && line.charAt(i) != ',' && line.charAt(i) != '}'
+                    && !Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                throw new IllegalArgumentException("Missing value at column " + (start + 1));
+            }
+            at[0] = i;
+            String literal = line.substring(start, i);
+            return literal.equals("null") ? null : literal;
+        }
+
+        @Override
+        String format(String[] values) {
+            StringBuilder line = new StringBuilder("{");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                line.append('"').append(columns[i]).append("\":");
+                if (values[i] == null) {
+                    line.append("null");
+                } else if (numeric[i]) {
+                    line.append(values[i]);
+                } else {
+                    appendString(line, values[i]);
+                }
+            }
+            return line.append('}').toString();
+        }
+
+        private static void appendString(StringBuilder line, String value) {
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c < 0x20) {
+                    line.append(String.format("\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+}
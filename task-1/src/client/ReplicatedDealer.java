@@ -0,0 +1,470 @@
+package client;
+
+import interfaces.Car;
+import interfaces.CarQuery;
+import interfaces.ChangeBatch;
+import interfaces.ChangeFilter;
+import interfaces.ChangeListener;
+import interfaces.DealerException;
+import interfaces.DealerInterface;
+import interfaces.DuplicateKeyException;
+import interfaces.InsertStatus;
+import interfaces.Page;
+import interfaces.Receipt;
+import interfaces.ReceiptQuery;
+import interfaces.RemoteIterator;
+import interfaces.ReplicationInterface;
+import interfaces.ReplicationStatus;
+import interfaces.SalesTotal;
+import interfaces.SearchHit;
+import interfaces.SearchQuery;
+import interfaces.Subscription;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the calls of a {@link DealerInterface} over a primary dealer and its read replicas. Writes go to
+ * the primary, reads go to a replica that is fresh enough and fall back to the primary when none is.
+ * <p>
+ * The role and position of every node is polled in the background, so a promoted replica takes the writes
+ * as soon as it reports being the primary. A replica is fresh enough while it is no further behind than the
+ * staleness bound. With read-your-writes the client also remembers the primary's position after each of its
+ * writes, and only reads from a replica once it has applied that position.
+ * <p>
+ * Lookups by key and the criteria queries are spread round-robin over the fresh replicas. Brand and vendor
+ * lists, paged queries and version stamps all stick to one replica, because continuation tokens are offsets
+ * into the node that gave them out and version stamps only compare within one node. Version stamps carry the
+ * index of the node in their low bits, so a cache notices when the client moved to another node.
+ * <p>
+ * Replication is asynchronous: writes the primary acknowledged but no replica applied yet are missing on
+ * a replica promoted after the primary died.
+ * <p>
+ * Usage: {@code java -classpath "out" client.ReplicatedDealer status node,node,...} prints the status of the
+ * nodes and {@code promote node [replica,replica,...]} promotes a replica and makes the other replicas follow it.
+ */
+public class ReplicatedDealer implements DealerInterface, AutoCloseable {
+    private static final long REFRESH_MILLIS = 100;
+    private static final int NODE_BITS = 8;
+
+    /**
+     * A dealer of the replica set and what is known of it.
+     */
+    private static final class Node {
+        final String name;
+        final int index;
+        volatile DealerInterface dealer;
+        // Null while the node is unreachable
+        volatile ReplicationStatus status;
+        volatile long statusMillis;
+
+        Node(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+
+    /**
+     * A call made on one node.
+     */
+    private interface NodeCall<T> {
+        T call(DealerInterface dealer) throws RemoteException;
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final long maxStalenessMillis;
+    private final boolean readYourWrites;
+    private final ScheduledExecutorService refresher;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile Node primary;
+    private volatile Node sticky;
+    // Position of the client's last write in the feed of the primary, guarded by this
+    private long writeFeedId;
+    private long writeSequence;
+
+    /**
+     * Looks up every node and starts polling their status.
+     * @param nodes Primary and replicas as host:port/name, in any order
+     * @param maxStalenessMillis How far behind the primary a replica may be to serve reads
+     * @param readYourWrites True to read from replicas only once they applied the client's writes
+     */
+    public ReplicatedDealer(List<String> nodes, long maxStalenessMillis, boolean readYourWrites) {
+        if (nodes.isEmpty() || nodes.size() > 1 << NODE_BITS) {
+            throw new IllegalArgumentException("A replica set has between 1 and " + (1 << NODE_BITS) + " nodes");
+        }
+        for (String node : new LinkedHashSet<>(nodes)) {
+            this.nodes.add(new Node(node, this.nodes.size()));
+        }
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.readYourWrites = readYourWrites;
+        refresh();
+        refresher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "replica-status");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, REFRESH_MILLIS, REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Polls the status of every node, picks the primary and drops the sticky replica if it is no longer fresh.
+     */
+    private void refresh() {
+        Node newPrimary = null;
+        for (Node node : nodes) {
+            try {
+                if (node.dealer == null) {
+                    node.dealer = ShardedDealer.lookup(node.name);
+                }
+                node.status = ((ReplicationInterface) node.dealer).getReplicationStatus();
+                node.statusMillis = System.currentTimeMillis();
+                if (node.status.isPrimary() && newPrimary == null) {
+                    newPrimary = node;
+                }
+            } catch (RemoteException | NotBoundException | ClassCastException e) {
+                node.status = null;
+                node.dealer = null;
+            }
+        }
+        if (newPrimary != primary && newPrimary != null) {
+            synchronized (this) {
+                // Positions in the old primary's feed mean nothing in the new one
+                writeFeedId = 0;
+                writeSequence = 0;
+            }
+        }
+        primary = newPrimary;
+        Node current = sticky;
+        if (current != null && !isFresh(current)) {
+            sticky = null;
+        }
+    }
+
+    /**
+     * @return True if the node is a replica that may serve reads
+     */
+    private boolean isFresh(Node node) {
+        ReplicationStatus status = node.status;
+        if (status == null || status.isPrimary() || node.dealer == null) {
+            return false;
+        }
+        // The status itself is as old as the last poll
+        long staleness = status.getLagMillis() + System.currentTimeMillis() - node.statusMillis;
+        if (staleness > maxStalenessMillis) {
+            return false;
+        }
+        if (readYourWrites) {
+            synchronized (this) {
+                if (writeSequence > 0 && (status.getFeedId() != writeFeedId || status.getSequence() < writeSequence)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Node requirePrimary() throws RemoteException {
+        Node node = primary;
+        if (node == null || node.dealer == null) {
+            throw new ConnectException("No primary among " + getNodes() + ", promote a replica");
+        }
+        return node;
+    }
+
+    /**
+     * @return The next fresh replica in round-robin order, or the primary if none is fresh
+     */
+    private Node anyReplica() throws RemoteException {
+        int start = next.getAndIncrement();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(Math.floorMod(start + i, nodes.size()));
+            if (isFresh(node)) {
+                return node;
+            }
+        }
+        return requirePrimary();
+    }
+
+    /**
+     * @return The replica reads that have to come from one node stick to, or the primary if none is fresh
+     */
+    private Node stickyReplica() throws RemoteException {
+        Node current = sticky;
+        if (current != null && isFresh(current)) {
+            return current;
+        }
+        List<Node> fresh = new ArrayList<>();
+        for (Node node : nodes) {
+            if (isFresh(node)) {
+                fresh.add(node);
+            }
+        }
+        if (fresh.isEmpty()) {
+            return requirePrimary();
+        }
+        // Clients pick at random so that they spread over the replicas
+        current = fresh.get(ThreadLocalRandom.current().nextInt(fresh.size()));
+        sticky = current;
+        return current;
+    }
+
+    /**
+     * Runs a read on a node, or on the primary if the node is an unreachable replica.
+     */
+    private <T> T read(Node node, NodeCall<T> call) throws RemoteException {
+        DealerInterface dealer = node.dealer;
+        try {
+            if (dealer != null) {
+                return call.call(dealer);
+            }
+        } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+            if (node == primary) {
+                throw e;
+            }
+            node.status = null;
+        }
+        return call.call(requirePrimary().dealer);
+    }
+
+    private <T> T write(NodeCall<T> call) throws RemoteException {
+        Node node = requirePrimary();
+        T result = call.call(node.dealer);
+        noteWrite(node);
+        return result;
+    }
+
+    /**
+     * Remembers the position of the primary after a write, so that later reads wait for a replica to reach it.
+     */
+    private void noteWrite(Node node) throws RemoteException {
+        if (readYourWrites) {
+            ReplicationStatus status = ((ReplicationInterface) node.dealer).getReplicationStatus();
+            synchronized (this) {
+                if (status.getFeedId() != writeFeedId) {
+                    writeFeedId = status.getFeedId();
+                    writeSequence = 0;
+                }
+                writeSequence = Math.max(writeSequence, status.getSequence());
+            }
+        }
+    }
+
+    /**
+     * @return A version stamp of the sticky node, with the node's index in the low bits
+     */
+    private long readVersion(NodeCall<Long> call) throws RemoteException {
+        Node node = stickyReplica();
+        DealerInterface dealer = node.dealer;
+        try {
+            if (dealer != null) {
+                return call.call(dealer) << NODE_BITS | node.index;
+            }
+        } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+            if (node == primary) {
+                throw e;
+            }
+            node.status = null;
+        }
+        node = requirePrimary();
+        return call.call(node.dealer) << NODE_BITS | node.index;
+    }
+
+    /**
+     * @return The nodes in the order they were given
+     */
+    public List<String> getNodes() {
+        List<String> names = new ArrayList<>();
+        for (Node node : nodes) {
+            names.add(node.name);
+        }
+        return names;
+    }
+
+    /**
+     * @return The last known status of every node, null for the unreachable ones
+     */
+    public Map<String, ReplicationStatus> getStatuses() {
+        Map<String, ReplicationStatus> statuses = new LinkedHashMap<>();
+        for (Node node : nodes) {
+            statuses.put(node.name, node.status);
+        }
+        return statuses;
+    }
+
+    @Override
+    public Car findCarBySerialNumber(String serialNumber) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.findCarBySerialNumber(serialNumber));
+    }
+
+    @Override
+    public List<Car> findCarsByBrand(String brand) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.findCarsByBrand(brand));
+    }
+
+    @Override
+    public void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws DuplicateKeyException, RemoteException {
+        // Not through write, whose calls only throw RemoteExceptions
+        Node node = requirePrimary();
+        node.dealer.createCar(serialNumber, brand, model, color, year, price, weight);
+        noteWrite(node);
+    }
+
+    @Override
+    public Receipt findReceiptById(String id) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.findReceiptById(id));
+    }
+
+    @Override
+    public List<Receipt> getReceiptsByVendor(String vendor) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.getReceiptsByVendor(vendor));
+    }
+
+    @Override
+    public void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws DealerException, RemoteException {
+        Node node = requirePrimary();
+        node.dealer.createReceipt(ID, vendor, carSerialNumber, date);
+        noteWrite(node);
+    }
+
+    @Override
+    public List<InsertStatus> createCars(List<Car> cars) throws RemoteException {
+        return write(dealer -> dealer.createCars(cars));
+    }
+
+    @Override
+    public List<InsertStatus> createReceipts(List<Receipt> receipts) throws RemoteException {
+        return write(dealer -> dealer.createReceipts(receipts));
+    }
+
+    @Override
+    public Map<String, Car> findCarsBySerialNumbers(Collection<String> serialNumbers) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.findCarsBySerialNumbers(serialNumbers));
+    }
+
+    @Override
+    public Map<String, Receipt> findReceiptsByIds(Collection<String> ids) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.findReceiptsByIds(ids));
+    }
+
+    @Override
+    public Page<Car> findCarsByBrand(String brand, int limit, String continuationToken) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.findCarsByBrand(brand, limit, continuationToken));
+    }
+
+    @Override
+    public Page<Receipt> getReceiptsByVendor(String vendor, int limit, String continuationToken) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.getReceiptsByVendor(vendor, limit, continuationToken));
+    }
+
+    @Override
+    public RemoteIterator<Car> iterateCarsByBrand(String brand) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.iterateCarsByBrand(brand));
+    }
+
+    @Override
+    public RemoteIterator<Receipt> iterateReceiptsByVendor(String vendor) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.iterateReceiptsByVendor(vendor));
+    }
+
+    @Override
+    public Page<Car> getCars(int limit, String continuationToken) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.getCars(limit, continuationToken));
+    }
+
+    @Override
+    public Page<Receipt> getReceipts(int limit, String continuationToken) throws RemoteException {
+        return read(stickyReplica(), dealer -> dealer.getReceipts(limit, continuationToken));
+    }
+
+    @Override
+    public List<Car> findCars(CarQuery query) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.findCars(query));
+    }
+
+    @Override
+    public List<Receipt> findReceipts(ReceiptQuery query) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.findReceipts(query));
+    }
+
+    @Override
+    public List<SearchHit> search(SearchQuery query) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.search(query));
+    }
+
+    @Override
+    public long getBrandVersion(String brand) throws RemoteException {
+        return readVersion(dealer -> dealer.getBrandVersion(brand));
+    }
+
+    @Override
+    public long getVendorVersion(String vendor) throws RemoteException {
+        return readVersion(dealer -> dealer.getVendorVersion(vendor));
+    }
+
+    /**
+     * Sequence numbers are those of one node's log, so change feeds are always read from the primary.
+     */
+    @Override
+    public ChangeBatch getChanges(ChangeFilter filter, long afterSequence, int maxRecords, long waitMillis) throws RemoteException {
+        return requirePrimary().dealer.getChanges(filter, afterSequence, maxRecords, waitMillis);
+    }
+
+    @Override
+    public Subscription subscribe(ChangeFilter filter, long afterSequence, ChangeListener listener) throws RemoteException {
+        return requirePrimary().dealer.subscribe(filter, afterSequence, listener);
+    }
+
+    @Override
+    public List<SalesTotal> getRevenueByVendor() throws RemoteException {
+        return read(anyReplica(), DealerInterface::getRevenueByVendor);
+    }
+
+    @Override
+    public Map<String, List<SalesTotal>> getSalesByBrandPerMonth() throws RemoteException {
+        return read(anyReplica(), DealerInterface::getSalesByBrandPerMonth);
+    }
+
+    @Override
+    public List<SalesTotal> getTopModels(int n) throws RemoteException {
+        return read(anyReplica(), dealer -> dealer.getTopModels(n));
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("status") || args[0].equals("promote"))) {
+            System.err.println("Usage: ReplicatedDealer status node,node,... | promote node [replica,replica,...]");
+            System.exit(1);
+        }
+        if (args[0].equals("status")) {
+            for (String node : args[1].split(",")) {
+                try {
+                    System.out.println(node + ": " + ((ReplicationInterface) ShardedDealer.lookup(node)).getReplicationStatus());
+                } catch (RemoteException | NotBoundException e) {
+                    System.out.println(node + ": unreachable, " + e);
+                }
+            }
+            return;
+        }
+        ((ReplicationInterface) ShardedDealer.lookup(args[1])).promote();
+        System.out.println(args[1] + " promoted to primary");
+        if (args.length > 2) {
+            for (String replica : args[2].split(",")) {
+                ((ReplicationInterface) ShardedDealer.lookup(replica)).follow(args[1]);
+                System.out.println(replica + " now follows " + args[1]);
+            }
+        }
+    }
+}
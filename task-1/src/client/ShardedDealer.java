@@ -0,0 +1,809 @@
+package client;
+
+import interfaces.*;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Routes the calls of a {@link DealerInterface} to the nodes of a cluster of dealers, each of them an ordinary
+ * server with its own port, registry name and data directory.
+ * <p>
+ * Cars are partitioned by serial number and receipts by id over a {@link HashRing}. Point lookups and inserts go
+ * to the node owning the key, batches are split by node and sent in parallel. Brand and vendor queries, the
+ * criteria queries and the version stamps are sent to every node in parallel and the results merged. Paged
+ * queries walk the nodes one after the other, the continuation token naming the node and its own token.
+ * <p>
+ * Records are never deleted, so after a rebalance the nodes that handed records over still have their copies.
+ * Every result is therefore filtered: a node only answers for the records it owns under the current ring.
+ * The sales reports need receipts and cars that live on different nodes, they are computed here from the
+ * receipts of every node and the cars they sold, which is fine for occasional reporting.
+ * <p>
+ * Nodes are named {@code host:port/name}. All the clients of a cluster must use the same node list, after
+ * adding or removing a node with this class the other clients have to be started with the new list.
+ * <p>
+ * Usage: {@code java -classpath "out" client.ShardedDealer --nodes node,node,... add|remove node} rebalances a
+ * cluster, for instance {@code --nodes localhost:4444/Dealer,localhost:4447/Dealer2 add localhost:4448/Dealer3}.
+ */
+public class ShardedDealer implements DealerInterface, AutoCloseable {
+    private static final int SCAN_PAGE_SIZE = 1000;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    /**
+     * The nodes of the cluster and how keys map to them, replaced as a whole when a node is added or removed.
+     */
+    private static final class Shards {
+        final HashRing ring;
+        final Map<String, DealerInterface> dealers;
+        // Added to the version stamps, so cached results are dropped when records change owner
+        final long generation;
+
+        Shards(HashRing ring, Map<String, DealerInterface> dealers, long generation) {
+            this.ring = ring;
+            this.dealers = dealers;
+            this.generation = generation;
+        }
+
+        DealerInterface ownerOf(String key) {
+            return dealers.get(ring.ownerOf(key));
+        }
+
+        /**
+         * @return The records of a node's answer that the node owns
+         */
+        <T> List<T> owned(String node, List<T> records, Function<T, String> keyOf) {
+            List<T> owned = new ArrayList<>(records.size());
+            for (T record : records) {
+                if (ring.ownerOf(keyOf.apply(record)).equals(node)) {
+                    owned.add(record);
+                }
+            }
+            return owned;
+        }
+    }
+
+    /**
+     * A call made on one node.
+     */
+    private interface ShardCall<T> {
+        T call(String node, DealerInterface dealer) throws RemoteException;
+    }
+
+    /**
+     * A criteria query made on one node with the given limit.
+     */
+    private interface LimitedCall<T> {
+        List<T> call(DealerInterface dealer, int limit) throws RemoteException;
+    }
+
+    /**
+     * A paged query made on one node.
+     */
+    private interface PagedCall<T> {
+        Page<T> call(DealerInterface dealer, int limit, String continuationToken) throws RemoteException;
+    }
+
+    private final ExecutorService executor;
+    private volatile Shards shards;
+
+    /**
+     * Looks up every node in its registry.
+     * @param nodes Nodes of the cluster as host:port/name
+     */
+    public ShardedDealer(List<String> nodes) throws RemoteException, NotBoundException {
+        Map<String, DealerInterface> dealers = new LinkedHashMap<>();
+        for (String node : nodes) {
+            dealers.put(node, lookup(node));
+        }
+        shards = new Shards(new HashRing(dealers.keySet()), dealers, 0);
+        executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "shard-call");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static DealerInterface lookup(String node) throws RemoteException, NotBoundException {
+        int colon = node.lastIndexOf(':');
+        int slash = node.indexOf('/', colon);
+        if (colon < 0 || slash < 0) {
+            throw new IllegalArgumentException("Node " + node + " is not host:port/name");
+        }
+        return (DealerInterface) LocateRegistry.getRegistry(node.substring(0, colon),
+                Integer.parseInt(node.substring(colon + 1, slash))).lookup(node.substring(slash + 1));
+    }
+
+    /**
+     * @return The nodes of the cluster
+     */
+    public List<String> getNodes() {
+        return shards.ring.getNodes();
+    }
+
+    /**
+     * Makes a call on the given nodes in parallel.
+     * @return The result of every node, in the order of the nodes
+     */
+    private <T> Map<String, T> scatter(Shards shards, Collection<String> nodes, ShardCall<T> call) throws RemoteException {
+        Map<String, T> results = new LinkedHashMap<>();
+        if (nodes.size() == 1) {
+            String node = nodes.iterator().next();
+            results.put(node, call.call(node, shards.dealers.get(node)));
+            return results;
+        }
+        Map<String, CompletableFuture<T>> calls = new LinkedHashMap<>();
+        for (String node : nodes) {
+            calls.put(node, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call(node, shards.dealers.get(node));
+                } catch (RemoteException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        for (Map.Entry<String, CompletableFuture<T>> entry : calls.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RemoteException) {
+                    throw (RemoteException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RemoteException("Call to node " + entry.getKey() + " failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Makes a call on every node and concatenates the records each of them owns.
+     */
+    private <T> List<T> gather(Shards shards, ShardCall<List<T>> call, Function<T, String> keyOf) throws RemoteException {
+        List<T> merged = new ArrayList<>();
+        for (Map.Entry<String, List<T>> result : scatter(shards, shards.ring.getNodes(), call).entrySet()) {
+            merged.addAll(shards.owned(result.getKey(), result.getValue(), keyOf));
+        }
+        return merged;
+    }
+
+    /**
+     * Makes a query on every node and concatenates the records each of them owns. Copies left behind by a
+     * rebalance take up the limit of a node, so a node that filled its limit without owning that many records
+     * is asked again for twice as many, until it owns enough, runs out of records or returns no more than before.
+     * @param limit Number of owned records wanted from every node, 0 for whatever the nodes allow
+     */
+    private <T> List<T> gather(Shards shards, LimitedCall<T> call, Function<T, String> keyOf, int limit)
+            throws RemoteException {
+        List<T> merged = new ArrayList<>();
+        for (List<T> owned : scatter(shards, shards.ring.getNodes(), (node, dealer) -> {
+            int asked = limit;
+            List<T> records = call.call(dealer, asked);
+            List<T> nodeOwned = shards.owned(node, records, keyOf);
+            while (limit > 0 && nodeOwned.size() < limit && records.size() == asked && asked <= Integer.MAX_VALUE / 2) {
+                asked *= 2;
+                List<T> more = call.call(dealer, asked);
+                if (more.size() <= records.size()) {
+                    break;
+                }
+                records = more;
+                nodeOwned = shards.owned(node, records, keyOf);
+            }
+            return nodeOwned;
+        }).values()) {
+            merged.addAll(owned);
+        }
+        return merged;
+    }
+
+    /**
+     * Splits keys by the node owning them, keeping their order.
+     * @return The positions of the keys of every node
+     */
+    private static Map<String, List<Integer>> groupByOwner(Shards shards, List<String> keys) {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            groups.computeIfAbsent(shards.ring.ownerOf(keys.get(i)), node -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    /**
+     * Walks a paged query over the nodes one after the other. The continuation token is the index of the
+     * node followed by the node's own token.
+     */
+    private <T> Page<T> pageAcross(PagedCall<T> call, Function<T, String> keyOf, int limit, String continuationToken)
+            throws RemoteException {
+        Shards shards = this.shards;
+        List<String> nodes = shards.ring.getNodes();
+        int index = 0;
+        String nodeToken = null;
+        if (continuationToken != null) {
+            int colon = continuationToken.indexOf(':');
+            try {
+                index = Integer.parseInt(continuationToken.substring(0, Math.max(colon, 0)));
+            } catch (NumberFormatException e) {
+                index = -1;
+            }
+            if (colon < 0 || index < 0 || index >= nodes.size()) {
+                throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+            }
+            nodeToken = colon == continuationToken.length() - 1 ? null : continuationToken.substring(colon + 1);
+        }
+        while (true) {
+            String node = nodes.get(index);
+            Page<T> page = call.call(shards.dealers.get(node), limit, nodeToken);
+            List<T> items = shards.owned(node, page.getItems(), keyOf);
+            String next;
+            if (page.hasMore()) {
+                next = index + ":" + page.getContinuationToken();
+            } else if (index + 1 < nodes.size()) {
+                next = (index + 1) + ":";
+            } else {
+                next = null;
+            }
+            // Skip pages left empty by the filter rather than handing them out
+            if (!items.isEmpty() || next == null) {
+                return new Page<>(items, next);
+            }
+            if (page.hasMore()) {
+                nodeToken = page.getContinuationToken();
+            } else {
+                index++;
+                nodeToken = null;
+            }
+        }
+    }
+
+    @Override
+    public Car findCarBySerialNumber(String serialNumber) throws RemoteException {
+        return shards.ownerOf(serialNumber).findCarBySerialNumber(serialNumber);
+    }
+
+    @Override
+    public List<Car> findCarsByBrand(String brand) throws RemoteException {
+        return gather(shards, (node, dealer) -> dealer.findCarsByBrand(brand), Car::getSerialNumber);
+    }
+
+    @Override
+    public void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws DuplicateKeyException, RemoteException {
+        shards.ownerOf(serialNumber).createCar(serialNumber, brand, model, color, year, price, weight);
+    }
+
+    @Override
+    public Receipt findReceiptById(String id) throws RemoteException {
+        return shards.ownerOf(id).findReceiptById(id);
+    }
+
+    @Override
+    public List<Receipt> getReceiptsByVendor(String vendor) throws RemoteException {
+        return gather(shards, (node, dealer) -> dealer.getReceiptsByVendor(vendor), Receipt::getID);
+    }
+
+    @Override
+    public void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws DealerException, RemoteException {
+        shards.ownerOf(ID).createReceipt(ID, vendor, carSerialNumber, date);
+    }
+
+    @Override
+    public List<InsertStatus> createCars(List<Car> cars) throws RemoteException {
+        List<String> keys = new ArrayList<>(cars.size());
+        for (Car car : cars) {
+            keys.add(car.getSerialNumber());
+        }
+        return insertByOwner(keys, cars, DealerInterface::createCars);
+    }
+
+    @Override
+    public List<InsertStatus> createReceipts(List<Receipt> receipts) throws RemoteException {
+        List<String> keys = new ArrayList<>(receipts.size());
+        for (Receipt receipt : receipts) {
+            keys.add(receipt.getID());
+        }
+        return insertByOwner(keys, receipts, DealerInterface::createReceipts);
+    }
+
+    private interface BatchInsert<T> {
+        List<InsertStatus> insert(DealerInterface dealer, List<T> records) throws RemoteException;
+    }
+
+    /**
+     * Sends every node the records it owns in one batch, all nodes in parallel.
+     * @return The statuses in the order of the records
+     */
+    private <T> List<InsertStatus> insertByOwner(List<String> keys, List<T> records, BatchInsert<T> insert) throws RemoteException {
+        Shards shards = this.shards;
+        Map<String, List<Integer>> groups = groupByOwner(shards, keys);
+        Map<String, List<InsertStatus>> results = scatter(shards, groups.keySet(), (node, dealer) -> {
+            List<T> batch = new ArrayList<>();
+            for (int i : groups.get(node)) {
+                batch.add(records.get(i));
+            }
+            return insert.insert(dealer, batch);
+        });
+        InsertStatus[] statuses = new InsertStatus[records.size()];
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            List<InsertStatus> nodeStatuses = results.get(group.getKey());
+            for (int i = 0; i < group.getValue().size(); i++) {
+                statuses[group.getValue().get(i)] = nodeStatuses.get(i);
+            }
+        }
+        return Arrays.asList(statuses);
+    }
+
+    @Override
+    public Map<String, Car> findCarsBySerialNumbers(Collection<String> serialNumbers) throws RemoteException {
+        return findByOwner(new ArrayList<>(serialNumbers), DealerInterface::findCarsBySerialNumbers);
+    }
+
+    @Override
+    public Map<String, Receipt> findReceiptsByIds(Collection<String> ids) throws RemoteException {
+        return findByOwner(new ArrayList<>(ids), DealerInterface::findReceiptsByIds);
+    }
+
+    private interface BatchFind<T> {
+        Map<String, T> find(DealerInterface dealer, Collection<String> keys) throws RemoteException;
+    }
+
+    /**
+     * Asks every node for the keys it owns, all nodes in parallel.
+     * @return The records found, in the order of the keys
+     */
+    private <T> Map<String, T> findByOwner(List<String> keys, BatchFind<T> find) throws RemoteException {
+        Shards shards = this.shards;
+        Map<String, List<Integer>> groups = groupByOwner(shards, keys);
+        Map<String, Map<String, T>> results = scatter(shards, groups.keySet(), (node, dealer) -> {
+            List<String> nodeKeys = new ArrayList<>();
+            for (int i : groups.get(node)) {
+                nodeKeys.add(keys.get(i));
+            }
+            return find.find(dealer, nodeKeys);
+        });
+        Map<String, T> found = new LinkedHashMap<>();
+        for (String key : keys) {
+            T record = results.get(shards.ring.ownerOf(key)).get(key);
+            if (record != null) {
+                found.put(key, record);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Page<Car> findCarsByBrand(String brand, int limit, String continuationToken) throws RemoteException {
+        return pageAcross((dealer, pageLimit, token) -> dealer.findCarsByBrand(brand, pageLimit, token),
+                Car::getSerialNumber, limit, continuationToken);
+    }
+
+    @Override
+    public Page<Receipt> getReceiptsByVendor(String vendor, int limit, String continuationToken) throws RemoteException {
+        return pageAcross((dealer, pageLimit, token) -> dealer.getReceiptsByVendor(vendor, pageLimit, token),
+                Receipt::getID, limit, continuationToken);
+    }
+
+    @Override
+    public RemoteIterator<Car> iterateCarsByBrand(String brand) {
+        return new PagingIterator<>((limit, token) -> findCarsByBrand(brand, limit, token));
+    }
+
+    @Override
+    public RemoteIterator<Receipt> iterateReceiptsByVendor(String vendor) {
+        return new PagingIterator<>((limit, token) -> getReceiptsByVendor(vendor, limit, token));
+    }
+
+    @Override
+    public Page<Car> getCars(int limit, String continuationToken) throws RemoteException {
+        return pageAcross(DealerInterface::getCars, Car::getSerialNumber, limit, continuationToken);
+    }
+
+    @Override
+    public Page<Receipt> getReceipts(int limit, String continuationToken) throws RemoteException {
+        return pageAcross(DealerInterface::getReceipts, Receipt::getID, limit, continuationToken);
+    }
+
+    @Override
+    public List<Car> findCars(CarQuery query) throws RemoteException {
+        List<Car> cars = gather(shards, (dealer, limit) -> dealer.findCars(withLimit(query, limit)), Car::getSerialNumber,
+                query.getLimit());
+        if (query.getSortField() != null) {
+            Comparator<Car> order;
+            switch (query.getSortField()) {
+                case PRICE:
+                    order = Comparator.comparingDouble(Car::getPrice);
+                    break;
+                case YEAR:
+                    order = Comparator.comparingDouble(Car::getYear);
+                    break;
+                default:
+                    order = Comparator.comparingDouble(Car::getWeight);
+            }
+            cars.sort(query.isDescending() ? order.reversed() : order);
+        }
+        return limit(cars, query.getLimit());
+    }
+
+    @Override
+    public List<Receipt> findReceipts(ReceiptQuery query) throws RemoteException {
+        List<Receipt> receipts = gather(shards, (dealer, limit) -> dealer.findReceipts(withLimit(query, limit)),
+                Receipt::getID, query.getLimit());
+        if (query.isSortedByDate()) {
+            // Same order as the server, which leaves out the receipts without a date
+            Comparator<Receipt> order = Comparator.comparingLong(receipt -> receipt.getDate().getTime());
+            receipts.sort(query.isDescending() ? order.reversed() : order);
+        }
+        return limit(receipts, query.getLimit());
+    }
+
+    /**
+     * Adds up the hits of a value across the nodes, each node knowing only the records it holds. A value just
+     * outside the top hits of some node is counted without that node's records, which only affects the
+     * ranking of values that are close anyway.
+     * <p>
+     * The counts of the nodes include the copies left behind by a rebalance, so the top hits are counted again
+     * from the records every node owns, and ranked again.
+     */
+    @Override
+    public List<SearchHit> search(SearchQuery query) throws RemoteException {
+        Shards shards = this.shards;
+        Map<List<Object>, SearchHit> merged = new HashMap<>();
+        Map<List<Object>, Map<String, Long>> nodeRecords = new HashMap<>();
+        for (Map.Entry<String, List<SearchHit>> result : scatter(shards, shards.ring.getNodes(),
+                (node, dealer) -> dealer.search(query)).entrySet()) {
+            for (SearchHit hit : result.getValue()) {
+                List<Object> key = Arrays.asList(hit.getField(), hit.getValue().toLowerCase(Locale.ROOT));
+                merged.merge(key, hit, (first, other) -> new SearchHit(first.getField(), first.getValue(),
+                        first.getRecords() + other.getRecords(), Math.min(first.getEdits(), other.getEdits())));
+                nodeRecords.computeIfAbsent(key, k -> new HashMap<>()).put(result.getKey(), hit.getRecords());
+            }
+        }
+        List<SearchHit> hits = new ArrayList<>(merged.values());
+        hits.sort(SearchHit.RANKING);
+        hits = limit(hits, query.getLimit());
+        List<SearchHit> owned = new ArrayList<>(hits.size());
+        for (SearchHit hit : hits) {
+            Map<String, Long> records = nodeRecords.get(Arrays.asList(hit.getField(), hit.getValue().toLowerCase(Locale.ROOT)));
+            long count = 0;
+            for (long nodeCount : scatter(shards, records.keySet(),
+                    (node, dealer) -> ownedRecords(shards, node, dealer, hit, records.get(node))).values()) {
+                count += nodeCount;
+            }
+            if (count > 0) {
+                owned.add(new SearchHit(hit.getField(), hit.getValue(), count, hit.getEdits()));
+            }
+        }
+        owned.sort(SearchHit.RANKING);
+        return owned;
+    }
+
+    /**
+     * Counts the records of a hit that a node owns by reading them with a criteria query. If the node holds
+     * more of them than it returns in one answer, the count is estimated from the share it owns of those returned.
+     * @param records Number of records the node counted
+     */
+    private static long ownedRecords(Shards shards, String node, DealerInterface dealer, SearchHit hit, long records)
+            throws RemoteException {
+        int limit = (int) Math.min(records, Integer.MAX_VALUE);
+        List<?> found;
+        int owned;
+        if (hit.getField() == SearchQuery.Field.VENDOR) {
+            List<Receipt> receipts = dealer.findReceipts(new ReceiptQuery().vendor(hit.getValue()).limit(limit));
+            found = receipts;
+            owned = shards.owned(node, receipts, Receipt::getID).size();
+        } else {
+            CarQuery carQuery = new CarQuery().limit(limit);
+            switch (hit.getField()) {
+                case BRAND:
+                    carQuery.brand(hit.getValue());
+                    break;
+                case MODEL:
+                    carQuery.model(hit.getValue());
+                    break;
+                default:
+                    carQuery.color(hit.getValue());
+            }
+            List<Car> cars = dealer.findCars(carQuery);
+            found = cars;
+            owned = shards.owned(node, cars, Car::getSerialNumber).size();
+        }
+        if (found.isEmpty() || found.size() >= records) {
+            return owned;
+        }
+        return Math.round((double) owned * records / found.size());
+    }
+
+    private static CarQuery withLimit(CarQuery query, int limit) {
+        return new CarQuery().brand(query.getBrand()).model(query.getModel()).color(query.getColor())
+                .price(query.getMinPrice(), query.getMaxPrice()).year(query.getMinYear(), query.getMaxYear())
+                .weight(query.getMinWeight(), query.getMaxWeight()).sortBy(query.getSortField(), query.isDescending())
+                .limit(limit);
+    }
+
+    private static ReceiptQuery withLimit(ReceiptQuery query, int limit) {
+        ReceiptQuery copy = new ReceiptQuery().vendor(query.getVendor()).carSerialNumber(query.getCarSerialNumber())
+                .date(query.getFrom(), query.getTo()).limit(limit);
+        return query.isSortedByDate() ? copy.sortByDate(query.isDescending()) : copy;
+    }
+
+    /**
+     * Every node applies the limit, so the merged results may hold up to a limit per node.
+     */
+    private static <T> List<T> limit(List<T> records, int limit) {
+        return limit > 0 && records.size() > limit ? new ArrayList<>(records.subList(0, limit)) : records;
+    }
+
+    /**
+     * The stamps of the nodes only grow, so their sum changes whenever one of them does.
+     */
+    @Override
+    public long getBrandVersion(String brand) throws RemoteException {
+        Shards shards = this.shards;
+        long version = shards.generation;
+        for (long nodeVersion : scatter(shards, shards.ring.getNodes(), (node, dealer) -> dealer.getBrandVersion(brand)).values()) {
+            version += nodeVersion;
+        }
+        return version;
+    }
+
+    @Override
+    public long getVendorVersion(String vendor) throws RemoteException {
+        Shards shards = this.shards;
+        long version = shards.generation;
+        for (long nodeVersion : scatter(shards, shards.ring.getNodes(), (node, dealer) -> dealer.getVendorVersion(vendor)).values()) {
+            version += nodeVersion;
+        }
+        return version;
+    }
+
+    @Override
+    public ChangeBatch getChanges(ChangeFilter filter, long afterSequence, int maxRecords, long waitMillis) throws RemoteException {
+        throw new RemoteException("Change feeds are per node, read the changes of each node of the cluster");
+    }
+
+    @Override
+    public Subscription subscribe(ChangeFilter filter, long afterSequence, ChangeListener listener) throws RemoteException {
+        throw new RemoteException("Change feeds are per node, subscribe to each node of the cluster");
+    }
+
+    @Override
+    public List<SalesTotal> getRevenueByVendor() throws RemoteException {
+        return computeReports().getRevenueByVendor();
+    }
+
+    @Override
+    public Map<String, List<SalesTotal>> getSalesByBrandPerMonth() throws RemoteException {
+        return computeReports().getSalesByBrandPerMonth();
+    }
+
+    @Override
+    public List<SalesTotal> getTopModels(int n) throws RemoteException {
+        return computeReports().getTopModels(n);
+    }
+
+    /**
+     * Fetches every receipt and the cars they sold and joins them, the same way the server does.
+     */
+    private Reports computeReports() throws RemoteException {
+        List<Receipt> receipts = new ArrayList<>();
+        String token = null;
+        do {
+            Page<Receipt> page = getReceipts(SCAN_PAGE_SIZE, token);
+            receipts.addAll(page.getItems());
+            token = page.getContinuationToken();
+        } while (token != null);
+        Set<String> serialNumbers = new HashSet<>();
+        for (Receipt receipt : receipts) {
+            if (receipt.getCarSerialNumber() != null) {
+                serialNumbers.add(receipt.getCarSerialNumber());
+            }
+        }
+        Map<String, Car> cars = findCarsBySerialNumbers(serialNumbers);
+        Reports reports = new Reports();
+        for (Receipt receipt : receipts) {
+            Car car = receipt.getCarSerialNumber() == null ? null : cars.get(receipt.getCarSerialNumber());
+            if (car != null) {
+                reports.join(receipt, car);
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Sales totals of the whole cluster, with the names and orders of the server's reports.
+     */
+    private static final class Reports {
+        private static final class Total {
+            final String name;
+            long count;
+            double revenue;
+
+            Total(String name) {
+                this.name = name;
+            }
+
+            SalesTotal toSalesTotal() {
+                return new SalesTotal(name, count, revenue);
+            }
+        }
+
+        private final Map<String, Total> byVendor = new HashMap<>();
+        private final Map<String, String> brandNames = new HashMap<>();
+        private final Map<String, TreeMap<Integer, Total>> byBrand = new HashMap<>();
+        private final Map<String, Total> byModel = new HashMap<>();
+
+        private static String fold(String name) {
+            return name == null ? "" : name.toLowerCase(Locale.ROOT);
+        }
+
+        private static void add(Total total, double price) {
+            total.count++;
+            total.revenue += price;
+        }
+
+        void join(Receipt receipt, Car car) {
+            double price = car.getPrice();
+            add(byVendor.computeIfAbsent(fold(receipt.getVendor()), key -> new Total(receipt.getVendor())), price);
+            add(byModel.computeIfAbsent(fold(car.getBrand()) + '\0' + fold(car.getModel()),
+                    key -> new Total(car.getBrand() + " " + car.getModel())), price);
+            if (receipt.getDate() != null) {
+                LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(receipt.getDate().getTime(), MILLIS_PER_DAY));
+                String brand = fold(car.getBrand());
+                brandNames.putIfAbsent(brand, car.getBrand());
+                add(byBrand.computeIfAbsent(brand, key -> new TreeMap<>()).computeIfAbsent(
+                        day.getYear() * 12 + day.getMonthValue() - 1,
+                        key -> new Total(String.format("%04d-%02d", day.getYear(), day.getMonthValue()))), price);
+            }
+        }
+
+        List<SalesTotal> getRevenueByVendor() {
+            List<SalesTotal> totals = new ArrayList<>(byVendor.size());
+            for (Total total : byVendor.values()) {
+                totals.add(total.toSalesTotal());
+            }
+            totals.sort(Comparator.comparingDouble(SalesTotal::getRevenue).reversed());
+            return totals;
+        }
+
+        Map<String, List<SalesTotal>> getSalesByBrandPerMonth() {
+            Map<String, List<SalesTotal>> sales = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, TreeMap<Integer, Total>> brand : byBrand.entrySet()) {
+                List<SalesTotal> totals = new ArrayList<>(brand.getValue().size());
+                for (Total total : brand.getValue().values()) {
+                    totals.add(total.toSalesTotal());
+                }
+                sales.put(String.valueOf(brandNames.get(brand.getKey())), totals);
+            }
+            return sales;
+        }
+
+        List<SalesTotal> getTopModels(int n) {
+            List<Total> models = new ArrayList<>(byModel.values());
+            models.sort(Comparator.<Total>comparingLong(total -> total.count)
+                    .thenComparingDouble(total -> total.revenue).reversed());
+            List<SalesTotal> totals = new ArrayList<>(Math.min(n, models.size()));
+            for (Total total : models.subList(0, Math.max(0, Math.min(n, models.size())))) {
+                totals.add(total.toSalesTotal());
+            }
+            return totals;
+        }
+    }
+
+    /**
+     * Adds a node to the cluster and moves to it the records it takes over.
+     * @param node The new node as host:port/name, its dealer must be running
+     * @return Number of records copied to the node
+     */
+    public synchronized long addNode(String node) throws RemoteException, NotBoundException {
+        Shards current = shards;
+        if (current.dealers.containsKey(node)) {
+            throw new IllegalArgumentException("Node " + node + " is already in the cluster");
+        }
+        Map<String, DealerInterface> dealers = new LinkedHashMap<>(current.dealers);
+        dealers.put(node, lookup(node));
+        return rebalance(current, new Shards(new HashRing(dealers.keySet()), dealers, current.generation + 1));
+    }
+
+    /**
+     * Removes a node from the cluster after moving its records to the nodes that take them over.
+     * The node must still be running, it can be stopped once this returns.
+     * @param node The node as host:port/name
+     * @return Number of records copied from the node
+     */
+    public synchronized long removeNode(String node) throws RemoteException {
+        Shards current = shards;
+        if (!current.dealers.containsKey(node)) {
+            throw new IllegalArgumentException("Node " + node + " is not in the cluster");
+        }
+        Map<String, DealerInterface> dealers = new LinkedHashMap<>(current.dealers);
+        dealers.remove(node);
+        return rebalance(current, new Shards(new HashRing(dealers.keySet()), dealers, current.generation + 1));
+    }
+
+    /**
+     * Copies every record whose owner changes to its new owner and switches to the new ring.
+     * <p>
+     * The records are copied while the old ring is still in use, then the ring is switched and the records
+     * inserted in the meantime are copied as well. Inserts of existing keys are skipped as duplicates, so
+     * copying a record twice does no harm.
+     */
+    private long rebalance(Shards from, Shards to) throws RemoteException {
+        Map<String, String[]> resumeAt = new HashMap<>();
+        long copied = copyMoved(from, to, resumeAt);
+        shards = to;
+        return copied + copyMoved(from, to, resumeAt);
+    }
+
+    /**
+     * Copies the records of every old node that belong to another node under the new ring.
+     * @param resumeAt Continuation tokens of the last car and receipt pages of every node, read and updated,
+     * so that a second pass only reads what was inserted after the first
+     * @return Number of records copied
+     */
+    private long copyMoved(Shards from, Shards to, Map<String, String[]> resumeAt) throws RemoteException {
+        long copied = 0;
+        for (String node : from.ring.getNodes()) {
+            DealerInterface source = from.dealers.get(node);
+            String[] tokens = resumeAt.computeIfAbsent(node, key -> new String[2]);
+            copied += copyMoved(node, from, to, tokens, 0, DealerInterface::getCars, Car::getSerialNumber,
+                    DealerInterface::createCars, source);
+            copied += copyMoved(node, from, to, tokens, 1, DealerInterface::getReceipts, Receipt::getID,
+                    DealerInterface::createReceipts, source);
+        }
+        return copied;
+    }
+
+    private <T> long copyMoved(String node, Shards from, Shards to, String[] tokens, int slot, PagedCall<T> scan,
+                               Function<T, String> keyOf, BatchInsert<T> insert, DealerInterface source) throws RemoteException {
+        long copied = 0;
+        String token = tokens[slot];
+        while (true) {
+            Page<T> page = scan.call(source, SCAN_PAGE_SIZE, token);
+            Map<String, List<T>> moving = new LinkedHashMap<>();
+            for (T record : from.owned(node, page.getItems(), keyOf)) {
+                String owner = to.ring.ownerOf(keyOf.apply(record));
+                if (!owner.equals(node)) {
+                    moving.computeIfAbsent(owner, key -> new ArrayList<>()).add(record);
+                }
+            }
+            for (Map.Entry<String, List<T>> batch : moving.entrySet()) {
+                insert.insert(to.dealers.get(batch.getKey()), batch.getValue());
+                copied += batch.getValue().size();
+            }
+            if (!page.hasMore()) {
+                // The next pass starts again from this last page, its records are copied as duplicates
+                tokens[slot] = token;
+                return copied;
+            }
+            token = page.getContinuationToken();
+        }
+    }
+
+    /**
+     * Stops the threads making parallel calls.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4 || !args[0].equals("--nodes") || !(args[2].equals("add") || args[2].equals("remove"))) {
+            System.err.println("Usage: ShardedDealer --nodes node,node,... add|remove node");
+            System.exit(1);
+        }
+        try (ShardedDealer cluster = new ShardedDealer(Arrays.asList(args[1].split(",")))) {
+            long start = System.nanoTime();
+            long copied = args[2].equals("add") ? cluster.addNode(args[3]) : cluster.removeNode(args[3]);
+            System.out.println(copied + " records copied in " + (System.nanoTime() - start) / 1_000_000 + " ms, nodes now "
+                    + String.join(",", cluster.getNodes()));
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package interfaces;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Wire format of the binary transport, a lighter alternative to RMI for the {@link DealerInterface} calls.
+ * <p>
+ * Requests and responses are frames of [length int][request id int][code byte][body], the length counting
+ * the bytes after itself. A client may send any number of requests without waiting, the server answers each
+ * of them with the request id it was sent with, in whatever order the calls complete. The code of a request
+ * is the operation, the code of a response is OK or ERROR. Request bodies, and the OK response bodies:
+ * <pre>
+ * FIND_CAR             [serial number string]                   [car]
+ * FIND_CARS_BY_BRAND   [brand string]                           [car list]
+ * CREATE_CAR           [car]                                    empty
+ * FIND_RECEIPT         [id string]                              [receipt]
+ * RECEIPTS_BY_VENDOR   [vendor string]                          [receipt list]
+ * CREATE_RECEIPT       [receipt]                                empty
+ * CREATE_CARS          [car list]                               [status list]
+ * CREATE_RECEIPTS      [receipt list]                           [status list]
+ * BRAND_VERSION        [brand string]                           [version long]
+ * VENDOR_VERSION       [vendor string]                          [version long]
+ * INVOKE               [method signature string][arguments]     [result]
+ * </pre>
+ * INVOKE covers the rest of the interface with Java serialization: the signature is the one produced by
+ * {@link #signature(String, Class[])} and the arguments and the result are serialized objects. An ERROR body is
+ * the serialized exception thrown by the call.
+ * <p>
+ * Strings are [length + 1 varint][UTF-8 bytes] with 0 meaning null. A car or receipt is a presence byte
+ * followed by its fields in constructor order, the year as an int, prices and weights as floats and dates as
+ * epoch milliseconds with Long.MIN_VALUE standing for null. Lists are [count varint] followed by the elements
+ * without presence bytes, statuses are one byte each.
+ */
+public final class BinaryProtocol {
+    /** Frames longer than this are treated as a protocol error */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    /** Size of [length int][request id int][code byte] */
+    public static final int HEADER_SIZE = 4 + 4 + 1;
+
+    public static final byte FIND_CAR = 1;
+    public static final byte FIND_CARS_BY_BRAND = 2;
+    public static final byte CREATE_CAR = 3;
+    public static final byte FIND_RECEIPT = 4;
+    public static final byte RECEIPTS_BY_VENDOR = 5;
+    public static final byte CREATE_RECEIPT = 6;
+    public static final byte CREATE_CARS = 7;
+    public static final byte CREATE_RECEIPTS = 8;
+    public static final byte BRAND_VERSION = 9;
+    public static final byte VENDOR_VERSION = 10;
+    public static final byte INVOKE = 11;
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    private static final long NULL_DATE = Long.MIN_VALUE;
+    private static final InsertStatus[] STATUSES = InsertStatus.values();
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @return Signature identifying a method of the interface in an INVOKE request, such as
+     * {@code findCarsByBrand(java.lang.String,int,java.lang.String)}
+     */
+    public static String signature(String name, Class<?>... parameterTypes) {
+        StringBuilder signature = new StringBuilder(name).append('(');
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                signature.append(',');
+            }
+            signature.append(parameterTypes[i].getName());
+        }
+        return signature.append(')').toString();
+    }
+
+    /**
+     * Builds one frame. The length is filled in by {@link #finish()}.
+     */
+    public static final class FrameWriter {
+        private byte[] bytes;
+        private int size;
+
+        /**
+         * @param requestId Id of the request, repeated in its response
+         * @param code Operation of a request, OK or ERROR for a response
+         */
+        public FrameWriter(int requestId, byte code) {
+            bytes = new byte[128];
+            size = 4;
+            writeInt(requestId);
+            writeByte(code);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+            }
+        }
+
+        public void writeByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        public void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        public void writeInt(int value) {
+            ensure(4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+        }
+
+        public void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            int length = value.length();
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (!ascii) {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(utf8.length + 1);
+                ensure(utf8.length);
+                System.arraycopy(utf8, 0, bytes, size, utf8.length);
+                size += utf8.length;
+                return;
+            }
+            // Most names are ASCII, those are copied without an intermediate array
+            writeVarInt(length + 1);
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                bytes[size++] = (byte) value.charAt(i);
+            }
+        }
+
+        public void writeCar(Car car) {
+            writeByte(car == null ? 0 : 1);
+            if (car != null) {
+                writeCarFields(car);
+            }
+        }
+
+        private void writeCarFields(Car car) {
+            writeString(car.getSerialNumber());
+            writeString(car.getBrand());
+            writeString(car.getModel());
+            writeString(car.getColor());
+            writeInt(car.getYear());
+            writeInt(Float.floatToIntBits(car.getPrice()));
+            writeInt(Float.floatToIntBits(car.getWeight()));
+        }
+
+        public void writeCars(List<Car> cars) {
+            writeVarInt(cars.size());
+            for (Car car : cars) {
+                writeCarFields(car);
+            }
+        }
+
+        public void writeReceipt(Receipt receipt) {
+            writeByte(receipt == null ? 0 : 1);
+            if (receipt != null) {
+                writeReceiptFields(receipt);
+            }
+        }
+
+        private void writeReceiptFields(Receipt receipt) {
+            writeString(receipt.getID());
+            writeString(receipt.getVendor());
+            writeString(receipt.getCarSerialNumber());
+            writeLong(receipt.getDate() == null ? NULL_DATE : receipt.getDate().getTime());
+        }
+
+        public void writeReceipts(List<Receipt> receipts) {
+            writeVarInt(receipts.size());
+            for (Receipt receipt : receipts) {
+                writeReceiptFields(receipt);
+            }
+        }
+
+        public void writeStatuses(List<InsertStatus> statuses) {
+            writeVarInt(statuses.size());
+            for (InsertStatus status : statuses) {
+                writeByte(status.ordinal());
+            }
+        }
+
+        /**
+         * Appends an object with Java serialization, used by INVOKE and ERROR.
+         */
+        public void writeObject(Object value) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+            try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+                out.writeObject(value);
+            }
+            ensure(buffer.size());
+            System.arraycopy(buffer.toByteArray(), 0, bytes, size, buffer.size());
+            size += buffer.size();
+        }
+
+        /**
+         * Fills in the length, the writer must not be used afterwards.
+         * @return The whole frame, ready to be written to the channel
+         */
+        public ByteBuffer finish() {
+            int length = size - 4;
+            bytes[0] = (byte) (length >>> 24);
+            bytes[1] = (byte) (length >>> 16);
+            bytes[2] = (byte) (length >>> 8);
+            bytes[3] = (byte) length;
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+    }
+
+    /**
+     * Reads the body of a frame positioned after its code. Truncated bodies fail with an IOException.
+     */
+    public static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        try {
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated frame");
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static long readLong(ByteBuffer in) throws IOException {
+        try {
+            return in.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated frame");
+        }
+    }
+
+    public static String readString(ByteBuffer in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new EOFException("Truncated frame");
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    public static Car readCar(ByteBuffer in) throws IOException {
+        return readPresence(in) ? readCarFields(in) : null;
+    }
+
+    private static boolean readPresence(ByteBuffer in) throws IOException {
+        if (!in.hasRemaining()) {
+            throw new EOFException("Truncated frame");
+        }
+        return in.get() != 0;
+    }
+
+    private static Car readCarFields(ByteBuffer in) throws IOException {
+        String serialNumber = readString(in);
+        String brand = readString(in);
+        String model = readString(in);
+        String color = readString(in);
+        try {
+            return new Car(serialNumber, brand, model, color, in.getInt(), in.getFloat(), in.getFloat());
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("Truncated frame");
+        }
+    }
+
+    public static List<Car> readCars(ByteBuffer in) throws IOException {
+        int count = readCount(in);
+        List<Car> cars = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            cars.add(readCarFields(in));
+        }
+        return cars;
+    }
+
+    /**
+     * @return Element count of a list, checked against the bytes left so a corrupt count can't
+     * allocate a huge list
+     */
+    private static int readCount(ByteBuffer in) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Corrupt list length " + count);
+        }
+        return count;
+    }
+
+    public static Receipt readReceipt(ByteBuffer in) throws IOException {
+        return readPresence(in) ? readReceiptFields(in) : null;
+    }
+
+    private static Receipt readReceiptFields(ByteBuffer in) throws IOException {
+        String id = readString(in);
+        String vendor = readString(in);
+        String carSerialNumber = readString(in);
+        long date = readLong(in);
+        return new Receipt(id, vendor, carSerialNumber, date == NULL_DATE ? null : new Date(date));
+    }
+
+    public static List<Receipt> readReceipts(ByteBuffer in) throws IOException {
+        int count = readCount(in);
+        List<Receipt> receipts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            receipts.add(readReceiptFields(in));
+        }
+        return receipts;
+    }
+
+    public static List<InsertStatus> readStatuses(ByteBuffer in) throws IOException {
+        int count = readCount(in);
+        List<InsertStatus> statuses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int ordinal = in.get();
+            if (ordinal < 0 || ordinal >= STATUSES.length) {
+                throw new IOException("Unknown insert status " + ordinal);
+            }
+            statuses.add(STATUSES[ordinal]);
+        }
+        return statuses;
+    }
+
+    /**
+     * Reads an object written by {@link FrameWriter#writeObject(Object)} from the rest of the body.
+     * @param filter Classes allowed in the stream, null to allow any
+     */
+    public static Object readObject(ByteBuffer in, ObjectInputFilter filter) throws IOException {
+        try (ObjectInputStream objects = new ObjectInputStream(
+                new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), in.remaining()))) {
+            if (filter != null) {
+                objects.setObjectInputFilter(filter);
+            }
+            in.position(in.limit());
+            return objects.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException("Unknown class in frame: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package interfaces;
+
+/**
+ * Thrown when a receipt names a car that another receipt already sold, if the dealer checks for it.
+ */
+public class CarAlreadySoldException extends DealerException {
+    private static final long serialVersionUID = 2468170392815405763L;
+    private final String serialNumber;
+
+    public CarAlreadySoldException(String serialNumber) {
+        super("The car with serial number " + serialNumber + " is already sold");
+        this.serialNumber = serialNumber;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+}
@@ -0,0 +1,157 @@
+package interfaces;
+
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * Criteria for {@link DealerInterface#findCars(CarQuery)}. Every criterion left unset matches all cars,
+ * ranges include both bounds and a null bound leaves that side open. Brand, model and color are
+ * compared ignoring case.
+ * <pre>
+ * new CarQuery().brand("Toyota").price(10000f, 20000f).sortBy(CarQuery.SortField.PRICE, false).limit(50)
+ * </pre>
+ */
+public class CarQuery implements Serializable {
+    private static final long serialVersionUID = 5316230460857417012L;
+
+    public enum SortField {
+        PRICE, YEAR, WEIGHT
+    }
+
+    String brand, model, color;
+    Float minPrice, maxPrice;
+    Integer minYear, maxYear;
+    Float minWeight, maxWeight;
+    SortField sortField;
+    boolean descending;
+    int limit;
+
+    public CarQuery brand(String brand) {
+        this.brand = brand;
+        return this;
+    }
+
+    public CarQuery model(String model) {
+        this.model = model;
+        return this;
+    }
+
+    public CarQuery color(String color) {
+        this.color = color;
+        return this;
+    }
+
+    public CarQuery price(Float min, Float max) {
+        minPrice = min;
+        maxPrice = max;
+        return this;
+    }
+
+    public CarQuery year(Integer min, Integer max) {
+        minYear = min;
+        maxYear = max;
+        return this;
+    }
+
+    public CarQuery weight(Float min, Float max) {
+        minWeight = min;
+        maxWeight = max;
+        return this;
+    }
+
+    /**
+     * @param field Field to sort on, null to keep insertion order
+     * @param descending True for the highest values first
+     */
+    public CarQuery sortBy(SortField field, boolean descending) {
+        this.sortField = field;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * @param limit Maximum number of cars to return, 0 for as many as the server allows
+     */
+    public CarQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public String getBrand() {
+        return brand;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public Float getMinPrice() {
+        return minPrice;
+    }
+
+    public Float getMaxPrice() {
+        return maxPrice;
+    }
+
+    public Integer getMinYear() {
+        return minYear;
+    }
+
+    public Integer getMaxYear() {
+        return maxYear;
+    }
+
+    public Float getMinWeight() {
+        return minWeight;
+    }
+
+    public Float getMaxWeight() {
+        return maxWeight;
+    }
+
+    public SortField getSortField() {
+        return sortField;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return True if the car meets every criterion of the query
+     */
+    public boolean matches(Car car) {
+        return equalsIgnoreCase(brand, car.getBrand()) && equalsIgnoreCase(model, car.getModel())
+                && equalsIgnoreCase(color, car.getColor())
+                && (minPrice == null || car.getPrice() >= minPrice) && (maxPrice == null || car.getPrice() <= maxPrice)
+                && (minYear == null || car.getYear() >= minYear) && (maxYear == null || car.getYear() <= maxYear)
+                && (minWeight == null || car.getWeight() >= minWeight) && (maxWeight == null || car.getWeight() <= maxWeight);
+    }
+
+    private static boolean equalsIgnoreCase(String criterion, String value) {
+        return criterion == null || value != null && criterion.toLowerCase(Locale.ROOT).equals(value.toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public String toString() {
+        return "CarQuery{" +
+                "brand='" + brand + '\'' +
+                ", model='" + model + '\'' +
+                ", color='" + color + '\'' +
+                ", price=" + minPrice + ".." + maxPrice +
+                ", year=" + minYear + ".." + maxYear +
+                ", weight=" + minWeight + ".." + maxWeight +
+                ", sortField=" + sortField +
+                ", descending=" + descending +
+                ", limit=" + limit +
+                '}';
+    }
+}
@@ -0,0 +1,78 @@
+package interfaces;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Consecutive changes of a replication feed, see {@link ReplicationInterface#pullChanges}. The records are
+ * grouped by type in the order they were inserted, which is all a replica needs to end up with the same
+ * records since the key of a car never clashes with the key of a receipt. Batches of
+ * {@link DealerInterface#getChanges} and of subscriptions only hold the records matching their filter.
+ */
+public class ChangeBatch implements Serializable {
+    private static final long serialVersionUID = -2870349711538462207L;
+
+    /**
+     * Position to read changes after to get only those that follow the call.
+     */
+    public static final long FROM_NOW = -1;
+    /**
+     * Position to read changes after to get every change the feed still holds.
+     */
+    public static final long FROM_OLDEST = 0;
+
+    final long feedId;
+    final long lastSequence;
+    final long feedSequence;
+    final boolean reset;
+    final List<Car> cars;
+    final List<Receipt> receipts;
+
+    /**
+     * @param feedId Id of the feed the changes come from
+     * @param lastSequence Sequence number of the last change in the batch, the caller's position if there are none
+     * @param feedSequence Sequence number of the last change of the feed
+     * @param reset True if the changes the caller asked for are gone and it has to start over
+     */
+    public ChangeBatch(long feedId, long lastSequence, long feedSequence, boolean reset, List<Car> cars,
+                       List<Receipt> receipts) {
+        this.feedId = feedId;
+        this.lastSequence = lastSequence;
+        this.feedSequence = feedSequence;
+        this.reset = reset;
+        this.cars = cars;
+        this.receipts = receipts;
+    }
+
+    public long getFeedId() {
+        return feedId;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public long getFeedSequence() {
+        return feedSequence;
+    }
+
+    /**
+     * A reset batch has no changes. The caller has to copy every record of the dealer and continue after
+     * {@link #getFeedSequence()}, which was read before the copy can begin so the copy includes it.
+     */
+    public boolean isReset() {
+        return reset;
+    }
+
+    public List<Car> getCars() {
+        return cars;
+    }
+
+    public List<Receipt> getReceipts() {
+        return receipts;
+    }
+
+    public int size() {
+        return cars.size() + receipts.size();
+    }
+}
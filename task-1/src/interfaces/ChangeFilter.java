@@ -0,0 +1,65 @@
+package interfaces;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Selects the inserts delivered by {@link DealerInterface#getChanges} and {@link DealerInterface#subscribe}.
+ * Cars and receipts are selected separately, a filter that selects neither selects everything. Brands and
+ * vendors are compared ignoring case.
+ * <pre>
+ * new ChangeFilter().cars("Toyota", "Honda")   // new Toyota and Honda cars, no receipts
+ * new ChangeFilter().cars().receipts("Carz")   // every new car and the receipts of Carz
+ * </pre>
+ */
+public class ChangeFilter implements Serializable {
+    private static final long serialVersionUID = -6052785466917829047L;
+
+    boolean cars, receipts;
+    final Set<String> brands = new HashSet<>();
+    final Set<String> vendors = new HashSet<>();
+
+    /**
+     * Selects the cars of the given brands, or every car if no brand is given.
+     */
+    public ChangeFilter cars(String... brands) {
+        cars = true;
+        for (String brand : brands) {
+            this.brands.add(fold(brand));
+        }
+        return this;
+    }
+
+    /**
+     * Selects the receipts of the given vendors, or every receipt if no vendor is given.
+     */
+    public ChangeFilter receipts(String... vendors) {
+        receipts = true;
+        for (String vendor : vendors) {
+            this.vendors.add(fold(vendor));
+        }
+        return this;
+    }
+
+    public boolean matches(Car car) {
+        return !cars && !receipts || cars && (brands.isEmpty() || brands.contains(fold(car.getBrand())));
+    }
+
+    public boolean matches(Receipt receipt) {
+        return !cars && !receipts || receipts && (vendors.isEmpty() || vendors.contains(fold(receipt.getVendor())));
+    }
+
+    private static String fold(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeFilter{" +
+                "cars=" + (cars ? brands.isEmpty() ? "all" : brands.toString() : "none") +
+                ", receipts=" + (receipts ? vendors.isEmpty() ? "all" : vendors.toString() : "none") +
+                '}';
+    }
+}
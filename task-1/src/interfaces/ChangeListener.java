@@ -0,0 +1,21 @@
+package interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Receives the inserts of a {@link DealerInterface#subscribe subscription}. Over RMI the client exports the
+ * listener, with UnicastRemoteObject.exportObject, and the dealer calls it back.
+ */
+public interface ChangeListener extends Remote {
+    /**
+     * Receives the next inserts matching the filter of the subscription. Calls come one at a time, in the
+     * order of the feed, and the next batch is only read once this one returns.
+     * <p>
+     * A reset batch means the listener fell so far behind that the inserts it missed are gone from the feed.
+     * It can catch up by reading the records themselves, the subscription carries on after
+     * {@link ChangeBatch#getFeedSequence()}.
+     * @throws RemoteException To have the same batch delivered again, a few times before the subscription ends
+     */
+    void onChanges(ChangeBatch changes) throws RemoteException;
+}
@@ -0,0 +1,13 @@
+package interfaces;
+
+/**
+ * Thrown when the dealer refuses to save a record because it breaks one of the rules of the database.
+ * Unlike a RemoteException, retrying the same call fails the same way.
+ */
+public class DealerException extends Exception {
+    private static final long serialVersionUID = -3317458223160841107L;
+
+    public DealerException(String message) {
+        super(message);
+    }
+}
@@ -2,8 +2,10 @@ package interfaces;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 
 public interface DealerInterface extends Remote {
@@ -30,8 +32,9 @@ public interface DealerInterface extends Remote {
      * @param year Car's manufacture year
      * @param price Car's price
      * @param weight Car's weight
+     * @throws DuplicateKeyException If a car with the serial number already exists
      */
-    void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws RemoteException;
+    void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws DuplicateKeyException, RemoteException;
 
     /**
      * Searches the database for the receipt with the given id
@@ -53,6 +56,176 @@ public interface DealerInterface extends Remote {
      * @param vendor Vendor on receipt
      * @param carSerialNumber Serial number of the car that has been sold
      * @param date Purchase date
+     * @throws DuplicateKeyException If a receipt with the id already exists
+     * @throws UnknownCarException If the dealer checks receipts against cars and the car doesn't exist
+     * @throws CarAlreadySoldException If the dealer checks that cars are sold once and the car already is
      */
-    void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws RemoteException;
+    void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws DealerException, RemoteException;
+
+    /**
+     * Adds all the given cars to the database in a single write.
+     * Cars whose serial number already exists, in the database or earlier in the list, are skipped.
+     * @param cars Cars to add
+     * @return the outcome for each car, in the same order as the given list
+     */
+    List<InsertStatus> createCars(List<Car> cars) throws RemoteException;
+
+    /**
+     * Adds all the given receipts to the database in a single write.
+     * Receipts whose id already exists, in the database or earlier in the list, are skipped, as are receipts
+     * of unknown or already sold cars if the dealer checks them.
+     * @param receipts Receipts to add
+     * @return the outcome for each receipt, in the same order as the given list
+     */
+    List<InsertStatus> createReceipts(List<Receipt> receipts) throws RemoteException;
+
+    /**
+     * Searches the database for the cars with the given serial numbers.
+     * @param serialNumbers Serial numbers to search for
+     * @return a map from serial number to car, serial numbers that are not found are left out
+     */
+    Map<String, Car> findCarsBySerialNumbers(Collection<String> serialNumbers) throws RemoteException;
+
+    /**
+     * Searches the database for the receipts with the given ids.
+     * @param ids Receipt ids to search for
+     * @return a map from id to receipt, ids that are not found are left out
+     */
+    Map<String, Receipt> findReceiptsByIds(Collection<String> ids) throws RemoteException;
+
+    /**
+     * Searches the database for the car objects with the given brand name, one page at a time.
+     * @param brand Car brand to search for
+     * @param limit Maximum number of cars to return, the server may return fewer
+     * @param continuationToken Token from the previous page, null for the first page
+     * @return a page of cars with the given brand name and the token for the next page
+     */
+    Page<Car> findCarsByBrand(String brand, int limit, String continuationToken) throws RemoteException;
+
+    /**
+     * Searches the database for the receipt objects with the given vendor name, one page at a time.
+     * @param vendor Vendor name to search for
+     * @param limit Maximum number of receipts to return, the server may return fewer
+     * @param continuationToken Token from the previous page, null for the first page
+     * @return a page of receipts with the given vendor name and the token for the next page
+     */
+    Page<Receipt> getReceiptsByVendor(String vendor, int limit, String continuationToken) throws RemoteException;
+
+    /**
+     * Opens a server side cursor over the car objects with the given brand name.
+     * @param brand Car brand to search for
+     * @return a remote iterator over the matching cars
+     */
+    RemoteIterator<Car> iterateCarsByBrand(String brand) throws RemoteException;
+
+    /**
+     * Opens a server side cursor over the receipt objects with the given vendor name.
+     * @param vendor Vendor name to search for
+     * @return a remote iterator over the matching receipts
+     */
+    RemoteIterator<Receipt> iterateReceiptsByVendor(String vendor) throws RemoteException;
+
+    /**
+     * Lists every car object in the database, one page at a time, used to move records between the nodes of a cluster.
+     * @param limit Maximum number of cars to return, the server may return fewer
+     * @param continuationToken Token from the previous page, null for the first page
+     * @return a page of cars in insertion order and the token for the next page
+     */
+    Page<Car> getCars(int limit, String continuationToken) throws RemoteException;
+
+    /**
+     * Lists every receipt object in the database, one page at a time.
+     * @param limit Maximum number of receipts to return, the server may return fewer
+     * @param continuationToken Token from the previous page, null for the first page
+     * @return a page of receipts in insertion order and the token for the next page
+     */
+    Page<Receipt> getReceipts(int limit, String continuationToken) throws RemoteException;
+
+    /**
+     * Searches the database for the car objects meeting every criterion of the query.
+     * @param query Criteria, sort order and limit, the server caps the limit at its maximum page size
+     * @return a list of matching cars sorted as requested, in insertion order if no sort order is given
+     */
+    List<Car> findCars(CarQuery query) throws RemoteException;
+
+    /**
+     * Searches the database for the receipt objects meeting every criterion of the query.
+     * @param query Criteria, sort order and limit, the server caps the limit at its maximum page size
+     * @return a list of matching receipts sorted as requested, in insertion order if no sort order is given
+     */
+    List<Receipt> findReceipts(ReceiptQuery query) throws RemoteException;
+
+    /**
+     * Finds the brands, models, colors and vendors that start with or are close to the given text, for
+     * type-ahead. Each hit is a value with its number of records, which can then be read with {@link #findCars}
+     * or {@link #getReceiptsByVendor}.
+     * @param query Text, fields and limit, the server caps the limit at its maximum page size
+     * @return the best matching values, ranked by {@link SearchHit#RANKING}
+     */
+    List<SearchHit> search(SearchQuery query) throws RemoteException;
+
+    /**
+     * Returns a version stamp of the car objects with the given brand name. The stamp changes whenever
+     * a car of that brand is added, so a client can keep the cars of a brand as long as it doesn't change.
+     * @param brand Car brand ignoring case
+     * @return the version stamp
+     */
+    long getBrandVersion(String brand) throws RemoteException;
+
+    /**
+     * Returns a version stamp of the receipt objects with the given vendor name. The stamp changes whenever
+     * a receipt of that vendor is added.
+     * @param vendor Vendor name ignoring case
+     * @return the version stamp
+     */
+    long getVendorVersion(String vendor) throws RemoteException;
+
+    /**
+     * Returns the inserts that followed a position of the dealer's change feed and match a filter, waiting for
+     * some if there are none yet. Positions are the sequence numbers of the dealer's log, so a caller that keeps
+     * the last sequence number it got can resume from there as long as the feed still holds the following
+     * inserts. The feed is only kept in memory and starts over when the dealer restarts, a caller that hadn't
+     * read everything by then gets a reset batch.
+     * @param filter Inserts to return
+     * @param afterSequence Sequence number of the last change the caller has, {@link ChangeBatch#FROM_OLDEST}
+     *                      for every change the feed holds or {@link ChangeBatch#FROM_NOW} for the end of the feed
+     * @param maxRecords Number of records after which no more changes are added
+     * @param waitMillis Time to wait for matching changes when there are none, 0 to return right away
+     * @return the matching inserts and the position they reach, which moves on even if nothing matched, or a
+     * reset batch if the feed no longer holds the changes following afterSequence
+     */
+    ChangeBatch getChanges(ChangeFilter filter, long afterSequence, int maxRecords, long waitMillis) throws RemoteException;
+
+    /**
+     * Has the dealer push the inserts that follow a position of its change feed and match a filter to a listener,
+     * see {@link #getChanges}. Each subscription reads the feed at its own pace with at most one batch in flight,
+     * a listener that falls behind gets a reset batch instead of holding back the inserts.
+     * @param filter Inserts to deliver
+     * @param afterSequence Sequence number of the last change the caller has, {@link ChangeBatch#FROM_OLDEST}
+     *                      for every change the feed holds or {@link ChangeBatch#FROM_NOW} for the end of the feed
+     * @param listener Listener exported by the caller
+     * @return the subscription, to follow its position and to cancel it
+     */
+    Subscription subscribe(ChangeFilter filter, long afterSequence, ChangeListener listener) throws RemoteException;
+
+    /**
+     * Computes the number of cars sold by every vendor and their revenue, the sum of the prices of the cars
+     * on their receipts. Receipts of unknown cars are left out.
+     * @return a list of totals named after the vendors, highest revenue first
+     */
+    List<SalesTotal> getRevenueByVendor() throws RemoteException;
+
+    /**
+     * Computes the number of cars sold and the revenue of every brand per month.
+     * Receipts of unknown cars or without a date are left out.
+     * @return a map from brand name to its totals named after the months (yyyy-MM, UTC), in order of month
+     */
+    Map<String, List<SalesTotal>> getSalesByBrandPerMonth() throws RemoteException;
+
+    /**
+     * Finds the best selling models.
+     * @param n Number of models to return
+     * @return a list of totals named after the brand and model, most cars sold first
+     */
+    List<SalesTotal> getTopModels(int n) throws RemoteException;
 }
@@ -0,0 +1,21 @@
+package interfaces;
+
+/**
+ * Thrown when a car serial number or a receipt id is already taken.
+ */
+public class DuplicateKeyException extends DealerException {
+    private static final long serialVersionUID = 6087405630917275824L;
+    private final String key;
+
+    public DuplicateKeyException(String key) {
+        super("The key " + key + " is already taken");
+        this.key = key;
+    }
+
+    /**
+     * @return The serial number or id that is taken
+     */
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,33 @@
+package interfaces;
+
+/**
+ * Outcome of a single record in a batch insert.
+ */
+public enum InsertStatus {
+    /** The record was saved */
+    CREATED,
+    /** The record was skipped because its key is already taken */
+    DUPLICATE,
+    /** The receipt was skipped because its car is not in the database */
+    UNKNOWN_CAR,
+    /** The receipt was skipped because its car is already sold */
+    ALREADY_SOLD;
+
+    /**
+     * @param key Serial number of the car or id of the receipt
+     * @param carSerialNumber Serial number of the car of the receipt, null for a car
+     * @return The exception a single insert with this outcome throws, null if the record was saved
+     */
+    public DealerException toException(String key, String carSerialNumber) {
+        switch (this) {
+            case DUPLICATE:
+                return new DuplicateKeyException(key);
+            case UNKNOWN_CAR:
+                return new UnknownCarException(carSerialNumber);
+            case ALREADY_SOLD:
+                return new CarAlreadySoldException(carSerialNumber);
+            default:
+                return null;
+        }
+    }
+}
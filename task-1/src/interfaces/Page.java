@@ -0,0 +1,43 @@
+package interfaces;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of a paged query result.
+ *
+ * @param <T> Car or Receipt
+ */
+public class Page<T> implements Serializable {
+    private static final long serialVersionUID = 4102291675148232706L;
+    final List<T> items;
+    final String continuationToken;
+
+    public Page(List<T> items, String continuationToken) {
+        this.items = items;
+        this.continuationToken = continuationToken;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return Token to pass to the next call to get the following page, or null if this is the last page
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+
+    @Override
+    public String toString() {
+        return "Page{" +
+                "items=" + items.size() +
+                ", continuationToken='" + continuationToken + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,112 @@
+package interfaces;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Criteria for {@link DealerInterface#findReceipts(ReceiptQuery)}. Every criterion left unset matches all
+ * receipts, the date range includes both bounds and a null bound leaves that side open. The vendor is
+ * compared ignoring case, the car serial number exactly.
+ */
+public class ReceiptQuery implements Serializable {
+    private static final long serialVersionUID = 2409571864410263775L;
+
+    String vendor, carSerialNumber;
+    Date from, to;
+    boolean sortByDate;
+    boolean descending;
+    int limit;
+
+    public ReceiptQuery vendor(String vendor) {
+        this.vendor = vendor;
+        return this;
+    }
+
+    public ReceiptQuery carSerialNumber(String carSerialNumber) {
+        this.carSerialNumber = carSerialNumber;
+        return this;
+    }
+
+    public ReceiptQuery date(Date from, Date to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Sorts the receipts by date instead of keeping insertion order. Receipts without a date are left out.
+     * @param descending True for the most recent receipts first
+     */
+    public ReceiptQuery sortByDate(boolean descending) {
+        this.sortByDate = true;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * @param limit Maximum number of receipts to return, 0 for as many as the server allows
+     */
+    public ReceiptQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public String getCarSerialNumber() {
+        return carSerialNumber;
+    }
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    public boolean isSortedByDate() {
+        return sortByDate;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return True if the receipt meets every criterion of the query
+     */
+    public boolean matches(Receipt receipt) {
+        if (vendor != null && (receipt.getVendor() == null
+                || !vendor.toLowerCase(Locale.ROOT).equals(receipt.getVendor().toLowerCase(Locale.ROOT)))) {
+            return false;
+        }
+        if (carSerialNumber != null && !carSerialNumber.equals(receipt.getCarSerialNumber())) {
+            return false;
+        }
+        if (from == null && to == null && !sortByDate) {
+            return true;
+        }
+        Date date = receipt.getDate();
+        return date != null && (from == null || !date.before(from)) && (to == null || !date.after(to));
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiptQuery{" +
+                "vendor='" + vendor + '\'' +
+                ", carSerialNumber='" + carSerialNumber + '\'' +
+                ", date=" + from + ".." + to +
+                ", sortByDate=" + sortByDate +
+                ", descending=" + descending +
+                ", limit=" + limit +
+                '}';
+    }
+}
@@ -0,0 +1,25 @@
+package interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Server side cursor over a query result, fetched in batches.
+ * The server releases the cursor when {@link #close()} is called or when the client drops its reference.
+ *
+ * @param <T> Car or Receipt
+ */
+public interface RemoteIterator<T> extends Remote {
+    /**
+     * Fetches the next batch of results.
+     * @param max Maximum number of results to return
+     * @return the next results, an empty list once the iterator is exhausted
+     */
+    List<T> next(int max) throws RemoteException;
+
+    /**
+     * Releases the cursor on the server.
+     */
+    void close() throws RemoteException;
+}
@@ -0,0 +1,41 @@
+package interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Replication between dealers. Every dealer keeps a feed of its recent inserts in the order they were logged,
+ * a replica pulls the feed of its primary and inserts the same records into its own store. Replicas only
+ * serve reads, a replica is promoted to take the writes when its primary is gone.
+ * <p>
+ * Sequence numbers only have a meaning within one feed. A dealer starts a new feed with a new id every time
+ * it starts, so a replica that finds a different feed id than the one it followed copies everything again.
+ */
+public interface ReplicationInterface extends Remote {
+    /**
+     * @return Role, position and lag of the dealer
+     */
+    ReplicationStatus getReplicationStatus() throws RemoteException;
+
+    /**
+     * Returns the inserts that followed a position of the feed, waiting for some if there are none yet.
+     * @param afterSequence Sequence number of the last change the caller has, 0 when it has none
+     * @param maxRecords Number of records after which no more changes are added, capped by the dealer, at least
+     * one change is returned
+     * @param waitMillis Time to wait for new changes when there are none, 0 to return right away
+     * @return The changes, or a reset batch if the feed no longer holds the changes following afterSequence
+     */
+    ChangeBatch pullChanges(long afterSequence, int maxRecords, long waitMillis) throws RemoteException;
+
+    /**
+     * Makes a replica stop following its primary and accept writes. Does nothing on a primary.
+     */
+    void promote() throws RemoteException;
+
+    /**
+     * Makes the dealer a read-only replica of another dealer, e.g. of a replica that was just promoted.
+     * Records the dealer has and the new primary doesn't are kept.
+     * @param primary The dealer to follow as host:port/name
+     */
+    void follow(String primary) throws RemoteException;
+}
@@ -0,0 +1,89 @@
+package interfaces;
+
+import java.io.Serializable;
+
+/**
+ * Role and position of a dealer in replication, with the metrics of its feed or of its replication.
+ */
+public class ReplicationStatus implements Serializable {
+    private static final long serialVersionUID = 5127740613980551738L;
+    final boolean primary;
+    final String source;
+    final long feedId;
+    final long sequence;
+    final long sourceSequence;
+    final long lagMillis;
+    final long records;
+    final double recordsPerSecond;
+
+    /**
+     * @param primary True if the dealer accepts writes
+     * @param source Primary followed by a replica as host:port/name, null for a primary
+     * @param feedId Id of the feed the sequence numbers belong to, the primary's own or the one a replica follows
+     * @param sequence Sequence number of the last change published by a primary or applied by a replica
+     * @param sourceSequence Last sequence number of the feed a replica knows of, the same as sequence for a primary
+     * @param lagMillis Time since a replica was last caught up with its primary, 0 for a primary
+     * @param records Records sent to replicas by a primary or applied by a replica since it started
+     * @param recordsPerSecond Records sent or applied during the last second
+     */
+    public ReplicationStatus(boolean primary, String source, long feedId, long sequence, long sourceSequence,
+                             long lagMillis, long records, double recordsPerSecond) {
+        this.primary = primary;
+        this.source = source;
+        this.feedId = feedId;
+        this.sequence = sequence;
+        this.sourceSequence = sourceSequence;
+        this.lagMillis = lagMillis;
+        this.records = records;
+        this.recordsPerSecond = recordsPerSecond;
+    }
+
+    public boolean isPrimary() {
+        return primary;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getFeedId() {
+        return feedId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getSourceSequence() {
+        return sourceSequence;
+    }
+
+    /**
+     * @return Number of changes of the feed a replica has yet to apply
+     */
+    public long getLagChanges() {
+        return Math.max(0, sourceSequence - sequence);
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return (primary ? "primary" : "replica of " + source) +
+                ", feed " + Long.toHexString(feedId) +
+                " at " + sequence +
+                (primary ? "" : ", " + getLagChanges() + " changes and " + lagMillis + " ms behind") +
+                ", " + records + " records " + (primary ? "sent" : "applied") +
+                String.format(", %.0f/s", recordsPerSecond);
+    }
+}
@@ -0,0 +1,43 @@
+package interfaces;
+
+import java.io.Serializable;
+
+/**
+ * Number of cars sold and their total price for one group of a sales report, e.g. one vendor or one month.
+ */
+public class SalesTotal implements Serializable {
+    private static final long serialVersionUID = 7364012958377102551L;
+    final String name;
+    final long count;
+    final double revenue;
+
+    public SalesTotal(String name, long count, double revenue) {
+        this.name = name;
+        this.count = count;
+        this.revenue = revenue;
+    }
+
+    /**
+     * @return Name of the group: a vendor, a month as yyyy-MM or a brand and model
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getRevenue() {
+        return revenue;
+    }
+
+    @Override
+    public String toString() {
+        return "SalesTotal{" +
+                "name='" + name + '\'' +
+                ", count=" + count +
+                ", revenue=" + revenue +
+                '}';
+    }
+}
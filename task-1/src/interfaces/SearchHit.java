@@ -0,0 +1,67 @@
+package interfaces;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * A value matching a {@link SearchQuery}, with the number of records that have it. The records themselves
+ * are read with {@link DealerInterface#findCars(CarQuery)} or {@link DealerInterface#getReceiptsByVendor}.
+ */
+public class SearchHit implements Serializable {
+    private static final long serialVersionUID = 2150869232470985517L;
+
+    /**
+     * Order of the hits of a search: the fewest letters off first, then the values with the most records.
+     */
+    public static final Comparator<SearchHit> RANKING = Comparator.comparingInt(SearchHit::getEdits)
+            .thenComparing(Comparator.comparingLong(SearchHit::getRecords).reversed())
+            .thenComparing(SearchHit::getValue, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(SearchHit::getField);
+
+    final SearchQuery.Field field;
+    final String value;
+    final long records;
+    final int edits;
+
+    public SearchHit(SearchQuery.Field field, String value, long records, int edits) {
+        this.field = field;
+        this.value = value;
+        this.records = records;
+        this.edits = edits;
+    }
+
+    public SearchQuery.Field getField() {
+        return field;
+    }
+
+    /**
+     * @return The value as first inserted, values differing only in case are one hit
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return Number of records with the value ignoring case
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return Number of letters the words of the query are off from the value, 0 for exact prefixes
+     */
+    public int getEdits() {
+        return edits;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit{" +
+                "field=" + field +
+                ", value='" + value + '\'' +
+                ", records=" + records +
+                ", edits=" + edits +
+                '}';
+    }
+}
@@ -0,0 +1,83 @@
+package interfaces;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Text to look up with {@link DealerInterface#search(SearchQuery)}, typically what a user typed so far. Every
+ * word of the text has to match the start of a word of a value, ignoring case, so "land ro" finds "Land Rover".
+ * With fuzzy matching words of four letters or more may also be one letter off, and words of eight letters or
+ * more two letters, so "toyta" still finds "Toyota".
+ * <pre>
+ * new SearchQuery("toy").fields(SearchQuery.Field.BRAND, SearchQuery.Field.MODEL).limit(5)
+ * </pre>
+ */
+public class SearchQuery implements Serializable {
+    private static final long serialVersionUID = -3417525396411253846L;
+
+    public enum Field {
+        BRAND, MODEL, COLOR, VENDOR
+    }
+
+    final String text;
+    final Set<Field> fields = EnumSet.allOf(Field.class);
+    boolean fuzzy = true;
+    int limit;
+
+    public SearchQuery(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param fields Fields to search, every field by default
+     */
+    public SearchQuery fields(Field... fields) {
+        this.fields.clear();
+        this.fields.addAll(Arrays.asList(fields));
+        return this;
+    }
+
+    /**
+     * @param fuzzy False to only match exact word prefixes, true by default
+     */
+    public SearchQuery fuzzy(boolean fuzzy) {
+        this.fuzzy = fuzzy;
+        return this;
+    }
+
+    /**
+     * @param limit Maximum number of values to return, 0 for as many as the server allows
+     */
+    public SearchQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public Set<Field> getFields() {
+        return fields;
+    }
+
+    public boolean isFuzzy() {
+        return fuzzy;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchQuery{" +
+                "text='" + text + '\'' +
+                ", fields=" + fields +
+                ", fuzzy=" + fuzzy +
+                ", limit=" + limit +
+                '}';
+    }
+}
@@ -0,0 +1,25 @@
+package interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * A running {@link DealerInterface#subscribe subscription}. The dealer ends it when it is cancelled, when the
+ * client drops its reference or when the listener keeps failing.
+ */
+public interface Subscription extends Remote {
+    /**
+     * @return Sequence number of the last change the listener received, to resume from with a new subscription
+     */
+    long getSequence() throws RemoteException;
+
+    /**
+     * @return False once the subscription has ended
+     */
+    boolean isActive() throws RemoteException;
+
+    /**
+     * Stops the deliveries, a batch being delivered is finished first.
+     */
+    void cancel() throws RemoteException;
+}
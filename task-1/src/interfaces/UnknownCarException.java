@@ -0,0 +1,18 @@
+package interfaces;
+
+/**
+ * Thrown when a receipt names a car that is not in the database, if the dealer checks receipts against cars.
+ */
+public class UnknownCarException extends DealerException {
+    private static final long serialVersionUID = -1526385702279716690L;
+    private final String serialNumber;
+
+    public UnknownCarException(String serialNumber) {
+        super("There is no car with serial number " + serialNumber);
+        this.serialNumber = serialNumber;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+}
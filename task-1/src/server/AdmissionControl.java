@@ -0,0 +1,241 @@
+package server;
+
+import interfaces.DealerInterface;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of requests the server works on at once. RMI runs every call on the thread of its
+ * connection, so without a bound thousands of clients mean thousands of threads competing for the store.
+ * <p>
+ * Reads and writes have separate limits, so writes waiting for the log to be synced can never take all
+ * the permits and stall reads that are served from memory. A request that finds its limit reached waits
+ * for a permit, but only up to a timeout and only if fewer than the maximum number of requests are waiting
+ * already. Otherwise it is rejected right away with a RemoteException, which is cheaper for both sides than
+ * letting the queue grow without bound.
+ * <p>
+ * Long polls for changes wait on the server for up to a few seconds without doing any work, they have a small
+ * limit of their own so that a few followers can't hold the read permits that lookups need. A long poll over
+ * that limit is rejected right away, pollers simply try again.
+ * <p>
+ * Since every remote call passes through here, this is also where the calls are counted and timed in
+ * {@link Metrics}, including the time spent waiting for a permit.
+ */
+class AdmissionControl {
+    /**
+     * Concurrency limit and wait queue of one kind of request.
+     */
+    static final class Limit {
+        private final String name;
+        private final Semaphore permits;
+        private final int maxQueued;
+        private final long timeoutMillis;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        Limit(String name, int maxConcurrent, int maxQueued, long timeoutMillis) {
+            this.name = name;
+            this.permits = new Semaphore(maxConcurrent);
+            this.maxQueued = maxQueued;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Takes a permit, waiting for one if the queue has room.
+         * @throws RemoteException If the queue is full or no permit became free in time
+         */
+        void acquire() throws RemoteException {
+            if (permits.tryAcquire()) {
+                admitted.increment();
+                active.incrementAndGet();
+                return;
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.increment();
+                throw new RemoteException("Server busy, too many " + name + " requests queued");
+            }
+            try {
+                if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    rejected.increment();
+                    throw new RemoteException("Server busy, timed out waiting to run a " + name + " request");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.increment();
+                throw new RemoteException("Interrupted while waiting to run a " + name + " request");
+            } finally {
+                queued.decrementAndGet();
+            }
+            admitted.increment();
+            active.incrementAndGet();
+        }
+
+        /**
+         * Takes a permit only if one is free right away.
+         */
+        boolean tryAcquire() {
+            if (permits.tryAcquire()) {
+                admitted.increment();
+                active.incrementAndGet();
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+
+        void release() {
+            active.decrementAndGet();
+            permits.release();
+        }
+
+        /**
+         * Publishes the requests in progress, waiting, admitted and rejected as gauges.
+         */
+        void registerMetrics() {
+            Metrics.gauge("dealer_requests_in_flight{kind=\"" + name + "\"}", active::get);
+            Metrics.gauge("dealer_requests_queued{kind=\"" + name + "\"}", queued::get);
+            Metrics.gauge("dealer_requests_admitted_total{kind=\"" + name + "\"}", admitted::sum);
+            Metrics.gauge("dealer_requests_rejected_total{kind=\"" + name + "\"}", rejected::sum);
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + admitted.sum() + " admitted, " + rejected.sum() + " rejected, " + queued.get() + " waiting";
+        }
+    }
+
+    // Remote methods that may wait for changes before returning
+    private static final Set<String> LONG_POLLS = Set.of("getChanges", "pullChanges");
+
+    final Limit reads;
+    final Limit writes;
+    final Limit polls;
+
+    AdmissionControl(int maxConcurrentReads, int maxConcurrentWrites, int maxConcurrentPolls, int maxQueued,
+                     long timeoutMillis) {
+        reads = new Limit("read", maxConcurrentReads, maxQueued, timeoutMillis);
+        writes = new Limit("write", maxConcurrentWrites, maxQueued, timeoutMillis);
+        polls = new Limit("poll", maxConcurrentPolls, 0, 0);
+    }
+
+    /**
+     * @return Admission control with the limits of the server settings
+     */
+    static AdmissionControl fromConfig() {
+        return new AdmissionControl(DealerConfig.maxConcurrentReads(), DealerConfig.maxConcurrentWrites(),
+                DealerConfig.maxConcurrentPolls(), DealerConfig.maxQueuedRequests(), DealerConfig.admissionTimeoutMillis());
+    }
+
+    /**
+     * Wraps a dealer so that every call of its remote interfaces goes through admission control first.
+     * The create methods count as writes, the long polls for changes as polls, everything else as reads.
+     * @param dealer Dealer to protect
+     * @return A proxy implementing the same remote interfaces, to be exported instead of the dealer
+     */
+    DealerInterface wrap(DealerInterface dealer) {
+        Set<Class<?>> interfaces = new LinkedHashSet<>();
+        interfaces.add(DealerInterface.class);
+        for (Class<?> type : dealer.getClass().getInterfaces()) {
+            if (Remote.class.isAssignableFrom(type)) {
+                interfaces.add(type);
+            }
+        }
+        Map<Method, Metrics.Timer> timers = new HashMap<>();
+        for (Class<?> type : interfaces) {
+            for (Method method : type.getMethods()) {
+                timers.put(method, Metrics.call(metricName(type, method)));
+            }
+        }
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return invoke(dealer, method, args);
+                }
+            }
+            Metrics.Timer timer = timers.get(method);
+            long start = System.nanoTime();
+            Limit limit = method.getName().startsWith("create") ? writes
+                    : LONG_POLLS.contains(method.getName()) ? polls : reads;
+            try {
+                limit.acquire();
+                try {
+                    return invoke(dealer, method, args);
+                } finally {
+                    limit.release();
+                }
+            } catch (Throwable e) {
+                timer.errors.increment();
+                throw e;
+            } finally {
+                timer.record(start);
+            }
+        };
+        return (DealerInterface) Proxy.newProxyInstance(DealerInterface.class.getClassLoader(),
+                interfaces.toArray(new Class<?>[0]), handler);
+    }
+
+    /**
+     * @return The method name, with the parameter types if the name is overloaded
+     */
+    private static String metricName(Class<?> type, Method method) {
+        int overloads = 0;
+        for (Method other : type.getMethods()) {
+            if (other.getName().equals(method.getName())) {
+                overloads++;
+            }
+        }
+        if (overloads == 1) {
+            return method.getName();
+        }
+        StringBuilder name = new StringBuilder(method.getName()).append('(');
+        for (Class<?> parameter : method.getParameterTypes()) {
+            name.append(name.charAt(name.length() - 1) == '(' ? "" : ",").append(parameter.getSimpleName());
+        }
+        return name.append(')').toString();
+    }
+
+    /**
+     * Publishes the gauges of every limit.
+     */
+    void registerMetrics() {
+        reads.registerMetrics();
+        writes.registerMetrics();
+        polls.registerMetrics();
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return A one line summary of the admitted and rejected requests
+     */
+    String getStats() {
+        return "Admission control " + reads + "; " + writes + "; " + polls;
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list that only grows at the end, written by a single thread and read by any number of threads without locking.
+ * Elements are stored in fixed size chunks so growing never copies existing elements. An element is written
+ * before the size is published through a volatile field, so readers see every element below the size they read.
+ *
+ * @param <T> Element type
+ */
+class AppendOnlyList<T> extends AbstractList<T> implements RandomAccess {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private volatile Object[][] chunks = new Object[1][];
+    private volatile int size;
+
+    /**
+     * Appends an element. Must only be called by the writer thread.
+     * @param element Element to append
+     * @return Always true
+     */
+    @Override
+    public boolean add(T element) {
+        int index = size;
+        int chunk = index >>> CHUNK_BITS;
+        Object[][] current = chunks;
+        if (chunk == current.length) {
+            Object[][] grown = new Object[current.length * 2][];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+            chunks = grown;
+        }
+        if (current[chunk] == null) {
+            current[chunk] = new Object[CHUNK_SIZE];
+        }
+        current[chunk][index & (CHUNK_SIZE - 1)] = element;
+        size = index + 1;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return (T) chunks[index >>> CHUNK_BITS][index & (CHUNK_SIZE - 1)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
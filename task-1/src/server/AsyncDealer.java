@@ -0,0 +1,156 @@
+package server;
+
+import interfaces.Car;
+import interfaces.DealerException;
+import interfaces.InsertStatus;
+import interfaces.Receipt;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Asynchronous access to a {@link Dealer} from within the server's JVM.
+ * <p>
+ * Reads are served from memory and complete before the method returns. Inserts are handed to the store's
+ * writer thread and no thread waits for them: the future is completed once the log is durable, so a slow
+ * disk holds back nothing but the futures of the inserts it is writing. The number of inserts in progress
+ * is bounded by the same settings as the RMI write limit plus its queue, further inserts fail right away.
+ * <p>
+ * The store completes inserts on its writer and group commit threads, the futures handed out here are
+ * completed on the given executor instead so that callers can chain work onto them safely.
+ */
+class AsyncDealer implements AsyncDealerInterface {
+    private final Dealer dealer;
+    private final Executor executor;
+    private final AdmissionControl.Limit inserts;
+
+    /**
+     * Completes the futures on the common fork/join pool.
+     */
+    AsyncDealer(Dealer dealer) {
+        this(dealer, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param dealer Dealer whose store is used
+     * @param executor Executor the futures are completed on
+     */
+    AsyncDealer(Dealer dealer, Executor executor) {
+        this.dealer = dealer;
+        this.executor = executor;
+        inserts = new AdmissionControl.Limit("async write",
+                DealerConfig.maxConcurrentWrites() + DealerConfig.maxQueuedRequests(), 0, 0);
+    }
+
+    /**
+     * Publishes the gauges of the limit of inserts in progress.
+     */
+    void registerMetrics() {
+        inserts.registerMetrics();
+    }
+
+    @Override
+    public CompletableFuture<Car> findCarBySerialNumber(String serialNumber) {
+        return CompletableFuture.completedFuture(dealer.store.findCar(serialNumber));
+    }
+
+    @Override
+    public CompletableFuture<List<Car>> findCarsByBrand(String brand) {
+        return CompletableFuture.completedFuture(new ArrayList<>(dealer.store.findCarsByBrand(brand)));
+    }
+
+    @Override
+    public CompletableFuture<Void> createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) {
+        Car car = new Car(serialNumber, brand, model, color, year, price, weight);
+        return insert(() -> dealer.checkRoomFor(DataStore.estimateSize(car), "car " + serialNumber + " was"),
+                () -> dealer.store.insertCarAsync(car), "Car " + serialNumber)
+                .thenApply(statuses -> rejectIfRefused(statuses, serialNumber, null));
+    }
+
+    @Override
+    public CompletableFuture<Receipt> findReceiptById(String id) {
+        return CompletableFuture.completedFuture(dealer.store.findReceipt(id));
+    }
+
+    @Override
+    public CompletableFuture<List<Receipt>> getReceiptsByVendor(String vendor) {
+        return CompletableFuture.completedFuture(new ArrayList<>(dealer.store.findReceiptsByVendor(vendor)));
+    }
+
+    @Override
+    public CompletableFuture<Void> createReceipt(String ID, String vendor, String carSerialNumber, Date date) {
+        Receipt receipt = new Receipt(ID, vendor, carSerialNumber, date);
+        return insert(() -> dealer.checkRoomFor(DataStore.estimateSize(receipt), "receipt " + ID + " was"),
+                () -> dealer.store.insertReceiptAsync(receipt), "Receipt " + ID)
+                .thenApply(statuses -> rejectIfRefused(statuses, ID, carSerialNumber));
+    }
+
+    @Override
+    public CompletableFuture<List<InsertStatus>> createCars(List<Car> cars) {
+        return insert(() -> dealer.checkRoomForCars(cars), () -> dealer.store.insertCarsAsync(cars),
+                cars.size() + " cars");
+    }
+
+    @Override
+    public CompletableFuture<List<InsertStatus>> createReceipts(List<Receipt> receipts) {
+        return insert(() -> dealer.checkRoomForReceipts(receipts), () -> dealer.store.insertReceiptsAsync(receipts),
+                receipts.size() + " receipts");
+    }
+
+    /**
+     * Fails the future of a single insert with the DealerException the synchronous call would have thrown.
+     */
+    private static Void rejectIfRefused(List<InsertStatus> statuses, String key, String carSerialNumber) {
+        DealerException rejected = statuses.get(0).toException(key, carSerialNumber);
+        if (rejected != null) {
+            throw new CompletionException(rejected);
+        }
+        return null;
+    }
+
+    private interface Check {
+        void run() throws RemoteException;
+    }
+
+    private interface Insert {
+        CompletableFuture<List<InsertStatus>> start();
+    }
+
+    /**
+     * Runs an insert if it fits in the memory budget and in the limit of inserts in progress.
+     * @param what Subject of the error message if the insert fails
+     */
+    private CompletableFuture<List<InsertStatus>> insert(Check check, Insert insert, String what) {
+        try {
+            check.run();
+        } catch (RemoteException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (!inserts.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RemoteException("Server busy, too many inserts in progress"));
+        }
+        CompletableFuture<List<InsertStatus>> done = new CompletableFuture<>();
+        insert.start().whenComplete((statuses, failure) -> {
+            inserts.release();
+            executor.execute(() -> {
+                if (failure == null) {
+                    done.complete(statuses);
+                    return;
+                }
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                if (cause instanceof IOException) {
+                    System.out.println("Error writing to the log: " + cause);
+                }
+                done.completeExceptionally(new RemoteException(what + " could not be saved", cause));
+            });
+        });
+        return done;
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import interfaces.Car;
+import interfaces.DealerInterface;
+import interfaces.InsertStatus;
+import interfaces.Receipt;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of the core operations of {@link DealerInterface}. Every method returns right away,
+ * the future is completed with the result or failed with the RemoteException or DealerException the call
+ * would have thrown.
+ * A call that can't be accepted because too many are already in progress fails the same way.
+ */
+interface AsyncDealerInterface {
+    /**
+     * Searches the database for the car with the given serial number.
+     * @param serialNumber Serial number to search for
+     * @return the car object with the given serial number or null if not found
+     */
+    CompletableFuture<Car> findCarBySerialNumber(String serialNumber);
+
+    /**
+     * Searches the database for the car objects with the given brand name.
+     * @param brand Car brand to search for
+     * @return a list of car objects with the given brand name, an empty list if no matches are found
+     */
+    CompletableFuture<List<Car>> findCarsByBrand(String brand);
+
+    /**
+     * Creates a new car object with the given properties and adds the created object to the database.
+     * @return a future completed once the car is saved
+     */
+    CompletableFuture<Void> createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight);
+
+    /**
+     * Searches the database for the receipt with the given id.
+     * @param id Receipt id to search for
+     * @return Receipt object with the given id or null if not found
+     */
+    CompletableFuture<Receipt> findReceiptById(String id);
+
+    /**
+     * Searches the database for the receipt objects with the given vendor name.
+     * @param vendor Vendor name to search for
+     * @return a list of receipts with the given vendor name, an empty list if no matches are found
+     */
+    CompletableFuture<List<Receipt>> getReceiptsByVendor(String vendor);
+
+    /**
+     * Creates a new receipt object with the given properties and adds the created object to the database.
+     * @return a future completed once the receipt is saved
+     */
+    CompletableFuture<Void> createReceipt(String ID, String vendor, String carSerialNumber, Date date);
+
+    /**
+     * Adds all the given cars to the database in a single write, see {@link DealerInterface#createCars(List)}.
+     * @return the outcome for each car, in the same order as the given list
+     */
+    CompletableFuture<List<InsertStatus>> createCars(List<Car> cars);
+
+    /**
+     * Adds all the given receipts to the database in a single write, see {@link DealerInterface#createReceipts(List)}.
+     * @return the outcome for each receipt, in the same order as the given list
+     */
+    CompletableFuture<List<InsertStatus>> createReceipts(List<Receipt> receipts);
+}
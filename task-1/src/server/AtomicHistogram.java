@@ -0,0 +1,44 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link LatencyHistogram} that any number of threads record into at once. Recording increments one
+ * bucket and a few counters atomically and never allocates, reading takes a snapshot that may be a few
+ * values behind the calls in progress.
+ */
+final class AtomicHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(LatencyHistogram.indexOf(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return A copy of the histogram for computing percentiles
+     */
+    LatencyHistogram snapshot() {
+        long[] copy = new long[LatencyHistogram.BUCKETS];
+        long total = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new LatencyHistogram(copy, total, sum.sum(), max.get());
+    }
+}
@@ -0,0 +1,315 @@
+package server;
+
+import client.BinaryDealer;
+import interfaces.Car;
+import interfaces.DealerException;
+import interfaces.DealerInterface;
+import interfaces.Receipt;
+import interfaces.SearchQuery;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Measures the six core Dealer operations and the search on generated data sets, by calling a Dealer directly,
+ * through a local RMI registry and through the binary transport, so that regressions in the storage and lookup
+ * paths show up as numbers and the transports can be compared.
+ * <p>
+ * Each operation is run on the given number of threads, one by default, first for a warm up period that is
+ * thrown away and then for the measured period. With several threads the RMI calls are spread over several
+ * connections while the binary calls are pipelined over one. For every operation it prints the throughput,
+ * latency percentiles and the bytes allocated per call. Allocation is counted over every thread of the JVM,
+ * so with RMI and the binary transport it includes the server side.
+ * <p>
+ * Usage: {@code java -Xmx4g -classpath "out" server.Benchmark [--sizes 1000,100000,1000000]
+ * [--mode local,rmi,binary] [--threads threads] [--warmup seconds] [--seconds seconds] [--port port]}
+ * <p>
+ * Every data set is written to a temporary directory that is deleted afterwards. The server settings
+ * (-Ddealer.fsync, -Ddealer.storage, ...) apply as usual, inserts are timed with the configured sync policy.
+ */
+public class Benchmark {
+    private static final int POPULATE_BATCH = 10_000;
+    private static final int RECORDS_PER_NAME = 100;
+
+    /**
+     * One call of the operation being measured.
+     */
+    private interface Operation {
+        void run(DealerInterface dealer, SplittableRandom random) throws RemoteException, DealerException;
+    }
+
+    private final int size;
+    private final int names;
+    private final Map<String, Operation> operations = new LinkedHashMap<>();
+    // Keys of the records created while measuring, unique across modes
+    private final AtomicLong created = new AtomicLong();
+
+    private Benchmark(int size) {
+        this.size = size;
+        names = names(size);
+        operations.put("findCarBySerialNumber", (dealer, random) -> dealer.findCarBySerialNumber("C" + random.nextInt(size)));
+        operations.put("findCarsByBrand", (dealer, random) -> dealer.findCarsByBrand("Brand " + random.nextInt(names)));
+        operations.put("findReceiptById", (dealer, random) -> dealer.findReceiptById("R" + random.nextInt(size)));
+        operations.put("getReceiptsByVendor", (dealer, random) -> dealer.getReceiptsByVendor("Vendor " + random.nextInt(names)));
+        // Type-ahead, a prefix of a brand as if typed one key at a time
+        operations.put("search", (dealer, random) -> {
+            String brand = "Brand " + random.nextInt(names);
+            dealer.search(new SearchQuery(brand.substring(0, 1 + random.nextInt(brand.length()))).limit(10));
+        });
+        // New records get their own brand and vendor so the lists read above keep their size
+        operations.put("createCar", (dealer, random) -> dealer.createCar("N" + created.incrementAndGet(), "New", "Model", "Red", 2020, 20_000, 1200));
+        operations.put("createReceipt", (dealer, random) -> dealer.createReceipt("N" + created.incrementAndGet(), "New", "C" + random.nextInt(size), new Date()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1_000, 100_000, 1_000_000};
+        Set<String> modes = new HashSet<>(Arrays.asList("local", "rmi", "binary"));
+        int threads = 1;
+        int warmupSeconds = 2;
+        int seconds = 5;
+        int port = 4445;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--mode":
+                    modes = new HashSet<>(Arrays.asList(args[i + 1].split(",")));
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        System.out.println("Sync policy " + DealerConfig.syncPolicy() + ", storage "
+                + (DealerConfig.mappedStorage() ? "mapped" : "memory") + ", " + warmupSeconds + " s warm up and "
+                + seconds + " s measured per operation on " + threads + " threads, latencies in microseconds");
+        for (int size : sizes) {
+            new Benchmark(size).run(modes, threads, warmupSeconds, seconds, port);
+        }
+    }
+
+    private void run(Set<String> modes, int threads, int warmupSeconds, int seconds, int port) throws Exception {
+        Path directory = Files.createTempDirectory("dealer-benchmark");
+        DataStore store = openStore(directory);
+        try {
+            long start = System.nanoTime();
+            populate(store, size);
+            System.out.println();
+            System.out.println(size + " cars and " + size + " receipts, " + names + " brands and vendors, generated in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            System.out.println(String.format("%-10s %-22s %12s %9s %9s %9s %9s %9s %12s",
+                    "mode", "operation", "ops/s", "p50", "p90", "p99", "p99.9", "max", "bytes/op"));
+
+            Dealer dealer = new Dealer(store);
+            DealerInterface exported = dealer.admission.wrap(dealer);
+            if (modes.contains("local")) {
+                measure("in-process", dealer, threads, warmupSeconds, seconds);
+            }
+            if (modes.contains("rmi")) {
+                Registry registry = LocateRegistry.createRegistry(port);
+                try {
+                    registry.rebind("Dealer", UnicastRemoteObject.exportObject(exported, 0));
+                    DealerInterface remote = (DealerInterface) LocateRegistry.getRegistry("localhost", port).lookup("Dealer");
+                    measure("rmi", remote, threads, warmupSeconds, seconds);
+                } finally {
+                    UnicastRemoteObject.unexportObject(exported, true);
+                    UnicastRemoteObject.unexportObject(registry, true);
+                }
+            }
+            if (modes.contains("binary")) {
+                BinaryServer server = new BinaryServer(exported, dealer, 0);
+                server.start();
+                try (BinaryDealer remote = new BinaryDealer("localhost", server.getPort())) {
+                    measure("binary", remote, threads, warmupSeconds, seconds);
+                } finally {
+                    server.close();
+                }
+            }
+        } finally {
+            store.close();
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Opens and loads a store in the given directory with the configured server settings.
+     */
+    static DataStore openStore(Path directory) throws IOException {
+        DataStore store = new DataStore(directory.resolve("cars.dat").toString(), directory.resolve("receipts.dat").toString(),
+                directory.resolve("inserts.log").toString(), 0, DealerConfig.syncPolicy(), DealerConfig.groupCommitMillis(),
+                DealerConfig.compactionThreshold(), DealerConfig.mappedStorage(), DealerConfig.materializedReports(),
+                DealerConfig.replicationBacklog(), DealerConfig.receiptChecks());
+        store.load();
+        return store;
+    }
+
+    /**
+     * @return Number of brands and vendors of a data set, sized so that each of them has about the same number
+     * of records at any size
+     */
+    static int names(int size) {
+        return Math.max(1, size / RECORDS_PER_NAME);
+    }
+
+    /**
+     * Inserts cars C0 to C[size - 1] and receipts R0 to R[size - 1], receipt n selling car n, spread over
+     * {@link #names(int)} brands and vendors.
+     */
+    static void populate(DataStore store, int size) throws IOException {
+        int names = names(size);
+        List<Car> cars = new ArrayList<>(POPULATE_BATCH);
+        List<Receipt> receipts = new ArrayList<>(POPULATE_BATCH);
+        for (int i = 0; i < size; i++) {
+            cars.add(new Car("C" + i, "Brand " + i % names, "Model " + i % 50, i % 2 == 0 ? "Red" : "Blue",
+                    2000 + i % 22, 10_000 + i % 40_000, 1000 + i % 800));
+            receipts.add(new Receipt("R" + i, "Vendor " + i % names, "C" + i, new Date(946_684_800_000L + i * 60_000L)));
+            if (cars.size() == POPULATE_BATCH || i == size - 1) {
+                store.insertCars(cars);
+                store.insertReceipts(receipts);
+                cars.clear();
+                receipts.clear();
+            }
+        }
+    }
+
+    private void measure(String mode, DealerInterface dealer, int threads, int warmupSeconds, int seconds) throws Exception {
+        for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+            Run run = new Run(operation.getValue(), dealer, threads, warmupSeconds, seconds);
+            LatencyHistogram histogram = run.call();
+            double elapsedSeconds = (run.end - run.start) / 1e9;
+            System.out.println(String.format("%-10s %-22s %,12.0f %9.1f %9.1f %9.1f %9.1f %9.1f %,12d",
+                    mode, operation.getKey(), histogram.getCount() / elapsedSeconds,
+                    histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3,
+                    histogram.percentile(99.9) / 1e3, histogram.getMax() / 1e3,
+                    run.allocatedBefore < 0 ? -1 : (run.allocatedAfter - run.allocatedBefore) / Math.max(histogram.getCount(), 1)));
+        }
+    }
+
+    /**
+     * One operation measured on several threads. The threads meet at a barrier after the warm up and after the
+     * measured period, the allocation counters are read while they wait there so none of them is lost.
+     */
+    private static class Run {
+        private final Operation call;
+        private final DealerInterface dealer;
+        private final int threads;
+        private final long warmupNanos;
+        private final long measuredNanos;
+        private final CyclicBarrier barrier;
+        private volatile long start;
+        private volatile long end;
+        private long allocatedBefore;
+        private long allocatedAfter;
+
+        Run(Operation call, DealerInterface dealer, int threads, int warmupSeconds, int seconds) {
+            this.call = call;
+            this.dealer = dealer;
+            this.threads = threads;
+            this.warmupNanos = warmupSeconds * 1_000_000_000L;
+            this.measuredNanos = seconds * 1_000_000_000L;
+            barrier = new CyclicBarrier(threads, () -> {
+                if (start == 0) {
+                    allocatedBefore = allocatedBytes();
+                    start = System.nanoTime();
+                    end = start + measuredNanos;
+                } else {
+                    allocatedAfter = allocatedBytes();
+                    end = System.nanoTime();
+                }
+            });
+        }
+
+        /**
+         * @return The latencies of every thread
+         */
+        LatencyHistogram call() throws Exception {
+            LatencyHistogram[] histograms = new LatencyHistogram[threads];
+            Exception[] failures = new Exception[threads];
+            Thread[] workers = new Thread[threads];
+            long warmupEnd = System.nanoTime() + warmupNanos;
+            for (int t = 0; t < threads; t++) {
+                int index = t;
+                histograms[t] = new LatencyHistogram();
+                workers[t] = new Thread(() -> {
+                    try {
+                        work(histograms[index], new SplittableRandom(42 + index), warmupEnd);
+                    } catch (Exception e) {
+                        failures[index] = e;
+                        barrier.reset();
+                    }
+                }, "benchmark-" + t);
+                workers[t].start();
+            }
+            LatencyHistogram merged = new LatencyHistogram();
+            for (int t = 0; t < threads; t++) {
+                workers[t].join();
+                if (failures[t] != null) {
+                    throw failures[t];
+                }
+                merged.add(histograms[t]);
+            }
+            return merged;
+        }
+
+        private void work(LatencyHistogram histogram, SplittableRandom random, long warmupEnd)
+                throws RemoteException, DealerException, InterruptedException, BrokenBarrierException {
+            while (System.nanoTime() < warmupEnd) {
+                call.run(dealer, random);
+            }
+            barrier.await();
+            long now = System.nanoTime();
+            while (now < end) {
+                call.run(dealer, random);
+                long finished = System.nanoTime();
+                histogram.record(finished - now);
+                now = finished;
+            }
+            barrier.await();
+        }
+    }
+
+    /**
+     * @return Bytes allocated so far by the live threads of the JVM, -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(bytes, 0);
+        }
+        return total;
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
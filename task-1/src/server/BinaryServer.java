@@ -0,0 +1,466 @@
+package server;
+
+import interfaces.BinaryProtocol;
+import interfaces.Car;
+import interfaces.DealerInterface;
+import interfaces.Receipt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves a dealer over the binary protocol of {@link BinaryProtocol}, next to RMI.
+ * <p>
+ * A single selector thread accepts the connections, reads the request frames and writes the responses that
+ * could not be written right away. The calls themselves run on worker threads, like RMI calls, so a client can
+ * pipeline requests on one connection and a slow insert never holds back the reads queued behind it. The dealer
+ * given is expected to be the admission controlled proxy, which bounds the number of calls in progress. The
+ * workers are bounded by the same limits: there is one thread per call admission control lets run at once and
+ * a queue as long as its wait queue. A request finding both full is answered "Server busy" by the selector
+ * thread, without taking a thread.
+ * <p>
+ * Inserts are handed to the store through an {@link AsyncDealer} when one is given: the worker returns as soon
+ * as the records are queued for the writer thread and the response is sent once the log is durable, so no
+ * worker is parked while the log is synced. The async dealer bounds the number of inserts in progress instead.
+ * <p>
+ * A connection stops being read while too many of its responses wait to be written, so a client that sends
+ * requests without reading the responses can't make the server buffer them without bound.
+ */
+class BinaryServer implements Closeable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_QUEUED_RESPONSES = 1024;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+    // Arguments of INVOKE requests may only contain the types used by the interface
+    private static final ObjectInputFilter ARGUMENT_FILTER =
+            ObjectInputFilter.Config.createFilter("maxdepth=20;interfaces.*;java.lang.*;java.util.*;!*");
+
+    private final DealerInterface dealer;
+    // Null to make the create calls on the dealer like the other calls
+    private final AsyncDealer inserts;
+    private final Map<String, Method> methods = new HashMap<>();
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ThreadPoolExecutor workers;
+    private final Thread selectorThread;
+    private volatile boolean closed;
+    // Requests refused because every worker was busy and the queue full
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Binds the server socket, call {@link #start()} to accept connections.
+     * @param dealer Dealer the calls are made on
+     * @param store Dealer whose store the create calls are handed to without waiting for the log, null to make
+     *              them on dealer
+     * @param port Port to listen on, 0 for any free port
+     */
+    BinaryServer(DealerInterface dealer, Dealer store, int port) throws IOException {
+        this.dealer = dealer;
+        for (Method method : DealerInterface.class.getMethods()) {
+            // Remote iterators and subscriptions can only be exported through RMI, the client pages or polls instead
+            if (!Remote.class.isAssignableFrom(method.getReturnType())) {
+                methods.put(BinaryProtocol.signature(method.getName(), method.getParameterTypes()), method);
+            }
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        int maxWorkers = DealerConfig.maxConcurrentReads() + DealerConfig.maxConcurrentWrites() + DealerConfig.maxConcurrentPolls();
+        int maxQueued = DealerConfig.maxQueuedRequests();
+        workers = new ThreadPoolExecutor(0, maxWorkers, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new HandoffQueue(),
+                task -> {
+                    Thread thread = new Thread(task, "binary-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, pool) -> {
+                    // Every worker is busy, the request waits for one if the queue has room
+                    if (pool.isShutdown() || pool.getQueue().size() >= maxQueued) {
+                        throw new RejectedExecutionException();
+                    }
+                    ((HandoffQueue) pool.getQueue()).put(task);
+                });
+        inserts = store != null ? new AsyncDealer(store, this::complete) : null;
+        selectorThread = new Thread(this::run, "binary-server");
+    }
+
+    void start() {
+        if (inserts != null) {
+            inserts.registerMetrics();
+        }
+        Metrics.gauge("dealer_binary_workers", workers::getPoolSize);
+        Metrics.gauge("dealer_binary_requests_queued", () -> workers.getQueue().size());
+        Metrics.gauge("dealer_binary_requests_rejected_total", rejected::sum);
+        selectorThread.start();
+    }
+
+    /**
+     * Work queue of the workers that only takes a task when a worker is idle, so that the pool starts a thread
+     * for a request rather than queueing it until it has as many as allowed. Once it has, the requests queue
+     * up through the rejection handler.
+     */
+    private static final class HandoffQueue extends LinkedTransferQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public boolean offer(Runnable task) {
+            return tryTransfer(task);
+        }
+    }
+
+    /**
+     * Runs the completion of an insert on a worker, or right here if every worker is busy or the server is
+     * closing. Completing is short, it encodes the response and writes it without blocking.
+     */
+    private void complete(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * @return Port the server listens on
+     */
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        // A client closing its connection is not an error
+                        if (!(e instanceof EOFException)) {
+                            Metrics.ioErrors.increment();
+                            System.out.println("Closing a binary connection after an error: " + e);
+                        }
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    Metrics.ioErrors.increment();
+                    System.out.println("Binary transport error: " + e);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        closeQuietly(selector);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones, calls in progress are abandoned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * One client connection. Reading happens on the selector thread only, writing on whichever thread
+     * finishes a call or on the selector thread once the socket has room again.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // Responses waiting for room in the socket, guarded by this
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Reads what the socket has and hands every complete frame to a worker.
+         */
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new EOFException();
+            }
+            in.flip();
+            int needed = 0;
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < BinaryProtocol.HEADER_SIZE - 4 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                int start = in.position() + 4;
+                ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOfRange(in.array(), start, start + length));
+                in.position(start + length);
+                dispatch(frame);
+            }
+            in.compact();
+            if (needed > in.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+        }
+
+        private void dispatch(ByteBuffer frame) {
+            try {
+                workers.execute(() -> handle(frame).thenAccept(this::send));
+            } catch (RejectedExecutionException e) {
+                if (!closed) {
+                    rejected.increment();
+                    send(error(frame.getInt(), new RemoteException("Server busy, too many binary requests queued")));
+                }
+            }
+        }
+
+        /**
+         * Writes a response, or queues it if the socket has no room or earlier responses are still queued.
+         */
+        synchronized void send(ByteBuffer response) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (out.isEmpty()) {
+                try {
+                    channel.write(response);
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (!response.hasRemaining()) {
+                    return;
+                }
+            }
+            out.add(response);
+            try {
+                // Stop reading requests until the client catches up with the responses
+                key.interestOps(out.size() > MAX_QUEUED_RESPONSES ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException e) {
+                return;
+            }
+            selector.wakeup();
+        }
+
+        /**
+         * Writes the queued responses the socket has room for.
+         */
+        synchronized void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer response = out.peek();
+                channel.write(response);
+                if (response.hasRemaining()) {
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        synchronized void close() {
+            key.cancel();
+            out.clear();
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Runs the call of a request frame.
+     * @param frame Frame without its length, positioned at the request id
+     * @return The response frame, completed once the call is
+     */
+    private CompletableFuture<ByteBuffer> handle(ByteBuffer frame) {
+        int requestId = frame.getInt();
+        byte code = frame.get();
+        try {
+            return call(requestId, code, frame).exceptionally(e ->
+                    error(requestId, e instanceof CompletionException ? e.getCause() : e));
+        } catch (Throwable e) {
+            return CompletableFuture.completedFuture(error(requestId, e));
+        }
+    }
+
+    private static ByteBuffer error(int requestId, Throwable e) {
+        // Same as RMI, errors are wrapped and exceptions reach the client as they are
+        Throwable failure = e instanceof Error ? new ServerError("Error occurred in server thread", (Error) e) : e;
+        BinaryProtocol.FrameWriter error = new BinaryProtocol.FrameWriter(requestId, BinaryProtocol.ERROR);
+        try {
+            error.writeObject(failure);
+        } catch (IOException notSerializable) {
+            error = new BinaryProtocol.FrameWriter(requestId, BinaryProtocol.ERROR);
+            try {
+                error.writeObject(new RemoteException(failure.toString()));
+            } catch (IOException impossible) {
+                throw new IllegalStateException(impossible);
+            }
+        }
+        return error.finish();
+    }
+
+    /**
+     * Times an insert that bypasses the admission controlled proxy like the calls made through it.
+     */
+    private static <T> CompletableFuture<T> timed(String method, CompletableFuture<T> insert) {
+        Metrics.Timer timer = Metrics.call(method);
+        long start = System.nanoTime();
+        return insert.whenComplete((result, failure) -> {
+            if (failure != null) {
+                timer.errors.increment();
+            }
+            timer.record(start);
+        });
+    }
+
+    private CompletableFuture<ByteBuffer> call(int requestId, byte code, ByteBuffer body) throws Throwable {
+        BinaryProtocol.FrameWriter out = new BinaryProtocol.FrameWriter(requestId, BinaryProtocol.OK);
+        switch (code) {
+            case BinaryProtocol.FIND_CAR:
+                out.writeCar(dealer.findCarBySerialNumber(BinaryProtocol.readString(body)));
+                break;
+            case BinaryProtocol.FIND_CARS_BY_BRAND:
+                out.writeCars(dealer.findCarsByBrand(BinaryProtocol.readString(body)));
+                break;
+            case BinaryProtocol.CREATE_CAR:
+                Car car = BinaryProtocol.readCar(body);
+                if (car == null) {
+                    throw new RemoteException("No car to create");
+                }
+                if (inserts != null) {
+                    return timed("createCar", inserts.createCar(car.getSerialNumber(), car.getBrand(), car.getModel(),
+                            car.getColor(), car.getYear(), car.getPrice(), car.getWeight())).thenApply(done -> out.finish());
+                }
+                dealer.createCar(car.getSerialNumber(), car.getBrand(), car.getModel(), car.getColor(), car.getYear(),
+                        car.getPrice(), car.getWeight());
+                break;
+            case BinaryProtocol.FIND_RECEIPT:
+                out.writeReceipt(dealer.findReceiptById(BinaryProtocol.readString(body)));
+                break;
+            case BinaryProtocol.RECEIPTS_BY_VENDOR:
+                out.writeReceipts(dealer.getReceiptsByVendor(BinaryProtocol.readString(body)));
+                break;
+            case BinaryProtocol.CREATE_RECEIPT:
+                Receipt receipt = BinaryProtocol.readReceipt(body);
+                if (receipt == null) {
+                    throw new RemoteException("No receipt to create");
+                }
+                if (inserts != null) {
+                    return timed("createReceipt", inserts.createReceipt(receipt.getID(), receipt.getVendor(),
+                            receipt.getCarSerialNumber(), receipt.getDate())).thenApply(done -> out.finish());
+                }
+                dealer.createReceipt(receipt.getID(), receipt.getVendor(), receipt.getCarSerialNumber(), receipt.getDate());
+                break;
+            case BinaryProtocol.CREATE_CARS:
+                List<Car> cars = BinaryProtocol.readCars(body);
+                if (inserts != null) {
+                    return timed("createCars", inserts.createCars(cars)).thenApply(statuses -> {
+                        out.writeStatuses(statuses);
+                        return out.finish();
+                    });
+                }
+                out.writeStatuses(dealer.createCars(cars));
+                break;
+            case BinaryProtocol.CREATE_RECEIPTS:
+                List<Receipt> receipts = BinaryProtocol.readReceipts(body);
+                if (inserts != null) {
+                    return timed("createReceipts", inserts.createReceipts(receipts)).thenApply(statuses -> {
+                        out.writeStatuses(statuses);
+                        return out.finish();
+                    });
+                }
+                out.writeStatuses(dealer.createReceipts(receipts));
+                break;
+            case BinaryProtocol.BRAND_VERSION:
+                out.writeLong(dealer.getBrandVersion(BinaryProtocol.readString(body)));
+                break;
+            case BinaryProtocol.VENDOR_VERSION:
+                out.writeLong(dealer.getVendorVersion(BinaryProtocol.readString(body)));
+                break;
+            case BinaryProtocol.INVOKE:
+                String signature = BinaryProtocol.readString(body);
+                Method method = methods.get(signature);
+                if (method == null) {
+                    throw new RemoteException("Unknown method " + signature);
+                }
+                Object[] arguments = (Object[]) BinaryProtocol.readObject(body, ARGUMENT_FILTER);
+                try {
+                    out.writeObject(method.invoke(dealer, arguments));
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                break;
+            default:
+                throw new RemoteException("Unknown operation " + code);
+        }
+        return CompletableFuture.completedFuture(out.finish());
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+/**
+ * Set of strings that answers "definitely not present" or "maybe present", used to rule keys out of a
+ * {@link MappedSnapshot} without touching the mapping. Ten bits per key and seven probes give about one
+ * false positive in a hundred, a positive answer is then confirmed with the snapshot's own index.
+ * <p>
+ * The probes are derived from one 64-bit hash of the string by double hashing. The filter is built once
+ * with its snapshot index and read-only afterwards.
+ */
+final class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+
+    private final long[] words;
+    private final int mask;
+
+    /**
+     * @param expectedKeys Number of keys the filter is sized for
+     */
+    BloomFilter(int expectedKeys) {
+        this(new long[wordsFor(expectedKeys)]);
+    }
+
+    /**
+     * @param words Bits of a filter written by {@link #words()}, the length must be a power of two
+     */
+    BloomFilter(long[] words) {
+        this.words = words;
+        mask = words.length * 64 - 1;
+    }
+
+    /**
+     * @return Number of 64-bit words of a filter sized for the given number of keys, a power of two
+     */
+    static int wordsFor(int expectedKeys) {
+        long bits = Math.max(64, (long) expectedKeys * BITS_PER_KEY);
+        return (int) Math.min(1 << 24, Long.highestOneBit(bits - 1) << 1 >>> 6);
+    }
+
+    void add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return False if the key was never added, true if it may have been
+     */
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long[] words() {
+        return words;
+    }
+
+    /**
+     * Spreads the string hash over 64 bits with the finalizer of MurmurHash3.
+     */
+    private static long hash(String key) {
+        long h = key == null ? 0 : key.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import interfaces.Car;
+
+/**
+ * Cars stored column by column, the brand, model and color as ids of one dictionary.
+ */
+final class CarColumns extends RecordColumns<Car, CarColumns.Chunk> {
+    private final Strings strings = new Strings();
+
+    static final class Chunk {
+        final String[] serialNumbers = new String[CHUNK_SIZE];
+        final int[] brands = new int[CHUNK_SIZE];
+        final int[] models = new int[CHUNK_SIZE];
+        final int[] colors = new int[CHUNK_SIZE];
+        final int[] years = new int[CHUNK_SIZE];
+        final float[] prices = new float[CHUNK_SIZE];
+        final float[] weights = new float[CHUNK_SIZE];
+    }
+
+    @Override
+    Chunk newChunk() {
+        return new Chunk();
+    }
+
+    @Override
+    void write(Chunk chunk, int slot, Car car) {
+        chunk.serialNumbers[slot] = car.getSerialNumber();
+        chunk.brands[slot] = strings.idOf(car.getBrand());
+        chunk.models[slot] = strings.idOf(car.getModel());
+        chunk.colors[slot] = strings.idOf(car.getColor());
+        chunk.years[slot] = car.getYear();
+        chunk.prices[slot] = car.getPrice();
+        chunk.weights[slot] = car.getWeight();
+    }
+
+    @Override
+    Car read(Chunk chunk, int slot) {
+        return new Car(chunk.serialNumbers[slot], strings.get(chunk.brands[slot]), strings.get(chunk.models[slot]),
+                strings.get(chunk.colors[slot]), chunk.years[slot], chunk.prices[slot], chunk.weights[slot]);
+    }
+
+    @Override
+    String key(Chunk chunk, int slot) {
+        return chunk.serialNumbers[slot];
+    }
+
+    @Override
+    long dictionaryBytes() {
+        // A string, its list slot and its hash map entry, with an average length of 8
+        return strings.size() * (40L + 8 + 4 + 48);
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import interfaces.Car;
+import interfaces.ChangeBatch;
+import interfaces.ChangeFilter;
+import interfaces.Receipt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The most recent inserts of a store in the order of their log sequence numbers, for replicas to pull and
+ * for change subscribers, see {@link Subscriber}.
+ * <p>
+ * The writer thread publishes every log entry once its records are visible, so whatever the feed hands out
+ * can also be read from the store, but the feed only hands out entries up to the last one the log has made
+ * durable. A replica or subscriber therefore never sees an insert that a crash could still take back. Entries are kept in a ring of a fixed number of entries that only holds
+ * references to records the store keeps anyway. A replica that falls further behind than the ring reaches
+ * gets a reset batch and copies the whole store instead. The ring is the only buffer: a reader holds nothing
+ * but its position, so any number of slow readers cost the writer nothing and fall behind on their own.
+ * <p>
+ * The feed is not persisted, its id changes every time the store is loaded so that a replica notices that
+ * the sequence numbers it followed are gone.
+ */
+class ChangeFeed {
+    // Entries copied out of the ring per turn of the lock
+    private static final int ENTRIES_PER_COPY = 256;
+
+    /**
+     * The records of one log entry.
+     */
+    private static final class Change {
+        final boolean cars;
+        final List<?> records;
+
+        Change(boolean cars, List<?> records) {
+            this.cars = cars;
+            this.records = records;
+        }
+    }
+
+    private final long feedId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    // Guarded by this, entry n is at n % length. Entries never change once published
+    private final Change[] ring;
+    private long firstSequence = 1;
+    private long lastSequence;
+    // Entries up to this one are durable, readers stop here
+    private long durableSequence;
+    private final RateMeter sent = new RateMeter();
+
+    /**
+     * @param capacity Number of log entries kept
+     */
+    ChangeFeed(int capacity) {
+        ring = new Change[Math.max(1, capacity)];
+    }
+
+    /**
+     * Starts the feed after the sequence number of a loaded store.
+     */
+    synchronized void start(long sequence) {
+        firstSequence = sequence + 1;
+        lastSequence = sequence;
+        durableSequence = sequence;
+    }
+
+    /**
+     * Adds the records of a log entry, they are handed out once {@link #durable(long)} reaches the entry.
+     * @param cars True for cars, false for receipts
+     * @param records Records the entry added to the store
+     */
+    synchronized void publish(long sequence, boolean cars, List<?> records) {
+        if (sequence != lastSequence + 1) {
+            // Entries in between were never published, replicas behind this one have to start over
+            firstSequence = sequence;
+            durableSequence = sequence - 1;
+        }
+        ring[(int) (sequence % ring.length)] = new Change(cars, records);
+        lastSequence = sequence;
+        firstSequence = Math.max(firstSequence, sequence - ring.length + 1);
+    }
+
+    /**
+     * Hands out the entries up to a sequence number and wakes the replicas waiting for changes.
+     * @param sequence Last entry the log has made durable
+     */
+    synchronized void durable(long sequence) {
+        if (sequence > durableSequence) {
+            durableSequence = Math.min(sequence, lastSequence);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param afterSequence Position given by a caller
+     * @return The end of the feed for {@link ChangeBatch#FROM_NOW}, including the entries that are not durable yet, the position before the oldest change the feed
+     * holds for {@link ChangeBatch#FROM_OLDEST}, otherwise the position given
+     */
+    synchronized long position(long afterSequence) {
+        if (afterSequence < ChangeBatch.FROM_OLDEST) {
+            return lastSequence;
+        }
+        return afterSequence == ChangeBatch.FROM_OLDEST ? firstSequence - 1 : afterSequence;
+    }
+
+    /**
+     * @see interfaces.ReplicationInterface#pullChanges
+     */
+    ChangeBatch read(long afterSequence, int maxRecords, long waitMillis) throws InterruptedException {
+        ChangeBatch batch = read(afterSequence, maxRecords, waitMillis, null);
+        sent.add(batch.size());
+        return batch;
+    }
+
+    /**
+     * Reads the changes following a position, keeping the records that match a filter. Changes without a
+     * match are skipped but still move the position on, so that the next read doesn't scan them again.
+     * <p>
+     * Only copying the entries out of the ring happens under the lock the writer publishes with, a few hundred
+     * at a time, the filter runs after it is released so that a reader scanning a long way never delays an insert.
+     * @param filter Records to keep, null for all
+     * @see interfaces.DealerInterface#getChanges
+     */
+    @SuppressWarnings("unchecked")
+    ChangeBatch read(long afterSequence, int maxRecords, long waitMillis, ChangeFilter filter)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        List<Car> cars = new ArrayList<>();
+        List<Receipt> receipts = new ArrayList<>();
+        Change[] copied = new Change[ENTRIES_PER_COPY];
+        long sequence = afterSequence;
+        while (true) {
+            int count;
+            long last;
+            synchronized (this) {
+                boolean found = !cars.isEmpty() || !receipts.isEmpty();
+                // Checked again every time, the ring may have moved past the position meanwhile
+                if (sequence < firstSequence - 1 || sequence > lastSequence) {
+                    // What was read before it moved is still handed out, the next read gets the reset
+                    return found ? new ChangeBatch(feedId, sequence, durableSequence, false, cars, receipts)
+                            : new ChangeBatch(feedId, durableSequence, durableSequence, true, Collections.emptyList(), Collections.emptyList());
+                }
+                if (sequence >= durableSequence) {
+                    long remaining = deadline - System.nanoTime();
+                    if (found || remaining <= 0) {
+                        return new ChangeBatch(feedId, sequence, Math.max(sequence, durableSequence), false, cars, receipts);
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    continue;
+                }
+                count = (int) Math.min(durableSequence - sequence, copied.length);
+                for (int i = 0; i < count; i++) {
+                    copied[i] = ring[(int) ((sequence + 1 + i) % ring.length)];
+                }
+                last = durableSequence;
+            }
+            for (int i = 0; i < count && cars.size() + receipts.size() < maxRecords; i++) {
+                sequence++;
+                Change change = copied[i];
+                if (change.cars) {
+                    for (Car car : (List<Car>) change.records) {
+                        if (filter == null || filter.matches(car)) {
+                            cars.add(car);
+                        }
+                    }
+                } else {
+                    for (Receipt receipt : (List<Receipt>) change.records) {
+                        if (filter == null || filter.matches(receipt)) {
+                            receipts.add(receipt);
+                        }
+                    }
+                }
+            }
+            if (cars.size() + receipts.size() >= maxRecords) {
+                return new ChangeBatch(feedId, sequence, last, false, cars, receipts);
+            }
+        }
+    }
+
+    long getFeedId() {
+        return feedId;
+    }
+
+    /**
+     * @return Last entry handed out to readers
+     */
+    synchronized long getLastSequence() {
+        return durableSequence;
+    }
+
+    /**
+     * @return Records handed out to replicas
+     */
+    RateMeter getSent() {
+        return sent;
+    }
+}
@@ -0,0 +1,829 @@
+package server;
+
+import interfaces.Car;
+import interfaces.CarQuery;
+import interfaces.InsertStatus;
+import interfaces.Receipt;
+import interfaces.ReceiptQuery;
+import interfaces.SearchHit;
+import interfaces.SearchQuery;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps every car and receipt in memory so that reads never touch the disk.
+ * The data files are snapshots that are read once by {@link #load()}, every insert is appended
+ * to an {@link InsertLog} and applied to the in-memory lists. Once the log grows past the compaction
+ * threshold the lists are written out as new snapshots and the log is emptied.
+ * <p>
+ * Each snapshot starts with the sequence number of the last insert it contains, so log entries that
+ * are already part of a snapshot are skipped when the log is replayed after a crash.
+ * <p>
+ * Cars and receipts are indexed by their serial number and id, and by their case folded brand and vendor.
+ * The indexes are updated on every insert. The writer refuses records whose key is already taken and, if
+ * configured, receipts of unknown or already sold cars, answering from the indexes and the key filters of the
+ * snapshots without any read from disk. Files written before that may still hold a key more than once, the
+ * first record then wins, the same as the linear search the index replaces. Cars are also indexed in order
+ * of price and year and receipts in order of date and by car serial number, for the range queries of the
+ * {@link QueryPlanner}.
+ * <p>
+ * Readers never take a lock. Records live in {@link RecordTable}s that are only modified by a single
+ * writer thread. Inserting threads hand their records to the writer, which appends
+ * everything that queued up in one log write, applies it to memory and only then releases the inserting
+ * threads, so an insert is never acknowledged before it is in the log.
+ * <p>
+ * With the mapped storage engine the snapshots are not loaded at all. They are memory mapped as
+ * {@link MappedSnapshot}s and only the records inserted since the last compaction are kept on the heap.
+ * Compaction then writes new snapshots, maps them and swaps in fresh tables on top of them.
+ * <p>
+ * Sales reports join receipts to cars through the serial number index, see {@link SalesReports}. They are
+ * computed on demand or, when materialized, built once after loading and updated by the writer thread.
+ * The {@link SearchIndex} of brands, models, colors and vendors is built and updated the same way, always.
+ * <p>
+ * Every log entry is also published to a {@link ChangeFeed} once it is visible, replicas pull it from there.
+ */
+class DataStore {
+    // Rough per-record sizes on a 64-bit JVM with compressed references
+    private static final int STRING_OVERHEAD = 24 + 16;
+    private static final int CAR_COLUMNS = 4 * 4 + 3 * 4; // three dictionary ids and a reference, three numbers
+    private static final int RECEIPT_COLUMNS = 3 * 4 + 8; // a dictionary id and two references, a date
+    private static final int INDEX_ENTRIES = 8 + 4; // key index slots and name list slot
+    private static final int SORTED_INDEX_ENTRY = 24 + 24 + 8; // skip list node, its entry and index nodes
+    private static final int LOOKUP_ENTRY = 8 + 4; // key index slots and the link to the previous row
+    private static final int MAX_BATCH = 1024;
+    // Largest snapshot read into a single array to be decoded in parallel
+    private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    final String carsFilePath;
+    final String receiptsFilePath;
+    final long memoryBudget;
+    final int compactionThreshold;
+    final boolean mapped;
+    final boolean materializedReports;
+    final ReceiptChecks receiptChecks;
+    private final InsertLog log;
+    final ChangeFeed changes;
+
+    // Replaced only when a mapped compaction swaps in new snapshots
+    private volatile RecordTable<Car> cars =
+            new RecordTable<>(null, CarColumns::new, Car::getSerialNumber, Car::getBrand, DataStore::estimateSize)
+                    .withSortedIndex(QueryPlanner.PRICE, Car::getPrice)
+                    .withSortedIndex(QueryPlanner.YEAR, Car::getYear);
+    private volatile RecordTable<Receipt> receipts =
+            new RecordTable<>(null, ReceiptColumns::new, Receipt::getID, Receipt::getVendor, DataStore::estimateSize)
+                    .withSortedIndex(QueryPlanner.DATE, DataStore::dateValue)
+                    .withLookup(QueryPlanner.CAR_SERIAL_NUMBER, Receipt::getCarSerialNumber);
+    // Sequence number of the last insert of each case folded brand and vendor since loading
+    private final Map<String, Long> brandVersions = new ConcurrentHashMap<>();
+    private final Map<String, Long> vendorVersions = new ConcurrentHashMap<>();
+    // Sequence number once loading is done, -1 while loading
+    private volatile long loadedSequence = -1;
+    // Null unless reports are materialized, set once loading is done
+    private volatile SalesReports salesReports;
+    // Filled once loading is done, then updated by the writer thread
+    private final SearchIndex searchIndex = new SearchIndex();
+    private long loadTimeMillis;
+    private long measuredHeapBytes;
+    private int replayedEntries;
+
+    private final BlockingQueue<PendingInsert> pending = new LinkedBlockingQueue<>();
+    private Thread writer;
+    // Held by the writer thread while it writes a batch and by compaction
+    private final Object writeLock = new Object();
+    private long sequence;
+    private RecordCodec.Dictionary logDictionary = new RecordCodec.Dictionary();
+
+    /**
+     * How receipts are checked against the cars when they are inserted.
+     */
+    enum ReceiptChecks {
+        /** any car serial number is accepted */
+        NONE,
+        /** the car must exist */
+        CAR,
+        /** the car must exist and must not be on another receipt */
+        UNSOLD
+    }
+
+    /**
+     * One or more records of the same type waiting for the writer thread.
+     * A batch is written as a single log entry so it is either recovered as a whole or not at all,
+     * and its records that fail the checks are skipped instead of being inserted.
+     */
+    private static class PendingInsert {
+        final byte type;
+        final List<?> records;
+        final boolean batch;
+        // False for records copied from a primary, which already checked them
+        final boolean checkReceipts;
+        final InsertStatus[] statuses;
+        // Sequence number of the log entry, set by the writer thread
+        long sequence;
+        // Completed with the log position of the writer's batch once the records are written and visible
+        final CompletableFuture<Long> written = new CompletableFuture<>();
+
+        PendingInsert(byte type, List<?> records, boolean batch, boolean checkReceipts) {
+            this.type = type;
+            this.records = records;
+            this.batch = batch;
+            this.checkReceipts = checkReceipts;
+            statuses = new InsertStatus[records.size()];
+            Arrays.fill(statuses, InsertStatus.CREATED);
+        }
+    }
+
+    DataStore(String carsFilePath, String receiptsFilePath, String logFilePath, long memoryBudget,
+              InsertLog.SyncPolicy syncPolicy, long groupCommitMillis, int compactionThreshold, boolean mapped,
+              boolean materializedReports, int replicationBacklog, ReceiptChecks receiptChecks) throws IOException {
+        this.carsFilePath = carsFilePath;
+        this.receiptsFilePath = receiptsFilePath;
+        this.memoryBudget = memoryBudget;
+        this.compactionThreshold = compactionThreshold;
+        this.mapped = mapped;
+        this.materializedReports = materializedReports;
+        this.receiptChecks = receiptChecks;
+        log = new InsertLog(Paths.get(logFilePath), syncPolicy, groupCommitMillis);
+        changes = new ChangeFeed(replicationBacklog);
+    }
+
+    /**
+     * Reads both snapshots into memory, or maps them with the mapped engine, and replays the log entries
+     * that are newer than the snapshots. Missing files are treated as empty. Records the time spent and
+     * the heap growth caused by the load.
+     */
+    void load() throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+
+        long carsSequence;
+        long receiptsSequence;
+        if (mapped) {
+            carsSequence = mapSnapshots();
+            receiptsSequence = receipts.getBaseSequence();
+        } else {
+            // Both snapshots at once, each decoded and indexed on every core
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            ForkJoinTask<Long> receiptsLoad = pool.submit(() -> readSnapshot(receiptsFilePath, receipts, pool));
+            carsSequence = readSnapshot(carsFilePath, cars, pool);
+            try {
+                receiptsSequence = receiptsLoad.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading " + receiptsFilePath);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        sequence = Math.max(carsSequence, receiptsSequence);
+
+        for (InsertLog.Entry entry : log.recover()) {
+            sequence = Math.max(sequence, entry.sequence);
+            if (entry.type == InsertLog.DICTIONARY) {
+                RecordCodec.decode(entry.payload, logDictionary);
+            } else if (entry.type == InsertLog.CAR && entry.sequence > carsSequence) {
+                addCar((Car) RecordCodec.decode(entry.payload, logDictionary));
+                replayedEntries++;
+            } else if (entry.type == InsertLog.CAR_BATCH && entry.sequence > carsSequence) {
+                for (byte[] payload : unpack(entry.payload)) {
+                    addCar((Car) RecordCodec.decode(payload, logDictionary));
+                }
+                replayedEntries++;
+            } else if (entry.type == InsertLog.RECEIPT && entry.sequence > receiptsSequence) {
+                addReceipt((Receipt) RecordCodec.decode(entry.payload, logDictionary));
+                replayedEntries++;
+            } else if (entry.type == InsertLog.RECEIPT_BATCH && entry.sequence > receiptsSequence) {
+                for (byte[] payload : unpack(entry.payload)) {
+                    addReceipt((Receipt) RecordCodec.decode(payload, logDictionary));
+                }
+                replayedEntries++;
+            }
+        }
+
+        for (Car car : cars.all()) {
+            searchIndex.addCar(car);
+        }
+        for (Receipt receipt : receipts.all()) {
+            searchIndex.addReceipt(receipt);
+        }
+        loadedSequence = sequence;
+        changes.start(sequence);
+        if (materializedReports) {
+            salesReports = SalesReports.compute(receipts.all(), this::findCar, true);
+        }
+
+        writer = new Thread(this::runWriter, "store-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        loadTimeMillis = (System.nanoTime() - start) / 1_000_000;
+        System.gc();
+        measuredHeapBytes = Math.max(0, runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+
+        if (memoryBudget > 0 && getEstimatedBytes() > memoryBudget) {
+            System.out.println("Warning: loaded data (" + getEstimatedBytes() / 1024 + " KB) exceeds the memory budget ("
+                    + memoryBudget / 1024 + " KB), new records will be rejected.");
+        }
+    }
+
+    /**
+     * Reads a snapshot file into a table, migrating it first if it is still in the old serialization format.
+     * Files that fit in an array are decoded in parallel, larger ones are streamed.
+     * @param filePath File to read
+     * @param table Empty table receiving every record in the file
+     * @return Sequence number of the last insert in the snapshot, 0 if the file doesn't exist
+     */
+    private static <T> long readSnapshot(String filePath, RecordTable<T> table, ForkJoinPool pool) throws IOException {
+        File file = new File(filePath);
+        if (!migrateIfNeeded(file)) {
+            return 0;
+        }
+        long started = System.nanoTime();
+        RecordCodec.Snapshot snapshot;
+        try {
+            if (file.length() <= MAX_ARRAY_SIZE) {
+                snapshot = RecordCodec.readSnapshot(Files.readAllBytes(file.toPath()), pool);
+            } else {
+                List<Object> records = new ArrayList<>();
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+                    snapshot = new RecordCodec.Snapshot(RecordCodec.readSnapshot(in, records::add), records);
+                }
+            }
+            Metrics.snapshotReads.record(started, file.length());
+        } catch (IOException e) {
+            Metrics.snapshotReads.errors.increment();
+            Metrics.ioErrors.increment();
+            throw e;
+        }
+        @SuppressWarnings("unchecked")
+        List<T> records = (List<T>) (List<?>) snapshot.records;
+        table.addAll(records, pool);
+        return snapshot.sequence;
+    }
+
+    /**
+     * @return False if the file doesn't exist
+     */
+    private static boolean migrateIfNeeded(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+        if (!RecordCodec.isSnapshot(file)) {
+            System.out.println(file + " is in the old format, migrating...");
+            System.out.println(Migrator.migrate(file));
+        }
+        return true;
+    }
+
+    /**
+     * Maps both snapshots and puts empty tables on top of them. Called on startup and after every
+     * compaction with the mapped engine.
+     * @return Sequence number of the cars snapshot
+     */
+    private long mapSnapshots() throws IOException {
+        File carsFile = new File(carsFilePath);
+        File receiptsFile = new File(receiptsFilePath);
+        MappedSnapshot<Car> carsSnapshot = migrateIfNeeded(carsFile)
+                ? MappedSnapshot.open(carsFile, Car::getSerialNumber, null) : null;
+        MappedSnapshot<Receipt> receiptsSnapshot = migrateIfNeeded(receiptsFile)
+                ? MappedSnapshot.open(receiptsFile, Receipt::getID, Receipt::getCarSerialNumber) : null;
+        cars = cars.withBase(carsSnapshot);
+        receipts = receipts.withBase(receiptsSnapshot);
+        return cars.getBaseSequence();
+    }
+
+    /**
+     * Writes a car to the log and adds it to memory. Returns once the log entry is as durable
+     * as the sync policy requires.
+     * @param car Car to insert
+     * @return CREATED, or DUPLICATE if the serial number is already taken and the car was not saved
+     */
+    InsertStatus insertCar(Car car) throws IOException {
+        return await(insertCarAsync(car)).get(0);
+    }
+
+    /**
+     * Writes a receipt to the log and adds it to memory. Returns once the log entry is as durable
+     * as the sync policy requires.
+     * @param receipt Receipt to insert
+     * @return CREATED, or the reason the receipt was not saved
+     */
+    InsertStatus insertReceipt(Receipt receipt) throws IOException {
+        return await(insertReceiptAsync(receipt)).get(0);
+    }
+
+    /**
+     * Inserts the cars with one log entry. Cars whose serial number is already taken,
+     * either in the store or earlier in the same list, are skipped.
+     * @param cars Cars to insert
+     * @return The outcome for each car, in the order of the list
+     */
+    List<InsertStatus> insertCars(List<Car> cars) throws IOException {
+        return await(insertCarsAsync(cars));
+    }
+
+    /**
+     * Inserts the receipts with one log entry. Receipts whose id is already taken,
+     * either in the store or earlier in the same list, are skipped, as are the receipts failing the
+     * configured {@link ReceiptChecks}.
+     * @param receipts Receipts to insert
+     * @return The outcome for each receipt, in the order of the list
+     */
+    List<InsertStatus> insertReceipts(List<Receipt> receipts) throws IOException {
+        return await(insertReceiptsAsync(receipts));
+    }
+
+    /**
+     * Inserts cars copied from a primary, see {@link #insertCars(List)}.
+     */
+    List<InsertStatus> applyCars(List<Car> cars) throws IOException {
+        return await(insertAsync(new PendingInsert(InsertLog.CAR, cars, true, false)));
+    }
+
+    /**
+     * Inserts receipts copied from a primary. Their ids are checked as usual, but not their cars: the primary
+     * did that when they were created, and a replica configured differently must not drop them.
+     */
+    List<InsertStatus> applyReceipts(List<Receipt> receipts) throws IOException {
+        return await(insertAsync(new PendingInsert(InsertLog.RECEIPT, receipts, true, false)));
+    }
+
+    // The asynchronous variants return futures that are completed on the writer or the group commit thread,
+    // callers must not run anything slow on them without switching to a thread of their own
+
+    CompletableFuture<List<InsertStatus>> insertCarAsync(Car car) {
+        return insertAsync(new PendingInsert(InsertLog.CAR, Collections.singletonList(car), false, true));
+    }
+
+    CompletableFuture<List<InsertStatus>> insertReceiptAsync(Receipt receipt) {
+        return insertAsync(new PendingInsert(InsertLog.RECEIPT, Collections.singletonList(receipt), false, true));
+    }
+
+    CompletableFuture<List<InsertStatus>> insertCarsAsync(List<Car> cars) {
+        return insertAsync(new PendingInsert(InsertLog.CAR, cars, true, true));
+    }
+
+    CompletableFuture<List<InsertStatus>> insertReceiptsAsync(List<Receipt> receipts) {
+        return insertAsync(new PendingInsert(InsertLog.RECEIPT, receipts, true, true));
+    }
+
+    /**
+     * Queues records for the writer thread.
+     * @return A future completed with the outcome of each record once they are durable, or failed with
+     * the IOException that prevented it
+     */
+    private CompletableFuture<List<InsertStatus>> insertAsync(PendingInsert insert) {
+        pending.add(insert);
+        // The group commit wait is not the writer's business, it moves on to the next batch right away
+        return insert.written.thenCompose(log::whenDurable).thenApply(durable -> Arrays.asList(insert.statuses));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the insert to be written");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Writer thread loop, takes everything that has queued up since the last batch and writes it at once.
+     */
+    private void runWriter() {
+        List<PendingInsert> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PendingInsert> batch) {
+        synchronized (writeLock) {
+            long position;
+            List<InsertLog.Entry> entries = new ArrayList<>(batch.size());
+            List<byte[]> definitions = new ArrayList<>();
+            int dictionarySize = logDictionary.size();
+            int sequenced = 0;
+            // Keys written earlier in this batch, they are not in the indexes yet
+            Set<String> carKeys = new HashSet<>();
+            Set<String> receiptKeys = new HashSet<>();
+            Set<String> soldCars = new HashSet<>();
+            for (PendingInsert insert : batch) {
+                boolean car = insert.type == InsertLog.CAR;
+                List<byte[]> accepted = new ArrayList<>();
+                for (int i = 0; i < insert.records.size(); i++) {
+                    Object record = insert.records.get(i);
+                    InsertStatus status = car ? check((Car) record, carKeys)
+                            : check((Receipt) record, insert.checkReceipts, carKeys, receiptKeys, soldCars);
+                    if (status != InsertStatus.CREATED) {
+                        insert.statuses[i] = status;
+                        continue;
+                    }
+                    accepted.add(RecordCodec.encode(record, logDictionary, definitions));
+                    for (byte[] definition : definitions) {
+                        entries.add(new InsertLog.Entry(InsertLog.DICTIONARY, 0, definition));
+                    }
+                    definitions.clear();
+                }
+                if (accepted.isEmpty()) {
+                    continue;
+                }
+                insert.sequence = ++sequence;
+                if (insert.batch) {
+                    byte type = car ? InsertLog.CAR_BATCH : InsertLog.RECEIPT_BATCH;
+                    entries.add(new InsertLog.Entry(type, insert.sequence, pack(accepted)));
+                } else {
+                    entries.add(new InsertLog.Entry(insert.type, insert.sequence, accepted.get(0)));
+                }
+                sequenced++;
+            }
+            try {
+                position = log.append(entries);
+            } catch (IOException e) {
+                sequence -= sequenced;
+                logDictionary.truncate(dictionarySize);
+                for (PendingInsert insert : batch) {
+                    insert.written.completeExceptionally(e);
+                }
+                return;
+            }
+
+            for (PendingInsert insert : batch) {
+                List<Object> added = new ArrayList<>(insert.records.size());
+                for (int i = 0; i < insert.records.size(); i++) {
+                    if (insert.statuses[i] != InsertStatus.CREATED) {
+                        continue;
+                    }
+                    Object record = insert.records.get(i);
+                    if (insert.type == InsertLog.CAR) {
+                        addCar((Car) record);
+                    } else {
+                        addReceipt((Receipt) record);
+                    }
+                    added.add(record);
+                }
+                if (!added.isEmpty()) {
+                    changes.publish(insert.sequence, insert.type == InsertLog.CAR, added);
+                }
+            }
+            for (PendingInsert insert : batch) {
+                insert.written.complete(position);
+            }
+            long published = sequence;
+            // A replica that applied entries the log then loses in a crash would keep them for good
+            log.whenDurable(position).thenRun(() -> changes.durable(published));
+
+            // The batch is already safe in the log, a failed compaction is retried after the next batch
+            try {
+                compactIfNeeded();
+            } catch (IOException e) {
+                Metrics.ioErrors.increment();
+                System.out.println("Error compacting the log: " + e);
+            }
+        }
+    }
+
+    /**
+     * Checks a car before it is written, adding its key to those taken in the batch if it is accepted.
+     * Runs on the writer thread, so nothing can take the key between the check and the insert.
+     */
+    private InsertStatus check(Car car, Set<String> carKeys) {
+        String key = car.getSerialNumber();
+        if (carKeys.contains(key) || cars.containsKey(key)) {
+            Metrics.duplicateKeys.increment();
+            return InsertStatus.DUPLICATE;
+        }
+        carKeys.add(key);
+        return InsertStatus.CREATED;
+    }
+
+    /**
+     * Checks a receipt before it is written, see {@link #check(Car, Set)}. Every check is answered from the
+     * indexes in memory, the key filters of the snapshots and the keys taken earlier in the batch.
+     * @param checkCars False to skip the receipt checks, the id is checked anyway
+     */
+    private InsertStatus check(Receipt receipt, boolean checkCars, Set<String> carKeys, Set<String> receiptKeys,
+                               Set<String> soldCars) {
+        String key = receipt.getID();
+        if (receiptKeys.contains(key) || receipts.containsKey(key)) {
+            Metrics.duplicateKeys.increment();
+            return InsertStatus.DUPLICATE;
+        }
+        String car = receipt.getCarSerialNumber();
+        if (checkCars && receiptChecks != ReceiptChecks.NONE) {
+            if (!carKeys.contains(car) && !cars.containsKey(car)) {
+                Metrics.unknownCars.increment();
+                return InsertStatus.UNKNOWN_CAR;
+            }
+            if (receiptChecks == ReceiptChecks.UNSOLD
+                    && (soldCars.contains(car) || receipts.containsLookup(QueryPlanner.CAR_SERIAL_NUMBER, car))) {
+                Metrics.soldCars.increment();
+                return InsertStatus.ALREADY_SOLD;
+            }
+        }
+        receiptKeys.add(key);
+        soldCars.add(car);
+        return InsertStatus.CREATED;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (log.getEntryCount() >= compactionThreshold) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes all records out as new snapshots and empties the log.
+     * Each snapshot is written to a temporary file first and moved over the old one,
+     * so a crash during compaction leaves either the old or the new snapshot in place.
+     * Inserts wait for the compaction to finish, reads carry on.
+     */
+    void compact() throws IOException {
+        synchronized (writeLock) {
+            long started = System.nanoTime();
+            try {
+                writeSnapshot(carsFilePath, cars.all());
+                writeSnapshot(receiptsFilePath, receipts.all());
+                if (mapped) {
+                    mapSnapshots();
+                }
+                log.truncate();
+            } catch (IOException e) {
+                Metrics.compactions.errors.increment();
+                throw e;
+            }
+            logDictionary = new RecordCodec.Dictionary();
+            Metrics.compactions.record(started);
+        }
+    }
+
+    private void writeSnapshot(String filePath, List<?> records) throws IOException {
+        Path target = Paths.get(filePath);
+        Path temp = Paths.get(filePath + ".tmp");
+        long started = System.nanoTime();
+        try (FileOutputStream f = new FileOutputStream(temp.toFile());
+             BufferedOutputStream o = new BufferedOutputStream(f, 1 << 16)) {
+            RecordCodec.writeSnapshot(o, sequence, records);
+            o.flush();
+            f.getFD().sync();
+        } catch (IOException e) {
+            Metrics.snapshotWrites.errors.increment();
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Metrics.snapshotWrites.record(started, Files.size(target));
+    }
+
+    /**
+     * Packs the encoded records of a batch into one log payload: [count]([length][record])*
+     */
+    private static byte[] pack(List<byte[]> payloads) {
+        int length = 4;
+        for (byte[] payload : payloads) {
+            length += 4 + payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(payloads.size());
+        for (byte[] payload : payloads) {
+            buffer.putInt(payload.length).put(payload);
+        }
+        return buffer.array();
+    }
+
+    private static List<byte[]> unpack(byte[] packed) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        int count = in.readInt();
+        List<byte[]> payloads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    /**
+     * Stops the writer thread, flushes the log and releases the file.
+     */
+    void close() throws IOException {
+        if (writer != null) {
+            writer.interrupt();
+        }
+        synchronized (writeLock) {
+            log.close();
+        }
+    }
+
+    /**
+     * @return True if there is room for a record of the given estimated size
+     */
+    boolean hasRoomFor(long bytes) {
+        return memoryBudget <= 0 || getEstimatedBytes() + bytes <= memoryBudget;
+    }
+
+    private void addCar(Car car) {
+        boolean first = cars.add(car);
+        if (loadedSequence >= 0) {
+            brandVersions.put(fold(car.getBrand()), sequence);
+            searchIndex.addCar(car);
+        }
+        // Only the first car with a serial number takes part in the join
+        if (salesReports != null && first) {
+            salesReports.addCar(car);
+        }
+    }
+
+    private void addReceipt(Receipt receipt) {
+        boolean first = receipts.add(receipt);
+        if (loadedSequence >= 0) {
+            vendorVersions.put(fold(receipt.getVendor()), sequence);
+            searchIndex.addReceipt(receipt);
+        }
+        if (salesReports != null && first) {
+            salesReports.addReceipt(receipt);
+        }
+    }
+
+    /**
+     * Case folds a brand or vendor name into its index key.
+     */
+    static String fold(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ROOT);
+    }
+
+    List<Car> getCars() {
+        return cars.all();
+    }
+
+    List<Receipt> getReceipts() {
+        return receipts.all();
+    }
+
+    /**
+     * @return The car with the given serial number or null if not found
+     */
+    Car findCar(String serialNumber) {
+        return cars.find(serialNumber);
+    }
+
+    /**
+     * @return Cars of the given brand ignoring case, in insertion order
+     */
+    List<Car> findCarsByBrand(String brand) {
+        return cars.findByName(brand);
+    }
+
+    /**
+     * @return At most limit cars of the given brand ignoring case, skipping the first from cars
+     */
+    List<Car> findCarsByBrand(String brand, int from, int limit) {
+        return cars.findByName(brand, from, limit);
+    }
+
+    /**
+     * @return The receipt with the given id or null if not found
+     */
+    Receipt findReceipt(String id) {
+        return receipts.find(id);
+    }
+
+    /**
+     * @return Receipts of the given vendor ignoring case, in insertion order
+     */
+    List<Receipt> findReceiptsByVendor(String vendor) {
+        return receipts.findByName(vendor);
+    }
+
+    /**
+     * @return At most limit receipts of the given vendor ignoring case, skipping the first from receipts
+     */
+    List<Receipt> findReceiptsByVendor(String vendor, int from, int limit) {
+        return receipts.findByName(vendor, from, limit);
+    }
+
+    /**
+     * @return Cars meeting every criterion of the query, at most limit of them
+     */
+    List<Car> findCars(CarQuery query, int limit) {
+        return QueryPlanner.findCars(cars, query, limit);
+    }
+
+    /**
+     * @return Receipts meeting every criterion of the query, at most limit of them
+     */
+    List<Receipt> findReceipts(ReceiptQuery query, int limit) {
+        return QueryPlanner.findReceipts(receipts, query, limit);
+    }
+
+    /**
+     * Returns a version stamp of the cars of a brand that changes whenever a car of that brand is added.
+     * It is the sequence number of the last insert of the brand, or the sequence number the store was
+     * loaded at if there was none since, so it keeps growing across restarts.
+     * @param brand Brand ignoring case
+     * @return The version stamp
+     */
+    long getBrandVersion(String brand) {
+        return brandVersions.getOrDefault(fold(brand), loadedSequence);
+    }
+
+    /**
+     * Returns a version stamp of the receipts of a vendor, see {@link #getBrandVersion(String)}.
+     * @param vendor Vendor ignoring case
+     * @return The version stamp
+     */
+    long getVendorVersion(String vendor) {
+        return vendorVersions.getOrDefault(fold(vendor), loadedSequence);
+    }
+
+    /**
+     * @return The materialized sales reports, or reports computed from the current records
+     */
+    SalesReports getSalesReports() {
+        SalesReports materialized = salesReports;
+        if (materialized != null) {
+            Metrics.reportHits.increment();
+            return materialized;
+        }
+        Metrics.reportMisses.increment();
+        return SalesReports.compute(receipts.all(), this::findCar, false);
+    }
+
+    /**
+     * @see SearchIndex#search(SearchQuery, int)
+     */
+    List<SearchHit> search(SearchQuery query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+
+    /**
+     * @return Date of the receipt in epoch milliseconds, NaN if it has none
+     */
+    static double dateValue(Receipt receipt) {
+        return receipt.getDate() == null ? Double.NaN : receipt.getDate().getTime();
+    }
+
+    /**
+     * Brands, models and colors are stored once in the dictionary of the columns and not counted here.
+     */
+    static long estimateSize(Car car) {
+        return CAR_COLUMNS + INDEX_ENTRIES
+                + 2 * SORTED_INDEX_ENTRY // price and year index entries
+                + stringSize(car.getSerialNumber());
+    }
+
+    static long estimateSize(Receipt receipt) {
+        return RECEIPT_COLUMNS + INDEX_ENTRIES + SORTED_INDEX_ENTRY + LOOKUP_ENTRY
+                + stringSize(receipt.getID()) + stringSize(receipt.getCarSerialNumber());
+    }
+
+    private static long stringSize(String s) {
+        return s == null ? 0 : STRING_OVERHEAD + s.length();
+    }
+
+    long getEstimatedBytes() {
+        return cars.getEstimatedBytes() + receipts.getEstimatedBytes();
+    }
+
+    long getLoadTimeMillis() {
+        return loadTimeMillis;
+    }
+
+    /**
+     * Publishes the record counts, heap footprint, log size and load time as gauges.
+     */
+    void registerMetrics() {
+        Metrics.gauge("dealer_records{type=\"car\"}", () -> cars.size());
+        Metrics.gauge("dealer_records{type=\"receipt\"}", () -> receipts.size());
+        Metrics.gauge("dealer_heap_estimated_bytes", this::getEstimatedBytes);
+        Metrics.gauge("dealer_memory_budget_bytes", () -> memoryBudget);
+        Metrics.gauge("dealer_log_entries", log::getEntryCount);
+        Metrics.gauge("dealer_load_seconds", () -> loadTimeMillis / 1e3);
+        Metrics.gauge("dealer_inserts_pending", pending::size);
+        Metrics.gauge("dealer_search_values", searchIndex::size);
+    }
+
+    /**
+     * @return A one line summary of the store's size, load time and heap footprint
+     */
+    String getStats() {
+        return cars.size() + " cars and " + receipts.size() + " receipts loaded in " + loadTimeMillis + " ms"
+                + " (" + replayedEntries + " replayed from the log"
+                + (mapped ? ", " + cars.sizeInMemory() + " cars and " + receipts.sizeInMemory() + " receipts on the heap" : "")
+                + "), estimated heap footprint " + getEstimatedBytes() / 1024 + " KB (measured " + measuredHeapBytes / 1024 + " KB)"
+                + (memoryBudget > 0 ? ", budget " + memoryBudget / 1024 + " KB" : "");
+    }
+}
@@ -1,10 +1,28 @@
 package server;
 
 import interfaces.Car;
+import interfaces.CarQuery;
+import interfaces.ChangeBatch;
+import interfaces.ChangeFilter;
+import interfaces.ChangeListener;
+import interfaces.DealerException;
 import interfaces.DealerInterface;
+import interfaces.DuplicateKeyException;
+import interfaces.InsertStatus;
+import interfaces.Page;
 import interfaces.Receipt;
+import interfaces.ReceiptQuery;
+import interfaces.RemoteIterator;
+import interfaces.ReplicationInterface;
+import interfaces.ReplicationStatus;
+import interfaces.SalesTotal;
+import interfaces.SearchHit;
+import interfaces.SearchQuery;
+import interfaces.Subscription;
+import interfaces.UnknownCarException;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -13,64 +31,191 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class Dealer implements DealerInterface {
-    final String carsFilePath = "cars.dat";
-    final String receiptsFilePath = "receipts.dat";
-    final static int port = 4444;
+public class Dealer implements DealerInterface, ReplicationInterface {
+    final static String carsFilePath = "cars.dat";
+    final static String receiptsFilePath = "receipts.dat";
+    final static String logFilePath = "inserts.log";
+    final static String replicationOffsetFilePath = "replication.offset";
+    // Longest a pull for changes may wait, so that it never holds a read permit for long
+    final static long maxPullWaitMillis = 5000;
+    final static int defaultPort = 4444;
+    final static String defaultName = "Dealer";
+    final DataStore store;
+    // Port of the registry the dealer is bound in, the remote iterators are exported on it too
+    final int port;
+    final AdmissionControl admission = AdmissionControl.fromConfig();
+    // Set while the dealer is a read-only replica, null on the primary
+    private volatile Replicator replicator;
+    private final AtomicInteger subscriptions = new AtomicInteger();
 
     /**
-     * Registers an RMI server and instantiates and binds a Dealer object.
+     * Constructor function for the class Dealer.
+     * Loads the cars and receipts files into memory once and replays the inserts logged since,
+     * all reads are served from memory afterwards.
      */
-    public static void main(String[] args) {
-        try {
-            Dealer dealer = new Dealer();
-            Registry registry = LocateRegistry.createRegistry(port);
-            registry.bind("Dealer", UnicastRemoteObject.exportObject(dealer, port));
+    public Dealer() throws IOException {
+        this(".", defaultPort);
+    }
+
+    /**
+     * Loads the files of the given directory, so that several dealers can run side by side as the nodes of a cluster.
+     * @param directory Directory of the data files, created if it doesn't exist
+     * @param port Port of the registry the dealer is bound in
+     */
+    public Dealer(String directory, int port) throws IOException {
+        this(new DataStore(inDirectory(directory, carsFilePath), inDirectory(directory, receiptsFilePath),
+                inDirectory(directory, logFilePath), DealerConfig.memoryBudgetBytes(),
+                DealerConfig.syncPolicy(), DealerConfig.groupCommitMillis(), DealerConfig.compactionThreshold(),
+                DealerConfig.mappedStorage(), DealerConfig.materializedReports(),
+                DealerConfig.replicationBacklog(), DealerConfig.receiptChecks()), port);
+        store.load();
+    }
+
+    /**
+     * @return Path of the file in the directory, the directory is created if needed
+     */
+    private static String inDirectory(String directory, String file) {
+        new File(directory).mkdirs();
+        return new File(directory, file).getPath();
+    }
 
-            System.err.println("Server ready");
+    /**
+     * Serves the records of a store that is loaded by the caller, remote iterators are exported on any free port.
+     */
+    Dealer(DataStore store) {
+        this(store, 0);
+    }
 
-            dealer.checkFiles();
+    private Dealer(DataStore store, int port) {
+        this.store = store;
+        this.port = port;
+    }
 
-            System.out.println("Cars in the file: ");
-            List<Car> cars = dealer.findAllCars();
-            for (Car car : cars) {
-                System.out.println(car);
+    /**
+     * Registers an RMI server and instantiates and binds a Dealer object.
+     * <p>
+     * Usage: {@code java -classpath "out" server.Dealer [--port port] [--name name] [--dir directory]
+     * [--binary-port port] [--metrics-port port] [--replica-of host:port/name] [--dump]}. The defaults serve the
+     * files of the working directory as "Dealer" on port 4444, the nodes of a cluster each get their own port, name
+     * and directory. A replica copies the records of its primary instead of creating the default ones. The metrics
+     * are published through JMX and, unless the metrics port is 0, as plain text at http://host:port/metrics.
+     * The dealer is only bound once its files are loaded, and prints every record first with --dump.
+     */
+    public static void main(String[] args) {
+        int port = defaultPort;
+        String name = defaultName;
+        String directory = ".";
+        int binaryPort = DealerConfig.binaryPort();
+        int metricsPort = DealerConfig.metricsPort();
+        String primary = null;
+        boolean dump = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--dump")) {
+                dump = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                System.err.println("Missing value for " + args[i]);
+                System.exit(1);
+            }
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--name":
+                    name = args[++i];
+                    break;
+                case "--dir":
+                    directory = args[++i];
+                    break;
+                case "--binary-port":
+                    binaryPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics-port":
+                    metricsPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--replica-of":
+                    primary = args[++i];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        try {
+            Dealer dealer = new Dealer(directory, port);
+            if (primary != null) {
+                dealer.follow(primary);
+            } else {
+                dealer.checkFiles();
+            }
+            System.out.println(dealer.store.getStats());
+            if (dump) {
+                dealer.dump();
             }
 
-            System.out.println("\nReceipts in the file: ");
-            List<Receipt> receipts = dealer.findAllReceipts();
-            for (Receipt receipt : receipts) {
-                System.out.println(receipt);
+            // Clients can only reach the dealer once its data is loaded
+            Registry registry = LocateRegistry.createRegistry(port);
+            // Clients get the admission controlled proxy, never the dealer itself
+            DealerInterface exported = dealer.admission.wrap(dealer);
+            registry.bind(name, UnicastRemoteObject.exportObject(exported, port));
+            if (binaryPort > 0) {
+                new BinaryServer(exported, dealer, binaryPort).start();
             }
+            dealer.registerMetrics();
+            Metrics.registerMBean(name);
+            if (metricsPort > 0) {
+                try {
+                    new MetricsServer(metricsPort).start();
+                } catch (IOException e) {
+                    // The metrics are still published through JMX
+                    System.out.println("Failed to serve the metrics on port " + metricsPort + ": " + e);
+                }
+            }
+
+            long startupMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            Metrics.gauge("dealer_startup_seconds", () -> startupMillis / 1e3);
+            System.err.println("Server ready in " + startupMillis + " ms");
         } catch (Exception e) {
             System.err.println("Server exception: " + e.getMessage());
         }
     }
 
+    /**
+     * Prints every car and receipt, which takes a while with large files.
+     */
+    private void dump() {
+        System.out.println("Cars in the file: ");
+        for (Car car : findAllCars()) {
+            System.out.println(car);
+        }
+
+        System.out.println("\nReceipts in the file: ");
+        for (Receipt receipt : findAllReceipts()) {
+            System.out.println(receipt);
+        }
+    }
+
     /**
      * Checks whether the cars and receipts files exist in the
-     * current working directory. If the files don't exist,
-     * creates the files and populates them with the default values.
+     * current working directory. If the files don't exist and no records
+     * were recovered from the log, populates the store with the default values
+     * and writes the files.
      */
-    private void checkFiles() throws RemoteException, ParseException {
-        File carsFile = new File(carsFilePath);
-        File receiptsFile = new File(receiptsFilePath);
-        if (!carsFile.exists()) {
-            try {
-                if (carsFile.createNewFile()) {
-                    System.out.println("Cars file created.");
-                    createCar("4512360", "Hyundai", "Venue", "Blue", 2021, 19935, 1184);
-                    createCar("4568989", "Hyundai", "Accent", "Red", 2020, 16270, 1356);
-                }
-            } catch (IOException e) {
-                System.out.println("Failed to create cars file, exiting. Cause: " + e);
-                System.exit(1);
-            }
+    private void checkFiles() throws RemoteException, ParseException, DealerException {
+        File carsFile = new File(store.carsFilePath);
+        File receiptsFile = new File(store.receiptsFilePath);
+        boolean created = false;
+        if (!carsFile.exists() && store.getCars().isEmpty()) {
+            System.out.println("Cars file created.");
+            createCar("4512360", "Hyundai", "Venue", "Blue", 2021, 19935, 1184);
+            createCar("4568989", "Hyundai", "Accent", "Red", 2020, 16270, 1356);
+            created = true;
         }
 
-        if (!receiptsFile.exists()) {
+        if (!receiptsFile.exists() && store.getReceipts().isEmpty()) {
             Random rand = new Random();
 
             // The starting point of random dates
@@ -79,128 +224,409 @@ public class Dealer implements DealerInterface {
             // The ending point of random dates (Current time)
             Date currentDate = new Date();
 
-            createReceipt("1", "Carz", Integer.toString(1000 + rand.nextInt(8999)), new Date(ThreadLocalRandom.current().nextLong(startDate.getTime(), currentDate.getTime())));
-            createReceipt("2", "Carz", Integer.toString(1000 + rand.nextInt(8999)), new Date(ThreadLocalRandom.current().nextLong(startDate.getTime(), currentDate.getTime())));
+            try {
+                createReceipt("1", "Carz", Integer.toString(1000 + rand.nextInt(8999)), new Date(ThreadLocalRandom.current().nextLong(startDate.getTime(), currentDate.getTime())));
+                createReceipt("2", "Carz", Integer.toString(1000 + rand.nextInt(8999)), new Date(ThreadLocalRandom.current().nextLong(startDate.getTime(), currentDate.getTime())));
+            } catch (UnknownCarException e) {
+                // The sample receipts are of random cars, which the receipt checks refuse
+                System.out.println("Sample receipts not created: " + e.getMessage());
+            }
+            created = true;
+        }
+
+        if (created) {
+            try {
+                store.compact();
+            } catch (IOException e) {
+                System.out.println("Failed to create the data files, exiting. Cause: " + e);
+                System.exit(1);
+            }
         }
     }
 
+    /**
+     * Publishes the gauges of the store, the admission control and the replication.
+     */
+    void registerMetrics() {
+        store.registerMetrics();
+        admission.registerMetrics();
+        Metrics.gauge("dealer_replica", () -> replicator != null ? 1 : 0);
+        Metrics.gauge("dealer_subscriptions", subscriptions::get);
+        Metrics.gauge("dealer_replication_sequence", () -> replicationStatus().getSequence());
+        Metrics.gauge("dealer_replication_lag_changes", () -> replicationStatus().getLagChanges());
+        Metrics.gauge("dealer_replication_lag_seconds", () -> replicationStatus().getLagMillis() / 1e3);
+        Metrics.gauge("dealer_replication_records_total", () -> replicationStatus().getRecords());
+        Metrics.gauge("dealer_replication_records_per_second", () -> replicationStatus().getRecordsPerSecond());
+    }
+
+    /**
+     * Counts a point lookup in the hit rate of the lookups.
+     * @return The record found, or null
+     */
+    private static <T> T counted(T found) {
+        (found != null ? Metrics.lookupHits : Metrics.lookupMisses).increment();
+        return found;
+    }
+
     @Override
     public Car findCarBySerialNumber(String serialNumber) throws RemoteException {
-        List<Car> cars = findAllCars();
-        for (Car car : cars) {
-            if (car.getSerialNumber().equals(serialNumber))
-                return car;
-        }
-        return null;
+        return counted(store.findCar(serialNumber));
     }
 
     @Override
     public List<Car> findCarsByBrand(String brand) throws RemoteException {
-        List<Car> cars = findAllCars();
-
-        return cars.stream().filter(car -> car.getBrand().toLowerCase(Locale.ROOT).equals(brand.toLowerCase())).collect(Collectors.toList());
+        return new ArrayList<>(store.findCarsByBrand(brand));
     }
 
     /**
-     * Reads the cars file and creates a list of all the cars read from the file
      * @return A list of all the cars in the database
      */
     private List<Car> findAllCars() {
-        List<Car> cars = new ArrayList<>();
-        try {
-            FileInputStream f = new FileInputStream(carsFilePath);
-            ObjectInputStream o = new ObjectInputStream(f);
-            Object car;
-            while ((car = o.readObject()) != null) {
-                cars.add((Car) car);
-            }
-            o.close();
-            f.close();
-        } catch (EOFException ignored) {
-        } catch (FileNotFoundException e) {
-            System.out.println("Cars file not found!");
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Error reading from file: " + e);
-        }
-        return cars;
+        return store.getCars();
     }
 
     @Override
-    public void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws RemoteException {
-        List<Car> cars = findAllCars();
-        cars.add(new Car(serialNumber, brand, model, color, year, price, weight));
+    public void createCar(String serialNumber, String brand, String model, String color, int year, float price, float weight) throws DuplicateKeyException, RemoteException {
+        Car newCar = new Car(serialNumber, brand, model, color, year, price, weight);
+        checkRoomFor(DataStore.estimateSize(newCar), "car " + serialNumber + " was");
+        InsertStatus status;
         try {
-            FileOutputStream f = new FileOutputStream(carsFilePath);
-            ObjectOutputStream o = new ObjectOutputStream(f);
-            for (Car car : cars) {
-                o.writeObject(car);
-            }
-            o.close();
-            f.close();
-        } catch (FileNotFoundException e) {
-            System.out.println("Cars file not found!");
+            status = store.insertCar(newCar);
         } catch (IOException e) {
-            System.out.println("Error writing to file: " + e);
+            System.out.println("Error writing to the log: " + e);
+            throw new RemoteException("Car " + serialNumber + " could not be saved", e);
+        }
+        if (status != InsertStatus.CREATED) {
+            throw new DuplicateKeyException(serialNumber);
         }
     }
 
     @Override
     public Receipt findReceiptById(String id) throws RemoteException {
-        List<Receipt> receipts = findAllReceipts();
-        for (Receipt receipt : receipts) {
-            if (receipt.getID().equals(id))
-                return receipt;
-        }
-        return null;
+        return counted(store.findReceipt(id));
     }
 
     /**
-     * Reads the receipts file and creates a list of all the receipts read from the file
      * @return A list of all the receipts in the database
      */
     private List<Receipt> findAllReceipts() {
-        List<Receipt> receipts = new ArrayList<>();
+        return store.getReceipts();
+    }
+
+    @Override
+    public List<Receipt> getReceiptsByVendor(String vendor) throws RemoteException {
+        return new ArrayList<>(store.findReceiptsByVendor(vendor));
+    }
+
+    @Override
+    public void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws DealerException, RemoteException {
+        Receipt newReceipt = new Receipt(ID, vendor, carSerialNumber, date);
+        checkRoomFor(DataStore.estimateSize(newReceipt), "receipt " + ID + " was");
+        InsertStatus status;
         try {
-            FileInputStream f = new FileInputStream(receiptsFilePath);
-            ObjectInputStream o = new ObjectInputStream(f);
-            Object receipt;
-            while ((receipt = o.readObject()) != null) {
-                receipts.add((Receipt) receipt);
+            status = store.insertReceipt(newReceipt);
+        } catch (IOException e) {
+            System.out.println("Error writing to the log: " + e);
+            throw new RemoteException("Receipt " + ID + " could not be saved", e);
+        }
+        DealerException rejected = status.toException(ID, carSerialNumber);
+        if (rejected != null) {
+            throw rejected;
+        }
+    }
+
+    @Override
+    public List<InsertStatus> createCars(List<Car> cars) throws RemoteException {
+        checkRoomForCars(cars);
+        try {
+            return store.insertCars(cars);
+        } catch (IOException e) {
+            System.out.println("Error writing to the log: " + e);
+            throw new RemoteException(cars.size() + " cars could not be saved", e);
+        }
+    }
+
+    @Override
+    public List<InsertStatus> createReceipts(List<Receipt> receipts) throws RemoteException {
+        checkRoomForReceipts(receipts);
+        try {
+            return store.insertReceipts(receipts);
+        } catch (IOException e) {
+            System.out.println("Error writing to the log: " + e);
+            throw new RemoteException(receipts.size() + " receipts could not be saved", e);
+        }
+    }
+
+    /**
+     * @param bytes Estimated heap size of the records to insert
+     * @param what Subject of the error message, such as "car 123 was"
+     * @throws RemoteException If the dealer is a replica or the records don't fit in the memory budget
+     */
+    void checkRoomFor(long bytes, String what) throws RemoteException {
+        Replicator replicator = this.replicator;
+        if (replicator != null) {
+            throw new RemoteException("Read-only replica, " + what + " not saved. Send writes to the primary "
+                    + replicator.getSource());
+        }
+        if (!store.hasRoomFor(bytes)) {
+            throw new RemoteException("Memory budget exceeded, " + what + " not saved");
+        }
+    }
+
+    void checkRoomForCars(List<Car> cars) throws RemoteException {
+        long size = 0;
+        for (Car car : cars) {
+            size += DataStore.estimateSize(car);
+        }
+        checkRoomFor(size, cars.size() + " cars were");
+    }
+
+    void checkRoomForReceipts(List<Receipt> receipts) throws RemoteException {
+        long size = 0;
+        for (Receipt receipt : receipts) {
+            size += DataStore.estimateSize(receipt);
+        }
+        checkRoomFor(size, receipts.size() + " receipts were");
+    }
+
+    @Override
+    public Map<String, Car> findCarsBySerialNumbers(Collection<String> serialNumbers) throws RemoteException {
+        Map<String, Car> found = new LinkedHashMap<>();
+        for (String serialNumber : serialNumbers) {
+            Car car = counted(store.findCar(serialNumber));
+            if (car != null) {
+                found.put(serialNumber, car);
             }
-            o.close();
-            f.close();
-        } catch (EOFException ignored) {
-        } catch (FileNotFoundException e) {
-            System.out.println("Receipts file not found!");
-        } catch (IOException | ClassNotFoundException e) {
-            System.out.println("Error reading from file: " + e);
         }
-        return receipts;
+        return found;
     }
 
     @Override
-    public List<Receipt> getReceiptsByVendor(String vendor) throws RemoteException {
-        List<Receipt> receipts = findAllReceipts();
+    public Map<String, Receipt> findReceiptsByIds(Collection<String> ids) throws RemoteException {
+        Map<String, Receipt> found = new LinkedHashMap<>();
+        for (String id : ids) {
+            Receipt receipt = counted(store.findReceipt(id));
+            if (receipt != null) {
+                found.put(id, receipt);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Page<Car> findCarsByBrand(String brand, int limit, String continuationToken) throws RemoteException {
+        int from = parseContinuationToken(continuationToken);
+        int pageSize = pageSize(limit);
+        // Ask for one extra car to find out whether there is another page
+        return toPage(store.findCarsByBrand(brand, from, pageSize + 1), from, pageSize);
+    }
+
+    @Override
+    public Page<Receipt> getReceiptsByVendor(String vendor, int limit, String continuationToken) throws RemoteException {
+        int from = parseContinuationToken(continuationToken);
+        int pageSize = pageSize(limit);
+        return toPage(store.findReceiptsByVendor(vendor, from, pageSize + 1), from, pageSize);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public RemoteIterator<Car> iterateCarsByBrand(String brand) throws RemoteException {
+        PageIterator<Car> iterator = new PageIterator<>((from, limit) -> store.findCarsByBrand(brand, from, limit),
+                DealerConfig.maxPageSize());
+        return (RemoteIterator<Car>) UnicastRemoteObject.exportObject(iterator, port);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public RemoteIterator<Receipt> iterateReceiptsByVendor(String vendor) throws RemoteException {
+        PageIterator<Receipt> iterator = new PageIterator<>((from, limit) -> store.findReceiptsByVendor(vendor, from, limit),
+                DealerConfig.maxPageSize());
+        return (RemoteIterator<Receipt>) UnicastRemoteObject.exportObject(iterator, port);
+    }
+
+    @Override
+    public Page<Car> getCars(int limit, String continuationToken) throws RemoteException {
+        return slice(store.getCars(), limit, continuationToken);
+    }
 
-        return receipts.stream().filter(r -> r.getVendor().toLowerCase(Locale.ROOT).equals(vendor.toLowerCase(Locale.ROOT))).collect(Collectors.toList());
+    @Override
+    public Page<Receipt> getReceipts(int limit, String continuationToken) throws RemoteException {
+        return slice(store.getReceipts(), limit, continuationToken);
     }
 
     @Override
-    public void createReceipt(String ID, String vendor, String carSerialNumber, Date date) throws RemoteException {
-        List<Receipt> receipts = findAllReceipts();
-        receipts.add(new Receipt(ID, vendor, carSerialNumber, date));
+    public List<Car> findCars(CarQuery query) throws RemoteException {
+        return store.findCars(query, pageSize(query.getLimit()));
+    }
+
+    @Override
+    public List<Receipt> findReceipts(ReceiptQuery query) throws RemoteException {
+        return store.findReceipts(query, pageSize(query.getLimit()));
+    }
+
+    @Override
+    public List<SearchHit> search(SearchQuery query) throws RemoteException {
+        return store.search(query, pageSize(query.getLimit()));
+    }
+
+    @Override
+    public long getBrandVersion(String brand) throws RemoteException {
+        return store.getBrandVersion(brand);
+    }
+
+    @Override
+    public long getVendorVersion(String vendor) throws RemoteException {
+        return store.getVendorVersion(vendor);
+    }
+
+    @Override
+    public ChangeBatch getChanges(ChangeFilter filter, long afterSequence, int maxRecords, long waitMillis) throws RemoteException {
         try {
-            FileOutputStream f = new FileOutputStream(receiptsFilePath);
-            ObjectOutputStream o = new ObjectOutputStream(f);
-            for (Receipt receipt : receipts) {
-                o.writeObject(receipt);
-            }
-            o.close();
-            f.close();
-        } catch (FileNotFoundException e) {
-            System.out.println("Receipts file not found!");
+            return store.changes.read(store.changes.position(afterSequence), pageSize(maxRecords),
+                    Math.max(0, Math.min(waitMillis, maxPullWaitMillis)), filter);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for changes");
+        }
+    }
+
+    @Override
+    public Subscription subscribe(ChangeFilter filter, long afterSequence, ChangeListener listener) throws RemoteException {
+        if (listener == null) {
+            throw new IllegalArgumentException("A subscription needs a listener");
+        }
+        if (subscriptions.incrementAndGet() > DealerConfig.maxSubscriptions()) {
+            subscriptions.decrementAndGet();
+            throw new RemoteException("Server busy, too many subscriptions");
+        }
+        Subscriber subscriber = new Subscriber(store.changes, filter, afterSequence, listener,
+                DealerConfig.maxPageSize(), subscriptions::decrementAndGet);
+        Subscription exported;
+        try {
+            exported = (Subscription) UnicastRemoteObject.exportObject(subscriber, port);
+        } catch (RemoteException e) {
+            subscriptions.decrementAndGet();
+            throw e;
+        }
+        subscriber.start();
+        return exported;
+    }
+
+    @Override
+    public List<SalesTotal> getRevenueByVendor() throws RemoteException {
+        return store.getSalesReports().getRevenueByVendor();
+    }
+
+    @Override
+    public Map<String, List<SalesTotal>> getSalesByBrandPerMonth() throws RemoteException {
+        return store.getSalesReports().getSalesByBrandPerMonth();
+    }
+
+    @Override
+    public List<SalesTotal> getTopModels(int n) throws RemoteException {
+        return store.getSalesReports().getTopModels(n);
+    }
+
+    @Override
+    public ReplicationStatus getReplicationStatus() throws RemoteException {
+        return replicationStatus();
+    }
+
+    private ReplicationStatus replicationStatus() {
+        Replicator replicator = this.replicator;
+        if (replicator != null) {
+            return replicator.getStatus();
+        }
+        long sequence = store.changes.getLastSequence();
+        RateMeter sent = store.changes.getSent();
+        return new ReplicationStatus(true, null, store.changes.getFeedId(), sequence, sequence, 0,
+                sent.getTotal(), sent.getLastSecond());
+    }
+
+    @Override
+    public ChangeBatch pullChanges(long afterSequence, int maxRecords, long waitMillis) throws RemoteException {
+        try {
+            int batchRecords = maxRecords <= 0 ? DealerConfig.replicationBatchRecords()
+                    : Math.min(maxRecords, DealerConfig.replicationBatchRecords());
+            return store.changes.read(afterSequence, batchRecords,
+                    Math.max(0, Math.min(waitMillis, maxPullWaitMillis)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for changes");
+        }
+    }
+
+    @Override
+    public synchronized void promote() throws RemoteException {
+        Replicator replicator = this.replicator;
+        if (replicator == null) {
+            return;
+        }
+        replicator.stop();
+        this.replicator = null;
+        System.out.println("Promoted to primary, stopped following " + replicator.getSource() + " at "
+                + replicator.getStatus());
+    }
+
+    @Override
+    public synchronized void follow(String primary) throws RemoteException {
+        Replicator replicator;
+        try {
+            replicator = new Replicator(store, primary, new File(new File(store.carsFilePath).getAbsoluteFile()
+                    .getParentFile(), replicationOffsetFilePath).toPath());
         } catch (IOException e) {
-            System.out.println("Error writing to file: " + e);
+            throw new RemoteException("Can't follow " + primary, e);
+        }
+        Replicator previous = this.replicator;
+        // Writes are refused from here on, before the old role ends
+        this.replicator = replicator;
+        if (previous != null) {
+            previous.stop();
+        }
+        replicator.start();
+    }
+
+    /**
+     * The continuation token is the number of matching records returned so far.
+     * @return Offset of the next page, 0 for a null token
+     */
+    private static int parseContinuationToken(String continuationToken) {
+        if (continuationToken == null) {
+            return 0;
+        }
+        try {
+            int from = Integer.parseInt(continuationToken);
+            if (from >= 0) {
+                return from;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+    }
+
+    private static int pageSize(int limit) {
+        int maxPageSize = DealerConfig.maxPageSize();
+        return limit <= 0 ? maxPageSize : Math.min(limit, maxPageSize);
+    }
+
+    /**
+     * @param all Every record in insertion order
+     * @return The page of records following the continuation token
+     */
+    private static <T> Page<T> slice(List<T> all, int limit, String continuationToken) {
+        int from = Math.min(parseContinuationToken(continuationToken), all.size());
+        int pageSize = pageSize(limit);
+        return toPage(new ArrayList<>(all.subList(from, Math.min(all.size(), from + pageSize + 1))), from, pageSize);
+    }
+
+    /**
+     * @param items Up to pageSize + 1 records starting at from
+     * @return The first pageSize records, with a continuation token if there were more
+     */
+    private static <T> Page<T> toPage(List<T> items, int from, int pageSize) {
+        if (items.size() <= pageSize) {
+            return new Page<>(items, null);
         }
+        return new Page<>(new ArrayList<>(items.subList(0, pageSize)), Integer.toString(from + pageSize));
     }
 }
@@ -0,0 +1,138 @@
+package server;
+
+/**
+ * Server settings read from system properties (e.g. -Ddealer.memoryBudgetMb=256).
+ * Every setting has a default so the server can still be started without any flags.
+ */
+final class DealerConfig {
+    private DealerConfig() {
+    }
+
+    /**
+     * @return Maximum estimated heap size of the in-memory store in bytes, 0 means unlimited
+     */
+    static long memoryBudgetBytes() {
+        return Long.getLong("dealer.memoryBudgetMb", 0) * 1024 * 1024;
+    }
+
+    /**
+     * @return When the insert log is forced to disk: always, group or os
+     */
+    static InsertLog.SyncPolicy syncPolicy() {
+        return InsertLog.SyncPolicy.valueOf(System.getProperty("dealer.fsync", "group").toUpperCase());
+    }
+
+    /**
+     * @return Interval between group commits in milliseconds
+     */
+    static long groupCommitMillis() {
+        return Long.getLong("dealer.groupCommitMs", 5);
+    }
+
+    /**
+     * @return Number of log entries after which the log is compacted into the data files
+     */
+    static int compactionThreshold() {
+        return Integer.getInteger("dealer.compactEvery", 10000);
+    }
+
+    /**
+     * @return True to memory map the data files instead of loading them, set with -Ddealer.storage=mapped
+     */
+    static boolean mappedStorage() {
+        return System.getProperty("dealer.storage", "memory").equalsIgnoreCase("mapped");
+    }
+
+    /**
+     * @return How receipts are checked against the cars, set with -Ddealer.receiptChecks=none, car or unsold.
+     * Only a single node or a primary sees every car, so a cluster should leave it at none
+     */
+    static DataStore.ReceiptChecks receiptChecks() {
+        return DataStore.ReceiptChecks.valueOf(System.getProperty("dealer.receiptChecks", "none").toUpperCase());
+    }
+
+    /**
+     * @return Largest page returned by the paged queries, also used when the client asks for 0 or less
+     */
+    static int maxPageSize() {
+        return Integer.getInteger("dealer.maxPageSize", 1000);
+    }
+
+    /**
+     * @return True to keep the sales reports up to date on every insert instead of computing them on demand
+     */
+    static boolean materializedReports() {
+        return Boolean.getBoolean("dealer.materializedReports");
+    }
+
+    /**
+     * @return Number of read requests served at once, more have to wait
+     */
+    static int maxConcurrentReads() {
+        return Integer.getInteger("dealer.maxConcurrentReads", 256);
+    }
+
+    /**
+     * @return Number of write requests served at once, more have to wait
+     */
+    static int maxConcurrentWrites() {
+        return Integer.getInteger("dealer.maxConcurrentWrites", 64);
+    }
+
+    /**
+     * @return Number of long polls for changes served at once, more are rejected
+     */
+    static int maxConcurrentPolls() {
+        return Integer.getInteger("dealer.maxConcurrentPolls", 32);
+    }
+
+    /**
+     * @return Number of read or write requests that may wait for their turn, more are rejected
+     */
+    static int maxQueuedRequests() {
+        return Integer.getInteger("dealer.maxQueuedRequests", 1024);
+    }
+
+    /**
+     * @return Time in milliseconds a request may wait for its turn before it is rejected
+     */
+    static long admissionTimeoutMillis() {
+        return Long.getLong("dealer.admissionTimeoutMs", 2000);
+    }
+
+    /**
+     * @return Port of the binary transport served next to RMI, 0 to serve RMI only
+     */
+    static int binaryPort() {
+        return Integer.getInteger("dealer.binaryPort", 4446);
+    }
+
+    /**
+     * @return Port of the plain text metrics endpoint, 0 to publish the metrics through JMX only
+     */
+    static int metricsPort() {
+        return Integer.getInteger("dealer.metricsPort", 4449);
+    }
+
+    /**
+     * @return Number of recent log entries kept for replicas, one further behind copies everything again
+     */
+    static int replicationBacklog() {
+        return Integer.getInteger("dealer.replicationBacklog", 10000);
+    }
+
+    /**
+     * @return Number of records after which a replica stops adding changes to a pull, and the most a primary
+     * hands out in one pull whatever the replica asks for
+     */
+    static int replicationBatchRecords() {
+        return Integer.getInteger("dealer.replicationBatch", 10000);
+    }
+
+    /**
+     * @return Maximum number of change subscriptions running at once, each has a thread of its own
+     */
+    static int maxSubscriptions() {
+        return Integer.getInteger("dealer.maxSubscriptions", 64);
+    }
+}
@@ -0,0 +1,320 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of inserted records. Every insert is written to the end of the log
+ * instead of rewriting the data files, the data files are only rewritten during compaction.
+ * The log starts with [magic int][version byte], each entry is stored as
+ * [type][sequence number][payload length][crc][payload] where the CRC-32C covers the type,
+ * the sequence number, the length and the payload.
+ * Payloads are {@link RecordCodec} records, DICTIONARY entries carry no sequence number.
+ */
+class InsertLog implements Closeable {
+    static final byte CAR = RecordCodec.CAR;
+    static final byte RECEIPT = RecordCodec.RECEIPT;
+    static final byte DICTIONARY = RecordCodec.DICTIONARY;
+    static final byte CAR_BATCH = 'c';
+    static final byte RECEIPT_BATCH = 'r';
+    private static final int LOG_MAGIC = 0x444C524C; // "DLRL"
+    private static final int FILE_HEADER_SIZE = 4 + 1;
+    private static final int HEADER_SIZE = 1 + 8 + 4 + 4;
+
+    /**
+     * When the log is forced to disk.
+     */
+    enum SyncPolicy {
+        /** fsync after every write, the insert is acknowledged once it is on disk */
+        ALWAYS,
+        /** fsync at most once per group commit interval, writers wait for the next sync */
+        GROUP,
+        /** never fsync, leave flushing to the operating system */
+        OS
+    }
+
+    /**
+     * A log entry, either about to be written or read back during recovery.
+     */
+    static class Entry {
+        final byte type;
+        final long sequence;
+        final byte[] payload;
+
+        Entry(byte type, long sequence, byte[] payload) {
+            this.type = type;
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    final Path path;
+    final SyncPolicy syncPolicy;
+    final long groupCommitMillis;
+    private final FileChannel channel;
+    private long filePosition;
+    // Total bytes ever written and synced, these keep growing across truncations
+    private long writtenBytes;
+    private long syncedBytes;
+    private int entryCount;
+    private IOException syncFailure;
+    private Thread syncThread;
+    // Futures waiting for the group commit, by the position they wait for
+    private final TreeMap<Long, List<CompletableFuture<Void>>> durableWaiters = new TreeMap<>();
+
+    InsertLog(Path path, SyncPolicy syncPolicy, long groupCommitMillis) throws IOException {
+        this.path = path;
+        this.syncPolicy = syncPolicy;
+        this.groupCommitMillis = groupCommitMillis;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads every complete entry in the log. A partially written entry at the end of the log
+     * (left behind by a crash) is cut off so that new entries are appended after the last good one.
+     * @return Entries in the order they were written
+     */
+    synchronized List<Entry> recover() throws IOException {
+        long started = System.nanoTime();
+        List<Entry> entries = new ArrayList<>();
+        long size = channel.size();
+        if (size == 0) {
+            ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            fileHeader.putInt(LOG_MAGIC).put(RecordCodec.VERSION).flip();
+            while (fileHeader.hasRemaining()) {
+                size += channel.write(fileHeader, size);
+            }
+            channel.force(true);
+        } else {
+            ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            channel.read(fileHeader, 0);
+            fileHeader.flip();
+            if (fileHeader.remaining() < FILE_HEADER_SIZE || fileHeader.getInt() != LOG_MAGIC
+                    || fileHeader.get() != RecordCodec.VERSION) {
+                throw new IOException("Unsupported log format in " + path);
+            }
+        }
+
+        long position = FILE_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32C crc = new CRC32C();
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            byte type = header.get();
+            long sequence = header.getLong();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            channel.read(payload, position + HEADER_SIZE);
+            crc.reset();
+            crc.update(header.array(), 0, HEADER_SIZE - 4);
+            crc.update(payload.array());
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            entries.add(new Entry(type, sequence, payload.array()));
+            position += HEADER_SIZE + length;
+        }
+        if (position < size) {
+            System.out.println("Discarding " + (size - position) + " bytes of incomplete or corrupt log entries.");
+            channel.truncate(position);
+            channel.force(true);
+        }
+        Metrics.logReads.record(started, position);
+        filePosition = position;
+        entryCount = entries.size();
+        if (syncPolicy == SyncPolicy.GROUP) {
+            startSyncThread();
+        }
+        return entries;
+    }
+
+    /**
+     * Appends a batch of entries to the log with a single write. With the ALWAYS policy the batch is on disk
+     * when this returns, otherwise the caller must pass the returned position to {@link #whenDurable(long)}
+     * before acknowledging the inserts. If the write fails the log is cut back to where the batch started.
+     * Once a group commit has failed nothing is appended anymore, what was written since may not be on disk.
+     * @param entries Entries to append
+     * @return Log position right after the batch
+     * @throws IOException If the write failed or an earlier sync did
+     */
+    synchronized long append(List<Entry> entries) throws IOException {
+        if (syncFailure != null) {
+            throw new IOException("The log could not be synced, inserts fail until the server is restarted", syncFailure);
+        }
+        int length = 0;
+        for (Entry entry : entries) {
+            length += HEADER_SIZE + entry.payload.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        CRC32C crc = new CRC32C();
+        for (Entry entry : entries) {
+            int start = buffer.position();
+            buffer.put(entry.type).putLong(entry.sequence).putInt(entry.payload.length);
+            crc.reset();
+            crc.update(buffer.array(), start, HEADER_SIZE - 4);
+            crc.update(entry.payload);
+            buffer.putInt((int) crc.getValue()).put(entry.payload);
+        }
+        buffer.flip();
+
+        long start = filePosition;
+        long started = System.nanoTime();
+        try {
+            while (buffer.hasRemaining()) {
+                filePosition += channel.write(buffer, filePosition);
+            }
+            if (syncPolicy == SyncPolicy.ALWAYS) {
+                long syncStarted = System.nanoTime();
+                channel.force(false);
+                Metrics.logSyncs.record(syncStarted);
+            }
+        } catch (IOException e) {
+            Metrics.logWrites.errors.increment();
+            Metrics.ioErrors.increment();
+            filePosition = start;
+            channel.truncate(start);
+            throw e;
+        }
+        Metrics.logWrites.record(started, length);
+        writtenBytes += length;
+        entryCount += entries.size();
+        if (syncPolicy == SyncPolicy.ALWAYS) {
+            syncedBytes = writtenBytes;
+        }
+        return writtenBytes;
+    }
+
+    /**
+     * Tells when the log is as durable as the sync policy requires up to the given position. Only the GROUP
+     * policy ever waits, for the next run of the group commit thread. The future is completed by that thread,
+     * so whatever depends on it must hand work over to another thread instead of running there.
+     * @param position Position returned by {@link #append(List)}
+     * @return A future completed once the log is durable up to the position, or failed with the IOException
+     * of the sync
+     */
+    synchronized CompletableFuture<Void> whenDurable(long position) {
+        if (syncFailure != null) {
+            return CompletableFuture.failedFuture(syncFailure);
+        }
+        if (syncPolicy != SyncPolicy.GROUP || syncedBytes >= position) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        durableWaiters.computeIfAbsent(position, key -> new ArrayList<>()).add(durable);
+        return durable;
+    }
+
+    /**
+     * Removes the futures of the positions that are synced now, or all of them if the sync failed.
+     * They are completed by {@link #complete(List)} once the lock is released, so that nothing depending
+     * on them runs while appends are blocked.
+     */
+    private synchronized List<CompletableFuture<Void>> takeDurableWaiters() {
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        while (!durableWaiters.isEmpty() && (syncFailure != null || durableWaiters.firstKey() <= syncedBytes)) {
+            ready.addAll(durableWaiters.pollFirstEntry().getValue());
+        }
+        return ready;
+    }
+
+    private void complete(List<CompletableFuture<Void>> ready) {
+        IOException failure;
+        synchronized (this) {
+            failure = syncFailure;
+        }
+        for (CompletableFuture<Void> durable : ready) {
+            if (failure != null) {
+                durable.completeExceptionally(failure);
+            } else {
+                durable.complete(null);
+            }
+        }
+    }
+
+    private void startSyncThread() {
+        syncThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(groupCommitMillis);
+                    sync();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "insert-log-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Forces everything written so far to disk and wakes up the writers waiting for it.
+     */
+    private void sync() {
+        long target;
+        synchronized (this) {
+            target = writtenBytes;
+            if (target == syncedBytes) {
+                return;
+            }
+        }
+        long started = System.nanoTime();
+        try {
+            channel.force(false);
+            Metrics.logSyncs.record(started);
+        } catch (IOException e) {
+            Metrics.logSyncs.errors.increment();
+            Metrics.ioErrors.increment();
+            System.out.println("Error syncing the log, inserts will fail until the server is restarted: " + e);
+            synchronized (this) {
+                syncFailure = e;
+            }
+            complete(takeDurableWaiters());
+            return;
+        }
+        synchronized (this) {
+            syncedBytes = Math.max(syncedBytes, target);
+        }
+        complete(takeDurableWaiters());
+    }
+
+    /**
+     * Empties the log, called once its entries have been compacted into the data files.
+     */
+    void truncate() throws IOException {
+        synchronized (this) {
+            channel.truncate(FILE_HEADER_SIZE);
+            channel.force(true);
+            filePosition = FILE_HEADER_SIZE;
+            syncedBytes = writtenBytes;
+            entryCount = 0;
+        }
+        complete(takeDurableWaiters());
+    }
+
+    synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncThread != null) {
+            syncThread.interrupt();
+        }
+        sync();
+        channel.close();
+    }
+}
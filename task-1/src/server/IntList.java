@@ -0,0 +1,42 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, written by a single thread and read by any number of threads without locking,
+ * used by the indexes of a {@link RecordTable} to hold row numbers. The array is copied into a larger one
+ * when full and published before the size, so readers see every element below the size they read.
+ */
+final class IntList {
+    private volatile int[] elements;
+    private volatile int size;
+
+    IntList(int capacity) {
+        elements = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends an element. Must only be called by the writer thread.
+     */
+    void add(int value) {
+        int index = size;
+        int[] current = elements;
+        if (index == current.length) {
+            current = Arrays.copyOf(current, index * 2);
+            elements = current;
+        }
+        current[index] = value;
+        size = index + 1;
+    }
+
+    int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return elements[index];
+    }
+
+    int size() {
+        return size;
+    }
+}
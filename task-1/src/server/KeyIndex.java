@@ -0,0 +1,120 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntFunction;
+
+/**
+ * Hash index from the unique key of a record to its row in a {@link RecordTable}, an open addressing table
+ * of row numbers rather than a map of key objects. Each slot holds a row plus one, or 0 when empty, and a
+ * probe compares the key with the key column of the row. The first row added with a key keeps it, unless
+ * the key is replaced, which chains the rows of a key that is not unique.
+ * <p>
+ * Only the writer thread adds rows. The table is at most half full and is replaced by a larger copy when it
+ * would fill up, readers keep probing the table they started with.
+ */
+final class KeyIndex {
+    private final IntFunction<String> keyOf;
+    private volatile AtomicIntegerArray slots = new AtomicIntegerArray(16);
+    private int count;
+
+    /**
+     * @param keyOf Reads the key of a row
+     */
+    KeyIndex(IntFunction<String> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    /**
+     * Makes room for more keys at once, so that a bulk load doesn't copy the table over and over.
+     */
+    void ensureCapacity(int keys) {
+        if ((long) (count + keys) * 2 > slots.length()) {
+            resize(count + keys);
+        }
+    }
+
+    /**
+     * Adds the key of a row unless another row already has it. Must only be called by the writer thread.
+     * @return True if the key was added, false if it is null or was already taken
+     */
+    boolean add(String key, int row) {
+        return key != null && put(key, row, false) < 0;
+    }
+
+    /**
+     * Points the key at a row, whether or not another row had it. Must only be called by the writer thread.
+     * @return The row the key pointed at before, -1 if none
+     */
+    int replace(String key, int row) {
+        return put(key, row, true);
+    }
+
+    private int put(String key, int row, boolean replace) {
+        if ((count + 1) * 2 > slots.length()) {
+            resize(count + 1);
+        }
+        AtomicIntegerArray table = slots;
+        int mask = table.length() - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int slot = table.get(i);
+            if (slot == 0) {
+                // A release store, the row is written before its slot
+                table.lazySet(i, row + 1);
+                count++;
+                return -1;
+            }
+            if (key.equals(keyOf.apply(slot - 1))) {
+                if (replace) {
+                    table.lazySet(i, row + 1);
+                }
+                return slot - 1;
+            }
+        }
+    }
+
+    /**
+     * @return The row with the key, -1 if there is none
+     */
+    int find(String key) {
+        if (key == null) {
+            return -1;
+        }
+        AtomicIntegerArray table = slots;
+        int mask = table.length() - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int slot = table.get(i);
+            if (slot == 0) {
+                return -1;
+            }
+            if (key.equals(keyOf.apply(slot - 1))) {
+                return slot - 1;
+            }
+        }
+    }
+
+    private void resize(int keys) {
+        AtomicIntegerArray old = slots;
+        int length = old.length();
+        while ((long) keys * 2 > length) {
+            length *= 2;
+        }
+        AtomicIntegerArray grown = new AtomicIntegerArray(length);
+        int mask = length - 1;
+        for (int j = 0; j < old.length(); j++) {
+            int slot = old.get(j);
+            if (slot != 0) {
+                int i = hash(keyOf.apply(slot - 1)) & mask;
+                while (grown.get(i) != 0) {
+                    i = (i + 1) & mask;
+                }
+                grown.lazySet(i, slot);
+            }
+        }
+        slots = grown;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations in nanoseconds with log-linear buckets: every power of two is split into
+ * 32 buckets, so a percentile is off by at most about 3% whatever its magnitude. Recording is a
+ * few arithmetic operations on a fixed array and never allocates.
+ * <p>
+ * Not thread safe, each thread records into its own histogram.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private long max;
+
+    LatencyHistogram() {
+        counts = new long[BUCKETS];
+    }
+
+    /**
+     * A histogram holding the given buckets, see {@link AtomicHistogram#snapshot()}.
+     */
+    LatencyHistogram(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * @return Highest value that falls into the bucket
+     */
+    private static long upperBoundOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return Value below which the given percentage of the recorded values fall, 0 if nothing was recorded
+     */
+    long percentile(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    long getSum() {
+        return sum;
+    }
+
+    double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Adds the values recorded by another histogram, used to merge the histograms of several threads.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+}
@@ -0,0 +1,419 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only view of a snapshot file through a memory mapping, used by the mapped storage engine.
+ * Records are decoded one at a time straight from the mapping, so the heap holds nothing but the
+ * dictionary no matter how many records the file contains.
+ * <p>
+ * Random access goes through an index file next to the snapshot (cars.dat.idx for cars.dat), which is
+ * mapped as well:
+ * <pre>
+ * [magic int][version int][snapshot length long][snapshot sequence long]
+ * [dictionary count int][record count int][slot count int][filter words int][reference slot count int][unused int]
+ * [dictionary record offsets long * dictionary count]
+ * [record offsets long * record count]
+ * [hash slots int * slot count]
+ * [key filter long * filter words]
+ * [reference hash slots int * reference slot count]
+ * [reference filter long * filter words, if there are reference slots]
+ * </pre>
+ * The hash slots form an open addressing table on the record keys, each slot holding the ordinal of a
+ * record plus one, or 0 when empty. The index is rebuilt whenever it doesn't match the snapshot.
+ * <p>
+ * Receipts also have a reference, the serial number of their car, with hash slots of its own. Both the
+ * keys and the references have a {@link BloomFilter} that is copied to the heap when the snapshot is
+ * opened, so checking a key that isn't there, the common case when inserting, rarely touches the mapping.
+ *
+ * @param <T> Car or Receipt
+ */
+class MappedSnapshot<T> {
+    private static final int INDEX_MAGIC = 0x444C5249; // "DLRI"
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_HEADER_SIZE = 48;
+
+    private final MappedByteBuffer data;
+    private final LongBuffer recordOffsets;
+    private final IntBuffer slots;
+    private final IntBuffer referenceSlots;
+    private final BloomFilter keyFilter;
+    private final BloomFilter referenceFilter;
+    private final RecordCodec.Dictionary dictionary = new RecordCodec.Dictionary();
+    private final Function<T, String> keyOf;
+    private final Function<T, String> referenceOf;
+    private final long sequence;
+    private final int recordCount;
+    private final int slotMask;
+    private final int referenceSlotMask;
+
+    private MappedSnapshot(MappedByteBuffer data, MappedByteBuffer index, Function<T, String> keyOf,
+                           Function<T, String> referenceOf) throws IOException {
+        this.data = data;
+        this.keyOf = keyOf;
+        this.referenceOf = referenceOf;
+        sequence = index.getLong(16);
+        int dictionaryCount = index.getInt(24);
+        recordCount = index.getInt(28);
+        int slotCount = index.getInt(32);
+        int filterWords = index.getInt(36);
+        int referenceSlotCount = index.getInt(40);
+        slotMask = slotCount - 1;
+        referenceSlotMask = referenceSlotCount - 1;
+
+        LongBuffer dictionaryOffsets = index.position(INDEX_HEADER_SIZE).slice().asLongBuffer();
+        for (int i = 0; i < dictionaryCount; i++) {
+            RecordCodec.decode(payloadAt(dictionaryOffsets.get(i)), dictionary);
+        }
+        int position = INDEX_HEADER_SIZE + dictionaryCount * 8;
+        recordOffsets = index.position(position).slice().asLongBuffer();
+        position += recordCount * 8;
+        slots = index.position(position).slice().asIntBuffer();
+        position += slotCount * 4;
+        keyFilter = readFilter(index, position, filterWords);
+        position += filterWords * 8;
+        if (referenceSlotCount > 0) {
+            referenceSlots = index.position(position).slice().asIntBuffer();
+            position += referenceSlotCount * 4;
+            referenceFilter = readFilter(index, position, filterWords);
+        } else {
+            referenceSlots = null;
+            referenceFilter = null;
+        }
+    }
+
+    private static BloomFilter readFilter(MappedByteBuffer index, int position, int words) {
+        long[] bits = new long[words];
+        index.position(position).slice().asLongBuffer().get(bits);
+        return new BloomFilter(bits);
+    }
+
+    /**
+     * Maps a snapshot and its index, building the index first if it is missing or out of date.
+     * @param snapshot Snapshot file
+     * @param keyOf Extracts the unique key of a record, used to confirm hash matches
+     * @param referenceOf Extracts the key of the record another one refers to, null if records have none
+     * @return The mapped snapshot
+     */
+    static <T> MappedSnapshot<T> open(File snapshot, Function<T, String> keyOf, Function<T, String> referenceOf)
+            throws IOException {
+        File index = indexFileOf(snapshot);
+        if (!isIndexCurrent(snapshot, index, referenceOf != null)) {
+            long started = System.nanoTime();
+            try {
+                buildIndex(snapshot, index, keyOf, referenceOf);
+            } catch (IOException e) {
+                Metrics.snapshotIndexBuilds.errors.increment();
+                throw e;
+            }
+            Metrics.snapshotIndexBuilds.record(started, index.length());
+        }
+        return new MappedSnapshot<>(map(snapshot), map(index), keyOf, referenceOf);
+    }
+
+    static File indexFileOf(File snapshot) {
+        return new File(snapshot.getPath() + ".idx");
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2 GB and can't be mapped");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static boolean isIndexCurrent(File snapshot, File index, boolean references) throws IOException {
+        if (!index.exists() || index.length() < INDEX_HEADER_SIZE) {
+            return false;
+        }
+        long snapshotSequence;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(snapshot))) {
+            in.skipBytes(4 + 1);
+            snapshotSequence = in.readLong();
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || in.readLong() != snapshot.length() || in.readLong() != snapshotSequence) {
+                return false;
+            }
+            in.skipBytes(4 * 4);
+            return (in.readInt() > 0) == references;
+        }
+    }
+
+    /**
+     * Scans a snapshot, verifying every frame, and writes its index file.
+     */
+    static <T> void buildIndex(File snapshot, File index, Function<T, String> keyOf, Function<T, String> referenceOf)
+            throws IOException {
+        MappedByteBuffer data = map(snapshot);
+        if (data.getInt(0) != RecordCodec.SNAPSHOT_MAGIC || data.get(4) != RecordCodec.VERSION) {
+            throw new IOException(snapshot + " is not a snapshot file");
+        }
+        long sequence = data.getLong(5);
+
+        RecordCodec.Dictionary dictionary = new RecordCodec.Dictionary();
+        long[] dictionaryOffsets = new long[16];
+        int dictionaryCount = 0;
+        long[] recordOffsets = new long[1024];
+        int[] hashes = new int[1024];
+        int[] referenceHashes = new int[1024];
+        List<String> keys = new ArrayList<>();
+        List<String> references = new ArrayList<>();
+        int recordCount = 0;
+        CRC32C crc = new CRC32C();
+        int position = RecordCodec.SNAPSHOT_HEADER_SIZE;
+        while (position < data.limit()) {
+            ByteBuffer payload = payloadAt(data, position);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != data.getInt(position + 4)) {
+                throw new IOException("CRC mismatch in " + snapshot + " at offset " + position);
+            }
+            @SuppressWarnings("unchecked")
+            T record = (T) RecordCodec.decode(payload, dictionary);
+            if (record == null) {
+                if (dictionaryCount == dictionaryOffsets.length) {
+                    dictionaryOffsets = Arrays.copyOf(dictionaryOffsets, dictionaryCount * 2);
+                }
+                dictionaryOffsets[dictionaryCount++] = position;
+            } else {
+                if (recordCount == recordOffsets.length) {
+                    recordOffsets = Arrays.copyOf(recordOffsets, recordCount * 2);
+                    hashes = Arrays.copyOf(hashes, recordCount * 2);
+                    referenceHashes = Arrays.copyOf(referenceHashes, recordCount * 2);
+                }
+                String key = keyOf.apply(record);
+                keys.add(key);
+                if (referenceOf != null) {
+                    String reference = referenceOf.apply(record);
+                    references.add(reference);
+                    referenceHashes[recordCount] = hash(reference);
+                }
+                recordOffsets[recordCount] = position;
+                hashes[recordCount++] = hash(key);
+            }
+            position += RecordCodec.FRAME_HEADER_SIZE + data.getInt(position);
+        }
+
+        int slotCount = Integer.highestOneBit(Math.max(recordCount, 1) * 2 - 1) << 1;
+        int[] slots = fillSlots(hashes, null, recordCount, slotCount);
+        int[] referenceSlots = referenceOf == null ? new int[0] : fillSlots(referenceHashes, references, recordCount, slotCount);
+        BloomFilter keyFilter = new BloomFilter(recordCount);
+        keys.forEach(keyFilter::add);
+        BloomFilter referenceFilter = new BloomFilter(recordCount);
+        for (String reference : references) {
+            if (reference != null) {
+                referenceFilter.add(reference);
+            }
+        }
+
+        Path temp = Paths.get(index.getPath() + ".tmp");
+        try (FileOutputStream f = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(f, 1 << 16))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(snapshot.length());
+            out.writeLong(sequence);
+            out.writeInt(dictionaryCount);
+            out.writeInt(recordCount);
+            out.writeInt(slotCount);
+            out.writeInt(keyFilter.words().length);
+            out.writeInt(referenceSlots.length);
+            out.writeInt(0);
+            for (int i = 0; i < dictionaryCount; i++) {
+                out.writeLong(dictionaryOffsets[i]);
+            }
+            for (int i = 0; i < recordCount; i++) {
+                out.writeLong(recordOffsets[i]);
+            }
+            for (int slot : slots) {
+                out.writeInt(slot);
+            }
+            for (long word : keyFilter.words()) {
+                out.writeLong(word);
+            }
+            if (referenceOf != null) {
+                for (int slot : referenceSlots) {
+                    out.writeInt(slot);
+                }
+                for (long word : referenceFilter.words()) {
+                    out.writeLong(word);
+                }
+            }
+            out.flush();
+            f.getFD().sync();
+        }
+        Files.move(temp, index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Builds the open addressing table of the records, leaving out those whose value is null if values are given.
+     */
+    private static int[] fillSlots(int[] hashes, List<String> values, int recordCount, int slotCount) {
+        int[] slots = new int[slotCount];
+        for (int ordinal = 0; ordinal < recordCount; ordinal++) {
+            if (values != null && values.get(ordinal) == null) {
+                continue;
+            }
+            int slot = hashes[ordinal] & (slotCount - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = ordinal + 1;
+        }
+        return slots;
+    }
+
+    private static int hash(String key) {
+        int h = key == null ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static ByteBuffer payloadAt(ByteBuffer data, long offset) {
+        int start = (int) offset + RecordCodec.FRAME_HEADER_SIZE;
+        return data.duplicate().position(start).limit(start + data.getInt((int) offset)).slice();
+    }
+
+    private ByteBuffer payloadAt(long offset) {
+        return payloadAt(data, offset);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    int size() {
+        return recordCount;
+    }
+
+    /**
+     * Decodes the record with the given ordinal.
+     */
+    @SuppressWarnings("unchecked")
+    T get(int ordinal) {
+        try {
+            return (T) RecordCodec.decode(payloadAt(recordOffsets.get(ordinal)), dictionary);
+        } catch (IOException e) {
+            // The frame was verified when the index was built, so the mapping itself must be broken
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Looks a key up in the hash slots, decoding only the records whose key hash matches.
+     * @return The first record with the given key or null if not found
+     */
+    T find(String key) {
+        int slot = hash(key) & slotMask;
+        int ordinal;
+        T first = null;
+        int firstOrdinal = Integer.MAX_VALUE;
+        while ((ordinal = slots.get(slot)) != 0) {
+            // Duplicate keys can sit in any order along the probe sequence, keep the oldest
+            if (ordinal - 1 < firstOrdinal) {
+                T record = get(ordinal - 1);
+                if (Objects.equals(keyOf.apply(record), key)) {
+                    first = record;
+                    firstOrdinal = ordinal - 1;
+                }
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return first;
+    }
+
+    /**
+     * Checks the key filter before the hash slots, so a key that isn't there usually costs no read of the mapping.
+     * @return True if a record has the given key
+     */
+    boolean containsKey(String key) {
+        if (!keyFilter.mightContain(key)) {
+            Metrics.bloomNegatives.increment();
+            return false;
+        }
+        if (find(key) == null) {
+            Metrics.bloomFalsePositives.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks the reference filter before the reference hash slots.
+     * @return True if a record refers to the given key, such as a receipt of the car with that serial number
+     * @throws IllegalStateException If the snapshot was opened without references
+     */
+    boolean containsReference(String key) {
+        if (referenceFilter == null) {
+            throw new IllegalStateException("The snapshot has no references");
+        }
+        if (!referenceFilter.mightContain(key)) {
+            Metrics.bloomNegatives.increment();
+            return false;
+        }
+        for (int slot = hash(key) & referenceSlotMask; referenceSlots.get(slot) != 0; slot = (slot + 1) & referenceSlotMask) {
+            if (Objects.equals(referenceOf.apply(get(referenceSlots.get(slot) - 1)), key)) {
+                return true;
+            }
+        }
+        Metrics.bloomFalsePositives.increment();
+        return false;
+    }
+
+    /**
+     * Scans the snapshot for the records with the given name ignoring case. The name is the dictionary id
+     * right after the key string in both car and receipt records, so records of other names are skipped
+     * without being decoded. The scan stops once the requested page is full.
+     * @param name Name to look for
+     * @param from Number of matching records to skip
+     * @param limit Maximum number of records to add
+     * @param found Receives the matching records in file order
+     * @return Number of matching records seen, which is the total number of matches if fewer than
+     * limit records were added
+     */
+    int findByName(String name, int from, int limit, List<T> found) {
+        String folded = DataStore.fold(name);
+        BitSet ids = new BitSet();
+        try {
+            for (int id = 1; id < dictionary.size(); id++) {
+                if (DataStore.fold(dictionary.get(id)).equals(folded)) {
+                    ids.set(id);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        int matches = 0;
+        int added = 0;
+        try {
+            for (int ordinal = 0; ordinal < recordCount && added < limit; ordinal++) {
+                ByteBuffer payload = payloadAt(recordOffsets.get(ordinal));
+                payload.get(); // record type
+                int keyLength = RecordCodec.readVarInt(payload) - 1;
+                payload.position(payload.position() + Math.max(keyLength, 0));
+                if (ids.get(RecordCodec.readVarInt(payload)) && matches++ >= from) {
+                    found.add(get(ordinal));
+                    added++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,245 @@
+package server;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and latency histograms of the server, shared by the whole process.
+ * <p>
+ * Recording is a few atomic increments on objects created up front and never allocates, so it can sit on
+ * every remote call and every log write. Gauges are read only when the metrics are, from suppliers registered
+ * once at startup. The metrics are published as the attributes of a JMX MBean and as plain text in the
+ * Prometheus format by {@link MetricsServer}, with names such as
+ * {@code dealer_call_seconds{method="findCarBySerialNumber",quantile="0.99"}}.
+ */
+final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * Count, failures, latency and optionally bytes of one kind of operation.
+     */
+    static final class Timer {
+        final AtomicHistogram latency = new AtomicHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        private final boolean countsBytes;
+
+        Timer(boolean countsBytes) {
+            this.countsBytes = countsBytes;
+        }
+
+        /**
+         * @param startNanos System.nanoTime() when the operation began
+         */
+        void record(long startNanos) {
+            latency.record(System.nanoTime() - startNanos);
+        }
+
+        void record(long startNanos, long byteCount) {
+            latency.record(System.nanoTime() - startNanos);
+            bytes.add(byteCount);
+        }
+    }
+
+    // Persistence
+    static final Timer logWrites = new Timer(true);
+    static final Timer logReads = new Timer(true);
+    static final Timer logSyncs = new Timer(false);
+    static final Timer snapshotWrites = new Timer(true);
+    static final Timer snapshotReads = new Timer(true);
+    // Indexes of the mapped engine built for snapshots that had none or an outdated one
+    static final Timer snapshotIndexBuilds = new Timer(true);
+    static final Timer compactions = new Timer(false);
+    // Failed reads, writes and syncs of the log and snapshots, failed connections of the binary transport
+    static final LongAdder ioErrors = new LongAdder();
+
+    // Point lookups that found a record and that didn't
+    static final LongAdder lookupHits = new LongAdder();
+    static final LongAdder lookupMisses = new LongAdder();
+    // Criteria queries answered from an index and by reading every record
+    static final LongAdder indexedQueries = new LongAdder();
+    static final LongAdder scannedQueries = new LongAdder();
+    // Sales reports served from the materialized reports and computed on demand
+    static final LongAdder reportHits = new LongAdder();
+    static final LongAdder reportMisses = new LongAdder();
+    // Inserts refused for a taken key, an unknown car and a car already sold
+    static final LongAdder duplicateKeys = new LongAdder();
+    static final LongAdder unknownCars = new LongAdder();
+    static final LongAdder soldCars = new LongAdder();
+    // Snapshot key checks ruled out by a Bloom filter, and those it let through that weren't there
+    static final LongAdder bloomNegatives = new LongAdder();
+    static final LongAdder bloomFalsePositives = new LongAdder();
+    // Records delivered to the listeners of change subscriptions
+    static final LongAdder pushedRecords = new LongAdder();
+
+    private static final ConcurrentMap<String, Timer> calls = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @param method Name of the remote method
+     * @return The timer of the method's calls, created on first use
+     */
+    static Timer call(String method) {
+        return calls.computeIfAbsent(method, name -> new Timer(false));
+    }
+
+    /**
+     * Registers a value read whenever the metrics are, replacing the gauge of the same name.
+     * @param name Metric name, optionally with labels
+     */
+    static void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return Every metric by its name with labels, in a stable order
+     */
+    static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Timer> call : new TreeMap<>(calls).entrySet()) {
+            addTimer(values, "dealer_call", "method=\"" + call.getKey() + "\"", call.getValue());
+        }
+        addTimer(values, "dealer_log_write", "", logWrites);
+        addTimer(values, "dealer_log_read", "", logReads);
+        addTimer(values, "dealer_log_sync", "", logSyncs);
+        addTimer(values, "dealer_snapshot_write", "", snapshotWrites);
+        addTimer(values, "dealer_snapshot_read", "", snapshotReads);
+        addTimer(values, "dealer_snapshot_index_build", "", snapshotIndexBuilds);
+        addTimer(values, "dealer_compaction", "", compactions);
+        values.put("dealer_io_errors_total", ioErrors.sum());
+        values.put("dealer_lookups_total{result=\"hit\"}", lookupHits.sum());
+        values.put("dealer_lookups_total{result=\"miss\"}", lookupMisses.sum());
+        values.put("dealer_lookup_hit_ratio", ratio(lookupHits, lookupMisses));
+        values.put("dealer_queries_total{plan=\"index\"}", indexedQueries.sum());
+        values.put("dealer_queries_total{plan=\"scan\"}", scannedQueries.sum());
+        values.put("dealer_query_index_ratio", ratio(indexedQueries, scannedQueries));
+        values.put("dealer_reports_total{source=\"materialized\"}", reportHits.sum());
+        values.put("dealer_reports_total{source=\"computed\"}", reportMisses.sum());
+        values.put("dealer_report_cache_hit_ratio", ratio(reportHits, reportMisses));
+        values.put("dealer_rejected_inserts_total{reason=\"duplicate\"}", duplicateKeys.sum());
+        values.put("dealer_rejected_inserts_total{reason=\"unknown_car\"}", unknownCars.sum());
+        values.put("dealer_rejected_inserts_total{reason=\"sold\"}", soldCars.sum());
+        values.put("dealer_bloom_checks_total{result=\"negative\"}", bloomNegatives.sum());
+        values.put("dealer_bloom_checks_total{result=\"false_positive\"}", bloomFalsePositives.sum());
+        values.put("dealer_subscription_records_total", pushedRecords.sum());
+        for (Map.Entry<String, DoubleSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsDouble());
+        }
+        return values;
+    }
+
+    private static void addTimer(Map<String, Number> values, String name, String labels, Timer timer) {
+        LatencyHistogram latency = timer.latency.snapshot();
+        String separator = labels.isEmpty() ? "" : ",";
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        values.put(name + "_total" + braces, latency.getCount());
+        values.put(name + "_errors_total" + braces, timer.errors.sum());
+        for (double quantile : QUANTILES) {
+            values.put(name + "_seconds{" + labels + separator + "quantile=\"" + quantile + "\"}",
+                    latency.percentile(quantile * 100) / 1e9);
+        }
+        values.put(name + "_seconds_sum" + braces, latency.getSum() / 1e9);
+        values.put(name + "_seconds_max" + braces, latency.getMax() / 1e9);
+        if (timer.countsBytes) {
+            values.put(name + "_bytes_total" + braces, timer.bytes.sum());
+        }
+    }
+
+    private static double ratio(LongAdder hits, LongAdder misses) {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * @return Every metric as text in the Prometheus exposition format, one "name value" line per metric
+     */
+    static String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> value : snapshot().entrySet()) {
+            text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Publishes the metrics as the read-only attributes of the MBean server:type=Dealer,name=name.
+     * @param name Registry name of the dealer served by the process
+     */
+    static void registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("server:type=Dealer,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new MetricsMBean(), objectName);
+            }
+        } catch (JMException e) {
+            System.out.println("Failed to register the metrics MBean: " + e);
+        }
+    }
+
+    /**
+     * Every metric of {@link #snapshot()} as an attribute, so the attributes follow the methods and gauges
+     * that show up at runtime.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> value : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                        value.getKey(), true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Dealer server metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import interfaces.Car;
+import interfaces.Receipt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Converts data files written with Java serialization into the {@link RecordCodec} snapshot format.
+ * <p>
+ * Run it with the files to migrate ({@code java -classpath "out" server.Migrator cars.dat receipts.dat}), the old
+ * files are kept with a .bak extension. Run it with {@code --benchmark <count>} to compare both formats on
+ * generated data without touching any files.
+ */
+public class Migrator {
+    /**
+     * Migrates the given files, cars.dat and receipts.dat if none are given, or runs the format benchmark.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("--benchmark")) {
+            benchmark(Integer.parseInt(args[1]));
+            return;
+        }
+        String[] files = args.length == 0 ? new String[]{"cars.dat", "receipts.dat"} : args;
+        for (String fileName : files) {
+            File file = new File(fileName);
+            if (!file.exists()) {
+                System.out.println(fileName + " not found, skipping.");
+            } else if (RecordCodec.isSnapshot(file)) {
+                System.out.println(fileName + " is already migrated.");
+            } else {
+                System.out.println(migrate(file));
+            }
+        }
+    }
+
+    /**
+     * Rewrites a serialization stream of cars or receipts as a snapshot. The original file is kept with
+     * a .bak extension and the snapshot replaces it atomically.
+     * @param file File in the old format
+     * @return A summary with the record count, the sizes and the time spent
+     */
+    static String migrate(File file) throws IOException {
+        long start = System.nanoTime();
+        long sequence = 0;
+        List<Object> records = new ArrayList<>();
+        for (Object object : readLegacy(file)) {
+            // Snapshots written by the insert log start with the sequence number they cover
+            if (object instanceof Long) {
+                sequence = (Long) object;
+            } else {
+                records.add(object);
+            }
+        }
+
+        Path source = file.toPath();
+        Path temp = Paths.get(file.getPath() + ".tmp");
+        try (FileOutputStream f = new FileOutputStream(temp.toFile());
+             BufferedOutputStream o = new BufferedOutputStream(f, 1 << 16)) {
+            RecordCodec.writeSnapshot(o, sequence, records);
+            o.flush();
+            f.getFD().sync();
+        }
+        long oldSize = file.length();
+        long newSize = temp.toFile().length();
+        Files.copy(source, Paths.get(file.getPath() + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, source, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return "Migrated " + records.size() + " records in " + file + " (" + oldSize + " -> " + newSize + " bytes) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms";
+    }
+
+    private static List<Object> readLegacy(File file) throws IOException {
+        List<Object> objects = new ArrayList<>();
+        try (ObjectInputStream o = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                objects.add(o.readObject());
+            }
+        } catch (EOFException ignored) {
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown object in " + file, e);
+        }
+        return objects;
+    }
+
+    /**
+     * Writes and reads the same generated cars and receipts in both formats in memory and prints
+     * bytes per record and records per second for each.
+     * @param count Number of cars and of receipts to generate
+     */
+    private static void benchmark(int count) throws IOException {
+        String[] brands = {"Hyundai", "Toyota", "Ford", "Renault", "Fiat", "Honda", "Volkswagen", "BMW"};
+        String[] colors = {"Red", "Blue", "Black", "White", "Grey"};
+        List<Car> cars = new ArrayList<>(count);
+        List<Receipt> receipts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String serialNumber = Integer.toString(1_000_000 + i);
+            cars.add(new Car(serialNumber, brands[i % brands.length], "Model " + i % 50, colors[i % colors.length],
+                    2000 + i % 22, 10_000 + i % 40_000, 1000 + i % 800));
+            receipts.add(new Receipt(Integer.toString(i), "Vendor " + i % 100, serialNumber,
+                    new Date(946_684_800_000L + i * 60_000L)));
+        }
+        System.out.println("Records: " + count + " cars, " + count + " receipts");
+        for (List<?> records : List.of(cars, receipts)) {
+            String name = records == cars ? "cars" : "receipts";
+            // Warm up once before measuring
+            runLegacy(records);
+            runSnapshot(records);
+            System.out.println(name + " serialization: " + runLegacy(records));
+            System.out.println(name + " binary:        " + runSnapshot(records));
+        }
+    }
+
+    private static String runLegacy(List<?> records) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream o = new ObjectOutputStream(bytes)) {
+            for (Object record : records) {
+                o.writeObject(record);
+            }
+        }
+        long written = System.nanoTime();
+        int read = 0;
+        try (ObjectInputStream o = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            while (true) {
+                o.readObject();
+                read++;
+            }
+        } catch (EOFException ignored) {
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        return summary(bytes.size(), read, start, written, System.nanoTime());
+    }
+
+    private static String runSnapshot(List<?> records) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordCodec.writeSnapshot(bytes, 0, records);
+        long written = System.nanoTime();
+        int[] read = {0};
+        RecordCodec.readSnapshot(new ByteArrayInputStream(bytes.toByteArray()), record -> read[0]++);
+        return summary(bytes.size(), read[0], start, written, System.nanoTime());
+    }
+
+    private static String summary(long bytes, int count, long start, long written, long end) {
+        return String.format("%.1f bytes/record, write %,d records/s, read %,d records/s",
+                (double) bytes / count, (long) (count / ((written - start) / 1e9)), (long) (count / ((end - written) / 1e9)));
+    }
+}
@@ -0,0 +1,61 @@
+package server;
+
+import interfaces.RemoteIterator;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remote iterator that walks a paged query by offset. It is unexported when the client closes it
+ * or when the RMI runtime reports that no client holds a reference to it anymore.
+ *
+ * @param <T> Car or Receipt
+ */
+class PageIterator<T> implements RemoteIterator<T>, Unreferenced {
+    /**
+     * Fetches a page of the underlying query.
+     */
+    interface PageSource<T> {
+        List<T> fetch(int from, int limit);
+    }
+
+    private final PageSource<T> source;
+    private final int maxPageSize;
+    private int offset;
+    private boolean exhausted;
+
+    PageIterator(PageSource<T> source, int maxPageSize) {
+        this.source = source;
+        this.maxPageSize = maxPageSize;
+    }
+
+    @Override
+    public synchronized List<T> next(int max) throws RemoteException {
+        if (exhausted) {
+            return Collections.emptyList();
+        }
+        int limit = max <= 0 ? maxPageSize : Math.min(max, maxPageSize);
+        List<T> items = source.fetch(offset, limit);
+        offset += items.size();
+        exhausted = items.size() < limit;
+        return items;
+    }
+
+    @Override
+    public void close() throws RemoteException {
+        unreferenced();
+    }
+
+    @Override
+    public void unreferenced() {
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException ignored) {
+            // Already closed
+        }
+    }
+}
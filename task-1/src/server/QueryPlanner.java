@@ -0,0 +1,198 @@
+package server;
+
+import interfaces.Car;
+import interfaces.CarQuery;
+import interfaces.Receipt;
+import interfaces.ReceiptQuery;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runs {@link CarQuery}s and {@link ReceiptQuery}s against a {@link RecordTable}.
+ * <p>
+ * Every criterion that has an index offers an access path: the brand or vendor index, the exact lookup on
+ * the car serial number of a receipt, or a range of one of the sorted indexes. The planner picks the path
+ * with the fewest records, the rest of the criteria are then checked on each of them. Range sizes are
+ * counted with the size of the best path so far as a cap, so planning never walks more index entries than
+ * the chosen plan will read anyway.
+ * <p>
+ * When the chosen path is the sorted index of the requested sort field the records already come out in
+ * order and reading stops at the limit, otherwise the matches are sorted before the limit is applied.
+ * <p>
+ * The named indexes only cover the records on the heap. With the mapped storage engine a table sits on top
+ * of a snapshot, so queries read the brand or vendor index when they can and scan every record otherwise.
+ */
+final class QueryPlanner {
+    static final String PRICE = "price";
+    static final String YEAR = "year";
+    static final String DATE = "date";
+    static final String CAR_SERIAL_NUMBER = "carSerialNumber";
+
+    private QueryPlanner() {
+    }
+
+    /**
+     * One way of reading the candidate records of a query.
+     */
+    private static final class Plan<T> {
+        final Iterable<T> candidates;
+        final int estimate;
+        final boolean ordered;
+
+        Plan(Iterable<T> candidates, int estimate, boolean ordered) {
+            this.candidates = candidates;
+            this.estimate = estimate;
+            this.ordered = ordered;
+        }
+    }
+
+    /**
+     * @param cars Table to search
+     * @param query Criteria, sort order and limit
+     * @param limit Maximum number of cars to return
+     * @return The matching cars, in the requested order or in insertion order if none was requested
+     */
+    static List<Car> findCars(RecordTable<Car> cars, CarQuery query, int limit) {
+        ToDoubleFunction<Car> sortValue = null;
+        String sortIndex = null;
+        if (query.getSortField() != null) {
+            switch (query.getSortField()) {
+                case PRICE:
+                    sortValue = Car::getPrice;
+                    sortIndex = PRICE;
+                    break;
+                case YEAR:
+                    sortValue = Car::getYear;
+                    sortIndex = YEAR;
+                    break;
+                default:
+                    sortValue = Car::getWeight;
+            }
+        }
+        Comparator<Car> order = sortValue == null ? null : comparator(sortValue, query.isDescending());
+
+        if (!cars.isFullyIndexed()) {
+            List<Car> candidates = query.getBrand() != null ? cars.findByName(query.getBrand()) : cars.all();
+            countPlan(query.getBrand() != null);
+            return collect(candidates, query::matches, order, false, limit);
+        }
+
+        Plan<Car> best = new Plan<>(cars.all(), cars.size(), false);
+        if (query.getBrand() != null) {
+            best = cheaper(best, new Plan<>(cars.findByName(query.getBrand()), cars.countByName(query.getBrand()), false));
+        }
+        best = cheaper(best, rangePlan(cars, PRICE, query.getMinPrice(), query.getMaxPrice(), sortIndex, query.isDescending(), best));
+        best = cheaper(best, rangePlan(cars, YEAR, toDouble(query.getMinYear()), toDouble(query.getMaxYear()),
+                sortIndex, query.isDescending(), best));
+        if (best.estimate == cars.size() && sortIndex != null) {
+            // Nothing narrows the search, reading the sort index at least saves the sort
+            best = new Plan<>(cars.findRange(sortIndex, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    query.isDescending()), cars.size(), true);
+        }
+        countPlan(best.estimate < cars.size());
+        return collect(best.candidates, query::matches, order, best.ordered, limit);
+    }
+
+    /**
+     * @param receipts Table to search
+     * @param query Criteria, sort order and limit
+     * @param limit Maximum number of receipts to return
+     * @return The matching receipts, by date if requested or in insertion order
+     */
+    static List<Receipt> findReceipts(RecordTable<Receipt> receipts, ReceiptQuery query, int limit) {
+        Comparator<Receipt> order = query.isSortedByDate() ? comparator(DataStore::dateValue, query.isDescending()) : null;
+        String sortIndex = query.isSortedByDate() ? DATE : null;
+
+        if (!receipts.isFullyIndexed()) {
+            List<Receipt> candidates = query.getVendor() != null ? receipts.findByName(query.getVendor()) : receipts.all();
+            countPlan(query.getVendor() != null);
+            return collect(candidates, query::matches, order, false, limit);
+        }
+
+        Plan<Receipt> best = new Plan<>(receipts.all(), receipts.size(), false);
+        if (query.getCarSerialNumber() != null) {
+            List<Receipt> sold = receipts.lookup(CAR_SERIAL_NUMBER, query.getCarSerialNumber());
+            best = cheaper(best, new Plan<>(sold, sold.size(), false));
+        }
+        if (query.getVendor() != null) {
+            best = cheaper(best, new Plan<>(receipts.findByName(query.getVendor()),
+                    receipts.countByName(query.getVendor()), false));
+        }
+        Double from = query.getFrom() == null ? null : (double) query.getFrom().getTime();
+        Double to = query.getTo() == null ? null : (double) query.getTo().getTime();
+        best = cheaper(best, rangePlan(receipts, DATE, from, to, sortIndex, query.isDescending(), best));
+        if (best.estimate == receipts.size() && sortIndex != null) {
+            // The index skips receipts without a date, a query sorted by date leaves them out anyway
+            best = new Plan<>(receipts.findRange(DATE, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                    query.isDescending()), receipts.size(), true);
+        }
+        countPlan(best.estimate < receipts.size());
+        return collect(best.candidates, query::matches, order, best.ordered, limit);
+    }
+
+    /**
+     * @return A plan reading the given range of a sorted index, or null if the query has no bound on it
+     * or the range is not smaller than the best plan so far
+     */
+    private static <T> Plan<T> rangePlan(RecordTable<T> table, String indexName, Number min, Number max,
+                                         String sortIndex, boolean descending, Plan<T> best) {
+        if (min == null && max == null) {
+            return null;
+        }
+        double low = min == null ? Double.NEGATIVE_INFINITY : min.doubleValue();
+        double high = max == null ? Double.POSITIVE_INFINITY : max.doubleValue();
+        int count = table.countRange(indexName, low, high, best.estimate);
+        if (count >= best.estimate) {
+            return null;
+        }
+        return new Plan<>(table.findRange(indexName, low, high, descending), count, indexName.equals(sortIndex));
+    }
+
+    /**
+     * @param indexed True if the plan reads an index range or lookup, false if it reads every record
+     */
+    private static void countPlan(boolean indexed) {
+        (indexed ? Metrics.indexedQueries : Metrics.scannedQueries).increment();
+    }
+
+    private static <T> Plan<T> cheaper(Plan<T> best, Plan<T> candidate) {
+        return candidate != null && candidate.estimate < best.estimate ? candidate : best;
+    }
+
+    private static Double toDouble(Integer value) {
+        return value == null ? null : value.doubleValue();
+    }
+
+    private static <T> Comparator<T> comparator(ToDoubleFunction<T> valueOf, boolean descending) {
+        Comparator<T> ascending = Comparator.comparingDouble(valueOf);
+        return descending ? ascending.reversed() : ascending;
+    }
+
+    /**
+     * Filters the candidates and applies the order and the limit.
+     * @param ordered True if the candidates already come in the requested order
+     */
+    private static <T> List<T> collect(Iterable<T> candidates, Predicate<T> filter, Comparator<T> order,
+                                       boolean ordered, int limit) {
+        boolean stopAtLimit = order == null || ordered;
+        List<T> found = new ArrayList<>(Math.min(limit, 1024));
+        for (T record : candidates) {
+            if (filter.test(record)) {
+                found.add(record);
+                if (stopAtLimit && found.size() == limit) {
+                    return found;
+                }
+            }
+        }
+        if (!stopAtLimit) {
+            // List.sort is stable, so equal values stay in insertion order as they do in the index
+            found.sort(order);
+            if (found.size() > limit) {
+                found = new ArrayList<>(found.subList(0, limit));
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+/**
+ * Counts events, such as replicated records, and reports the total and how many happened during the last
+ * whole second. Thread safe.
+ */
+final class RateMeter {
+    private long total;
+    private long second;
+    private long current;
+    private long previous;
+
+    synchronized void add(long count) {
+        roll();
+        total += count;
+        current += count;
+    }
+
+    synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return Events counted during the last whole second
+     */
+    synchronized long getLastSecond() {
+        roll();
+        return previous;
+    }
+
+    private void roll() {
+        long now = System.nanoTime() / 1_000_000_000;
+        if (now != second) {
+            previous = now == second + 1 ? current : 0;
+            current = 0;
+            second = now;
+        }
+    }
+}
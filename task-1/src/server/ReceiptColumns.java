@@ -0,0 +1,51 @@
+package server;
+
+import interfaces.Receipt;
+
+import java.util.Date;
+
+/**
+ * Receipts stored column by column, the vendor as an id of a dictionary and the date as epoch milliseconds.
+ */
+final class ReceiptColumns extends RecordColumns<Receipt, ReceiptColumns.Chunk> {
+    private static final long NULL_DATE = Long.MIN_VALUE;
+
+    private final Strings vendors = new Strings();
+
+    static final class Chunk {
+        final String[] ids = new String[CHUNK_SIZE];
+        final int[] vendors = new int[CHUNK_SIZE];
+        final String[] carSerialNumbers = new String[CHUNK_SIZE];
+        final long[] dates = new long[CHUNK_SIZE];
+    }
+
+    @Override
+    Chunk newChunk() {
+        return new Chunk();
+    }
+
+    @Override
+    void write(Chunk chunk, int slot, Receipt receipt) {
+        chunk.ids[slot] = receipt.getID();
+        chunk.vendors[slot] = vendors.idOf(receipt.getVendor());
+        chunk.carSerialNumbers[slot] = receipt.getCarSerialNumber();
+        chunk.dates[slot] = receipt.getDate() == null ? NULL_DATE : receipt.getDate().getTime();
+    }
+
+    @Override
+    Receipt read(Chunk chunk, int slot) {
+        long date = chunk.dates[slot];
+        return new Receipt(chunk.ids[slot], vendors.get(chunk.vendors[slot]), chunk.carSerialNumbers[slot],
+                date == NULL_DATE ? null : new Date(date));
+    }
+
+    @Override
+    String key(Chunk chunk, int slot) {
+        return chunk.ids[slot];
+    }
+
+    @Override
+    long dictionaryBytes() {
+        return vendors.size() * (40L + 8 + 4 + 48);
+    }
+}
@@ -0,0 +1,494 @@
+package server;
+
+import interfaces.Car;
+import interfaces.Receipt;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary encoding of cars and receipts used by the snapshots and the insert log.
+ * <p>
+ * A record payload starts with its type byte:
+ * <pre>
+ * DICTIONARY [id varint][string]
+ * CAR        [serial number string][brand id][model id][color id][year int][price float][weight float]
+ * RECEIPT    [id string][vendor id][car serial number string][date long]
+ * </pre>
+ * Strings are stored as [length + 1 varint][UTF-8 bytes] with 0 meaning null. Brands, models, colors and
+ * vendors repeat a lot, so they are stored once in a DICTIONARY record and referenced by id afterwards,
+ * id 0 standing for null. Dates are stored as epoch milliseconds, Long.MIN_VALUE standing for null.
+ * <p>
+ * A snapshot file is [magic int][version byte][sequence long] followed by frames of [length int][crc int][payload],
+ * the CRC-32C covering the payload.
+ */
+final class RecordCodec {
+    static final int SNAPSHOT_MAGIC = 0x444C5253; // "DLRS"
+    static final byte VERSION = 1;
+    static final int SNAPSHOT_HEADER_SIZE = 4 + 1 + 8;
+    static final int FRAME_HEADER_SIZE = 4 + 4;
+
+    static final byte DICTIONARY = 'D';
+    static final byte CAR = 'C';
+    static final byte RECEIPT = 'R';
+
+    private static final long NULL_DATE = Long.MIN_VALUE;
+
+    private RecordCodec() {
+    }
+
+    /**
+     * Two way mapping between interned strings and their ids. The encoder and the decoder of a file share one
+     * dictionary, so after a file has been read back new records can be appended with the same ids.
+     */
+    static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> strings = new ArrayList<>(Collections.singletonList(null));
+
+        String get(int id) throws IOException {
+            if (id < 0 || id >= strings.size()) {
+                throw new IOException("Unknown dictionary id " + id);
+            }
+            return strings.get(id);
+        }
+
+        /**
+         * @return Id given to the string
+         */
+        private int add(String value) {
+            strings.add(value);
+            ids.put(value, strings.size() - 1);
+            return strings.size() - 1;
+        }
+
+        /**
+         * @return Id of the string, or -1 if it has no id yet
+         */
+        private int idOf(String value) {
+            if (value == null) {
+                return 0;
+            }
+            Integer id = ids.get(value);
+            return id == null ? -1 : id;
+        }
+
+        int size() {
+            return strings.size();
+        }
+
+        /**
+         * Forgets the strings added after the dictionary had the given size,
+         * used when the records that defined them could not be written.
+         */
+        void truncate(int size) {
+            while (strings.size() > size) {
+                ids.remove(strings.remove(strings.size() - 1));
+            }
+        }
+    }
+
+    /**
+     * Encodes a car or a receipt. Strings that are not in the dictionary yet are added to it and their
+     * DICTIONARY records are added to the given list, those must be written before the record itself.
+     * @param record Car or receipt
+     * @param dictionary Dictionary of the file the record is written to
+     * @param definitions Receives the payloads of new dictionary records
+     * @return Payload of the record
+     */
+    static byte[] encode(Object record, Dictionary dictionary, List<byte[]> definitions) {
+        Output out = new Output(64);
+        if (record instanceof Car) {
+            Car car = (Car) record;
+            int brand = intern(car.getBrand(), dictionary, definitions);
+            int model = intern(car.getModel(), dictionary, definitions);
+            int color = intern(car.getColor(), dictionary, definitions);
+            out.writeByte(CAR);
+            out.writeString(car.getSerialNumber());
+            out.writeVarInt(brand);
+            out.writeVarInt(model);
+            out.writeVarInt(color);
+            out.writeInt(car.getYear());
+            out.writeInt(Float.floatToIntBits(car.getPrice()));
+            out.writeInt(Float.floatToIntBits(car.getWeight()));
+        } else {
+            Receipt receipt = (Receipt) record;
+            int vendor = intern(receipt.getVendor(), dictionary, definitions);
+            out.writeByte(RECEIPT);
+            out.writeString(receipt.getID());
+            out.writeVarInt(vendor);
+            out.writeString(receipt.getCarSerialNumber());
+            out.writeLong(receipt.getDate() == null ? NULL_DATE : receipt.getDate().getTime());
+        }
+        return out.toByteArray();
+    }
+
+    private static int intern(String value, Dictionary dictionary, List<byte[]> definitions) {
+        int id = dictionary.idOf(value);
+        if (id >= 0) {
+            return id;
+        }
+        id = dictionary.add(value);
+        Output out = new Output(8 + value.length());
+        out.writeByte(DICTIONARY);
+        out.writeVarInt(id);
+        out.writeString(value);
+        definitions.add(out.toByteArray());
+        return id;
+    }
+
+    /**
+     * Decodes a record payload. DICTIONARY records are added to the dictionary.
+     * @param payload Payload produced by {@link #encode(Object, Dictionary, List)}
+     * @param dictionary Dictionary of the file the payload was read from
+     * @return The car or receipt, or null for a dictionary record
+     */
+    static Object decode(byte[] payload, Dictionary dictionary) throws IOException {
+        return decode(ByteBuffer.wrap(payload), dictionary);
+    }
+
+    static Object decode(ByteBuffer in, Dictionary dictionary) throws IOException {
+        try {
+            byte type = in.get();
+            switch (type) {
+                case DICTIONARY:
+                    int id = readVarInt(in);
+                    if (id != dictionary.size()) {
+                        throw new IOException("Dictionary id " + id + " is out of order");
+                    }
+                    dictionary.add(readString(in));
+                    return null;
+                case CAR:
+                    return new Car(readString(in), dictionary.get(readVarInt(in)), dictionary.get(readVarInt(in)),
+                            dictionary.get(readVarInt(in)), in.getInt(), in.getFloat(), in.getFloat());
+                case RECEIPT:
+                    String receiptId = readString(in);
+                    String vendor = dictionary.get(readVarInt(in));
+                    String carSerialNumber = readString(in);
+                    long date = in.getLong();
+                    return new Receipt(receiptId, vendor, carSerialNumber, date == NULL_DATE ? null : new Date(date));
+                default:
+                    throw new IOException("Unknown record type " + type);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated record", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot file: the header followed by one frame per record, each record preceded by
+     * the dictionary records it needs.
+     * @param out Stream to write to
+     * @param sequence Sequence number of the last insert in the snapshot
+     * @param records Cars or receipts
+     */
+    static void writeSnapshot(OutputStream out, long sequence, Iterable<?> records) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeByte(VERSION);
+        data.writeLong(sequence);
+        Dictionary dictionary = new Dictionary();
+        List<byte[]> definitions = new ArrayList<>();
+        CRC32C crc = new CRC32C();
+        for (Object record : records) {
+            byte[] payload = encode(record, dictionary, definitions);
+            for (byte[] definition : definitions) {
+                writeFrame(data, definition, crc);
+            }
+            definitions.clear();
+            writeFrame(data, payload, crc);
+        }
+        data.flush();
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] payload, CRC32C crc) throws IOException {
+        crc.reset();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * Receives the records of a snapshot while it is read.
+     */
+    interface RecordHandler {
+        void accept(Object record) throws IOException;
+    }
+
+    /**
+     * Reads a snapshot file, verifying the CRC of every frame.
+     * @param in Stream positioned at the start of the file
+     * @param handler Receives every car or receipt in file order
+     * @return Sequence number stored in the header
+     */
+    static long readSnapshot(InputStream in, RecordHandler handler) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        byte version = data.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        long sequence = data.readLong();
+        Dictionary dictionary = new Dictionary();
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[256];
+        while (true) {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                return sequence;
+            }
+            int expectedCrc = data.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt frame length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            data.readFully(buffer, 0, length);
+            crc.reset();
+            crc.update(buffer, 0, length);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("CRC mismatch in snapshot record");
+            }
+            Object record = decode(ByteBuffer.wrap(buffer, 0, length), dictionary);
+            if (record != null) {
+                handler.accept(record);
+            }
+        }
+    }
+
+    /**
+     * The header sequence number and the records of a snapshot decoded in memory.
+     */
+    static final class Snapshot {
+        final long sequence;
+        final List<Object> records;
+
+        Snapshot(long sequence, List<Object> records) {
+            this.sequence = sequence;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Decodes a whole snapshot file held in memory on the threads of a pool, verifying the CRC of every
+     * frame like {@link #readSnapshot(InputStream, RecordHandler)}. A first pass only walks the frame
+     * headers, decoding the dictionary records any later record may refer to, and splits the file on
+     * record boundaries. The record frames are then checked and decoded in chunks in parallel.
+     * @param file Content of the snapshot file
+     * @return Every car or receipt in file order
+     */
+    static Snapshot readSnapshot(byte[] file, ForkJoinPool pool) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(file);
+        if (file.length < SNAPSHOT_HEADER_SIZE || in.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        long sequence = in.getLong();
+        Dictionary dictionary = new Dictionary();
+        CRC32C crc = new CRC32C();
+        int[] frames = new int[1024];
+        int count = 0;
+        int position = SNAPSHOT_HEADER_SIZE;
+        while (position < file.length) {
+            if (file.length - position < FRAME_HEADER_SIZE) {
+                throw new IOException("Truncated frame header in snapshot");
+            }
+            int length = in.getInt(position);
+            if (length < 0 || length > file.length - position - FRAME_HEADER_SIZE) {
+                throw new IOException("Corrupt frame length " + length);
+            }
+            if (length > 0 && file[position + FRAME_HEADER_SIZE] == DICTIONARY) {
+                decodeFrame(file, position, crc, dictionary);
+            } else {
+                if (count == frames.length) {
+                    frames = Arrays.copyOf(frames, count * 2);
+                }
+                frames[count++] = position;
+            }
+            position += FRAME_HEADER_SIZE + length;
+        }
+        Object[] records = new Object[count];
+        try {
+            pool.invoke(new DecodeTask(file, frames, 0, count, dictionary, records));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new Snapshot(sequence, Arrays.asList(records));
+    }
+
+    /**
+     * Verifies the CRC of the frame at the given position and decodes its payload.
+     */
+    private static Object decodeFrame(byte[] file, int position, CRC32C crc, Dictionary dictionary) throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(file, position, FRAME_HEADER_SIZE);
+        int length = frame.getInt();
+        int expectedCrc = frame.getInt();
+        crc.reset();
+        crc.update(file, position + FRAME_HEADER_SIZE, length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("CRC mismatch in snapshot record");
+        }
+        return decode(ByteBuffer.wrap(file, position + FRAME_HEADER_SIZE, length), dictionary);
+    }
+
+    /**
+     * Decodes a range of record frames into the same slots of the result, splitting until a range is small
+     * enough. The dictionary is complete and no longer modified, so the tasks share it.
+     */
+    private static final class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int CHUNK_FRAMES = 8192;
+
+        private final byte[] file;
+        private final int[] frames;
+        private final int from;
+        private final int to;
+        private final Dictionary dictionary;
+        private final Object[] records;
+
+        DecodeTask(byte[] file, int[] frames, int from, int to, Dictionary dictionary, Object[] records) {
+            this.file = file;
+            this.frames = frames;
+            this.from = from;
+            this.to = to;
+            this.dictionary = dictionary;
+            this.records = records;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK_FRAMES) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DecodeTask(file, frames, from, middle, dictionary, records),
+                        new DecodeTask(file, frames, middle, to, dictionary, records));
+                return;
+            }
+            CRC32C crc = new CRC32C();
+            try {
+                for (int i = from; i < to; i++) {
+                    records[i] = decodeFrame(file, frames[i], crc, dictionary);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * @return True if the file starts with the snapshot magic number
+     */
+    static boolean isSnapshot(File file) throws IOException {
+        if (file.length() < 4) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == SNAPSHOT_MAGIC;
+        }
+    }
+
+    static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Truncated string");
+        }
+        if (!in.hasArray()) {
+            // Mapped buffers have no backing array
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Minimal growable byte buffer, cheaper than a DataOutputStream over a ByteArrayOutputStream.
+     */
+    static class Output {
+        private byte[] bytes;
+        private int size;
+
+        Output(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + extra, bytes.length * 2));
+            }
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            bytes[size++] = (byte) (value >>> 24);
+            bytes[size++] = (byte) (value >>> 16);
+            bytes[size++] = (byte) (value >>> 8);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length + 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The records of a {@link RecordTable} stored column by column rather than as objects: numbers and dates in
+ * primitive arrays, strings that repeat such as brands as ids into a dictionary, and only the strings that
+ * are unique to a record as objects. Rows are numbered in insertion order and kept in chunks of 1024, so
+ * growing never copies a row. A record object is only created when a row is read, usually to be returned
+ * to a client, and is garbage soon after.
+ * <p>
+ * Like {@link AppendOnlyList} it is written by a single thread and read by any number of threads without
+ * locking: a row is written before the size is published.
+ *
+ * @param <T> Car or Receipt
+ * @param <C> Arrays of one chunk of rows
+ */
+abstract class RecordColumns<T, C> {
+    private static final int CHUNK_BITS = 10;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private volatile Object[] chunks = new Object[1];
+    private volatile int size;
+
+    /**
+     * Strings that repeat, each stored once and referred to by its id. Id 0 is null.
+     */
+    static final class Strings {
+        // Only used by the writer thread
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final AppendOnlyList<String> values = new AppendOnlyList<>();
+
+        Strings() {
+            values.add(null);
+        }
+
+        /**
+         * Must only be called by the writer thread.
+         * @return Id of the string, added if new
+         */
+        int idOf(String value) {
+            if (value == null) {
+                return 0;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        String get(int id) {
+            return values.get(id);
+        }
+
+        int size() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Appends a record. Must only be called by the writer thread.
+     * @return Row of the record
+     */
+    @SuppressWarnings("unchecked")
+    int add(T record) {
+        int row = size;
+        int chunk = row >>> CHUNK_BITS;
+        Object[] current = chunks;
+        if (chunk == current.length) {
+            Object[] grown = new Object[current.length * 2];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+            chunks = grown;
+        }
+        if (current[chunk] == null) {
+            current[chunk] = newChunk();
+        }
+        write((C) current[chunk], row & (CHUNK_SIZE - 1), record);
+        size = row + 1;
+        return row;
+    }
+
+    /**
+     * @return A new record object holding the row
+     */
+    T get(int row) {
+        return read(chunk(row), row & (CHUNK_SIZE - 1));
+    }
+
+    /**
+     * @return Unique key of the row, without creating the record
+     */
+    String keyOf(int row) {
+        return key(chunk(row), row & (CHUNK_SIZE - 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private C chunk(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+        }
+        return (C) chunks[row >>> CHUNK_BITS];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return Heap bytes of the dictionaries of the columns, which the per row estimate leaves out
+     */
+    abstract long dictionaryBytes();
+
+    abstract C newChunk();
+
+    abstract void write(C chunk, int slot, T record);
+
+    abstract T read(C chunk, int slot);
+
+    abstract String key(C chunk, int slot);
+}
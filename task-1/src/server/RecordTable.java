@@ -0,0 +1,383 @@
+package server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * In-memory records of one type with a hash index on their key and a multi-value index on their
+ * case folded name (the brand of a car, the vendor of a receipt). Further named indexes can be added
+ * before the first record: {@link SortedIndex}es on numeric fields and exact lookups on other string fields.
+ * <p>
+ * The records are kept in {@link RecordColumns} and every index holds row numbers, so the heap holds a few
+ * primitive arrays per thousand records instead of an object graph per record. Records are created from
+ * their row when they are read, the lists returned are views that create them as they are accessed.
+ * <p>
+ * With the mapped storage engine the table only holds the records inserted since the last compaction and
+ * sits on top of a {@link MappedSnapshot} holding the rest. Lookups check the snapshot first so that, as
+ * everywhere else, the oldest record wins when a key occurs more than once.
+ * <p>
+ * Only the store's writer thread adds records, readers never lock.
+ *
+ * @param <T> Car or Receipt
+ */
+class RecordTable<T> {
+    private final MappedSnapshot<T> base;
+    private final Supplier<RecordColumns<T, ?>> newColumns;
+    private final Function<T, String> keyOf;
+    private final Function<T, String> nameOf;
+    private final ToLongFunction<T> sizeOf;
+    private final RecordColumns<T, ?> records;
+    private final KeyIndex byKey;
+    private final Map<String, IntList> byName = new ConcurrentHashMap<>();
+    private final Map<String, SortedIndex<T>> sortedIndexes = new HashMap<>();
+    private final Map<String, Function<T, String>> lookupKeys = new HashMap<>();
+    private final Map<String, Lookup> lookups = new HashMap<>();
+    private volatile long estimatedBytes;
+
+    /**
+     * @param base Snapshot the table sits on, null if every record is kept in memory
+     * @param newColumns Creates the empty columns the records are stored in
+     * @param keyOf Extracts the unique key of a record
+     * @param nameOf Extracts the name the secondary index is built on
+     * @param sizeOf Estimates the heap size of a record including its index entries
+     */
+    RecordTable(MappedSnapshot<T> base, Supplier<RecordColumns<T, ?>> newColumns, Function<T, String> keyOf,
+                Function<T, String> nameOf, ToLongFunction<T> sizeOf) {
+        this.base = base;
+        this.newColumns = newColumns;
+        this.keyOf = keyOf;
+        this.nameOf = nameOf;
+        this.sizeOf = sizeOf;
+        records = newColumns.get();
+        byKey = new KeyIndex(records::keyOf);
+    }
+
+    /**
+     * Adds an ordered index on a numeric field. Must be called before the first record is added.
+     * @param name Name of the index
+     * @param valueOf Extracts the indexed value, NaN for records that should not be indexed
+     */
+    RecordTable<T> withSortedIndex(String name, ToDoubleFunction<T> valueOf) {
+        sortedIndexes.put(name, new SortedIndex<>(valueOf));
+        return this;
+    }
+
+    /**
+     * Adds an exact match index on a string field that is not unique but usually close to it, such as the
+     * car serial number of a receipt. Must be called before the first record is added.
+     * @param name Name of the index
+     * @param keyOf Extracts the indexed value
+     */
+    RecordTable<T> withLookup(String name, Function<T, String> keyOf) {
+        lookupKeys.put(name, keyOf);
+        lookups.put(name, new Lookup(row -> keyOf.apply(records.get(row))));
+        return this;
+    }
+
+    /**
+     * Exact match index chaining the rows of each key: the key index points at the latest row with a key and
+     * every row points at the one before it, so the index costs two ints per record whatever the keys.
+     * Comparing keys while probing creates the record of the row, as there is no key column to read.
+     */
+    private static final class Lookup {
+        final KeyIndex latest;
+        // Previous row with the same key for every row, -1 for the first one or a row without key
+        final IntList previous = new IntList(16);
+
+        Lookup(IntFunction<String> keyOf) {
+            latest = new KeyIndex(keyOf);
+        }
+
+        void add(String key, int row) {
+            if (key == null) {
+                previous.add(-1);
+                return;
+            }
+            // The link of a row is written before the key points at it, so readers never find a row without one
+            previous.add(latest.find(key));
+            latest.replace(key, row);
+        }
+    }
+
+    /**
+     * @return An empty table with the same columns, key and name extractors and indexes on top of the given snapshot
+     */
+    RecordTable<T> withBase(MappedSnapshot<T> snapshot) {
+        RecordTable<T> table = new RecordTable<>(snapshot, newColumns, keyOf, nameOf, sizeOf);
+        sortedIndexes.forEach((name, index) -> table.withSortedIndex(name, index.getValueOf()));
+        lookupKeys.forEach(table::withLookup);
+        return table;
+    }
+
+    /**
+     * Adds a record and updates the indexes. Must only be called by the writer thread.
+     * @return True if no record had the key of this one yet
+     */
+    boolean add(T record) {
+        int row = records.add(record);
+        String key = keyOf.apply(record);
+        boolean first = byKey.add(key, row) && (base == null || base.find(key) == null);
+        addToList(byName, DataStore.fold(nameOf.apply(record)), row);
+        for (SortedIndex<T> index : sortedIndexes.values()) {
+            index.add(record, row);
+        }
+        lookupKeys.forEach((name, lookupKeyOf) -> lookups.get(name).add(lookupKeyOf.apply(record), row));
+        estimatedBytes += sizeOf.applyAsLong(record);
+        return first;
+    }
+
+    /**
+     * Adds records in order as {@link #add} would, building every index in its own task of the pool so
+     * the indexes of a large snapshot are built at the same time. Must only be called by the writer thread,
+     * or while loading before there is one.
+     */
+    void addAll(List<T> added, ForkJoinPool pool) {
+        int firstRow = records.size();
+        long bytes = 0;
+        for (T record : added) {
+            records.add(record);
+            bytes += sizeOf.applyAsLong(record);
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        tasks.add(pool.submit(() -> {
+            byKey.ensureCapacity(added.size());
+            for (int i = 0; i < added.size(); i++) {
+                byKey.add(keyOf.apply(added.get(i)), firstRow + i);
+            }
+        }));
+        tasks.add(pool.submit(() -> {
+            for (int i = 0; i < added.size(); i++) {
+                addToList(byName, DataStore.fold(nameOf.apply(added.get(i))), firstRow + i);
+            }
+        }));
+        for (SortedIndex<T> index : sortedIndexes.values()) {
+            tasks.add(pool.submit(() -> index.addAll(added, firstRow)));
+        }
+        lookupKeys.forEach((name, lookupKeyOf) -> tasks.add(pool.submit(() -> {
+            Lookup lookup = lookups.get(name);
+            lookup.latest.ensureCapacity(added.size());
+            for (int i = 0; i < added.size(); i++) {
+                lookup.add(lookupKeyOf.apply(added.get(i)), firstRow + i);
+            }
+        })));
+        tasks.forEach(ForkJoinTask::join);
+        estimatedBytes += bytes;
+    }
+
+    private static void addToList(Map<String, IntList> index, String key, int row) {
+        IntList rows = index.get(key);
+        if (rows == null) {
+            rows = new IntList(1);
+            index.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    /**
+     * @return The record with the given key or null if not found
+     */
+    T find(String key) {
+        if (key == null) {
+            return null;
+        }
+        T record = base == null ? null : base.find(key);
+        if (record != null) {
+            return record;
+        }
+        int row = byKey.find(key);
+        return row < 0 ? null : records.get(row);
+    }
+
+    /**
+     * Answers from the key index and, below it, the key filter of the snapshot, so a key that is not taken
+     * is nearly always ruled out without reading the snapshot.
+     */
+    boolean containsKey(String key) {
+        return key != null && (byKey.find(key) >= 0 || (base != null && base.containsKey(key)));
+    }
+
+    /**
+     * @return Records with the given name ignoring case, in insertion order
+     */
+    List<T> findByName(String name) {
+        if (base == null) {
+            return rows(byName.get(DataStore.fold(name)));
+        }
+        return findByName(name, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns one page of the records with the given name. Records are only ever appended and compaction
+     * keeps their order, so the same offset keeps pointing at the same place between calls.
+     * @param name Name to look for, ignoring case
+     * @param from Number of matching records to skip
+     * @param limit Maximum number of records to return
+     * @return A new list of at most limit records, in insertion order
+     */
+    List<T> findByName(String name, int from, int limit) {
+        List<T> found = new ArrayList<>(Math.min(limit, 1024));
+        int tailFrom = from;
+        if (base != null) {
+            int baseMatches = base.findByName(name, from, limit, found);
+            if (found.size() == limit) {
+                return found;
+            }
+            tailFrom = Math.max(0, from - baseMatches);
+        }
+        List<T> inMemory = rows(byName.get(DataStore.fold(name)));
+        int end = (int) Math.min(inMemory.size(), (long) tailFrom + limit - found.size());
+        for (int i = tailFrom; i < end; i++) {
+            found.add(inMemory.get(i));
+        }
+        return found;
+    }
+
+    /**
+     * @return Number of records with the given name ignoring case, counting only the records on the heap
+     */
+    int countByName(String name) {
+        IntList rows = byName.get(DataStore.fold(name));
+        return rows == null ? 0 : rows.size();
+    }
+
+    /**
+     * @return True if the named indexes cover every record, false if a snapshot sits below the table
+     */
+    boolean isFullyIndexed() {
+        return base == null;
+    }
+
+    /**
+     * Reads a range of a sorted index, covering only the records on the heap.
+     * @see SortedIndex#find(double, double, boolean)
+     */
+    Iterable<T> findRange(String index, double min, double max, boolean descending) {
+        SortedIndex<T> sorted = sortedIndexes.get(index);
+        return () -> new Iterator<T>() {
+            private final PrimitiveIterator.OfInt rows = sorted.find(min, max, descending);
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return records.get(rows.nextInt());
+            }
+        };
+    }
+
+    /**
+     * Counts the records of a range of a sorted index, up to a cap.
+     * @see SortedIndex#count(double, double, int)
+     */
+    int countRange(String index, double min, double max, int cap) {
+        return sortedIndexes.get(index).count(min, max, cap);
+    }
+
+    /**
+     * @return Records on the heap whose field matches the given key exactly, in insertion order
+     */
+    List<T> lookup(String name, String key) {
+        if (key == null) {
+            return Collections.emptyList();
+        }
+        Lookup lookup = lookups.get(name);
+        IntList chain = new IntList(1);
+        for (int row = lookup.latest.find(key); row >= 0; row = lookup.previous.get(row)) {
+            chain.add(row);
+        }
+        return new RowList() {
+            @Override
+            public T get(int index) {
+                // The chain runs from the latest row back to the first
+                return records.get(chain.get(chain.size() - 1 - index));
+            }
+
+            @Override
+            public int size() {
+                return chain.size();
+            }
+        };
+    }
+
+    /**
+     * Checks a lookup without creating any record unless it is confirmed in the snapshot. The snapshot indexes
+     * a single reference, which must be the one of the lookup.
+     * @return True if any record, on the heap or in the snapshot, has the given key in the lookup
+     */
+    boolean containsLookup(String name, String key) {
+        return key != null && (lookups.get(name).latest.find(key) >= 0 || (base != null && base.containsReference(key)));
+    }
+
+    /**
+     * @return A read-only view creating the records of the rows as they are accessed
+     */
+    private List<T> rows(IntList rows) {
+        if (rows == null) {
+            return Collections.emptyList();
+        }
+        return new RowList() {
+            @Override
+            public T get(int index) {
+                return records.get(rows.get(index));
+            }
+
+            @Override
+            public int size() {
+                return rows.size();
+            }
+        };
+    }
+
+    private abstract class RowList extends AbstractList<T> implements RandomAccess {
+    }
+
+    /**
+     * @return Every record in insertion order, snapshot records are decoded as they are accessed
+     */
+    List<T> all() {
+        return new RowList() {
+            @Override
+            public T get(int index) {
+                int baseSize = base == null ? 0 : base.size();
+                return index < baseSize ? base.get(index) : records.get(index - baseSize);
+            }
+
+            @Override
+            public int size() {
+                return (base == null ? 0 : base.size()) + records.size();
+            }
+        };
+    }
+
+    /**
+     * @return Sequence number of the snapshot below the table, 0 if there is none
+     */
+    long getBaseSequence() {
+        return base == null ? 0 : base.getSequence();
+    }
+
+    int size() {
+        return (base == null ? 0 : base.size()) + records.size();
+    }
+
+    /**
+     * @return Number of records held on the heap
+     */
+    int sizeInMemory() {
+        return records.size();
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes + records.dictionaryBytes();
+    }
+}
@@ -0,0 +1,230 @@
+package server;
+
+import interfaces.ChangeBatch;
+import interfaces.DealerInterface;
+import interfaces.Page;
+import interfaces.ReplicationInterface;
+import interfaces.ReplicationStatus;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.List;
+
+/**
+ * Keeps the store of a replica up to date with its primary. A single thread pulls the primary's
+ * {@link ChangeFeed} and inserts the records into the local store as batches, so records the replica
+ * already has are skipped and applying a change twice does no harm.
+ * <p>
+ * A replica that has never followed the primary's feed, or whose position is no longer in the feed,
+ * first copies every record of the primary page by page and then follows the feed from the position read
+ * before the copy began. The feed id and position are saved next to the data files after every batch, so
+ * a restarted replica picks up where it stopped as long as the primary kept running.
+ */
+class Replicator {
+    private static final long POLL_WAIT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final int COPY_PAGE_SIZE = 1000;
+
+    private final DataStore store;
+    private final String source;
+    private final Path offsetFile;
+    private final int batchRecords;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private DealerInterface primary;
+    // Feed followed and the last sequence number applied, 0 while nothing was followed yet
+    private volatile long feedId;
+    private volatile long appliedSequence;
+    private volatile long sourceSequence;
+    // Time the replica had applied everything the primary had, when caughtUp was last true
+    private volatile long caughtUpMillis = System.currentTimeMillis();
+    private volatile boolean caughtUp;
+    private final RateMeter applied = new RateMeter();
+
+    /**
+     * @param store Store of the replica, loaded
+     * @param source Primary to follow as host:port/name
+     * @param offsetFile File the position in the primary's feed is kept in
+     */
+    Replicator(DataStore store, String source, Path offsetFile) throws IOException {
+        if (!source.matches("[^/]+:\\d+/.+")) {
+            throw new IllegalArgumentException("Primary " + source + " is not host:port/name");
+        }
+        this.store = store;
+        this.source = source;
+        this.offsetFile = offsetFile;
+        batchRecords = DealerConfig.replicationBatchRecords();
+        readOffset();
+        thread = new Thread(this::run, "replicator");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops pulling and waits for the batch being applied, after this the store is no longer modified.
+     */
+    void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(POLL_WAIT_MILLIS + RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    ReplicationStatus getStatus() {
+        long lag = caughtUp ? 0 : System.currentTimeMillis() - caughtUpMillis;
+        return new ReplicationStatus(false, source, feedId, appliedSequence, sourceSequence, lag,
+                applied.getTotal(), applied.getLastSecond());
+    }
+
+    private void run() {
+        System.out.println("Replicating " + source + " from " + (feedId == 0 ? "scratch" : "sequence " + appliedSequence));
+        while (running) {
+            try {
+                if (primary == null) {
+                    primary = lookup(source);
+                }
+                ChangeBatch batch = ((ReplicationInterface) primary).pullChanges(appliedSequence, batchRecords,
+                        caughtUp ? POLL_WAIT_MILLIS : 0);
+                if (!running) {
+                    return;
+                }
+                if (caughtUp) {
+                    // Current until the changes arrived, a long poll returns as soon as there are some
+                    caughtUpMillis = System.currentTimeMillis();
+                }
+                sourceSequence = batch.getFeedSequence();
+                caughtUp = appliedSequence >= sourceSequence && batch.getFeedId() == feedId;
+                if (batch.isReset() || batch.getFeedId() != feedId) {
+                    copyAll(batch);
+                } else {
+                    apply(batch);
+                }
+                boolean current = appliedSequence >= sourceSequence;
+                if (current) {
+                    caughtUpMillis = System.currentTimeMillis();
+                }
+                caughtUp = current;
+            } catch (RemoteException | NotBoundException e) {
+                if (primary != null || caughtUp) {
+                    System.out.println("Lost the primary " + source + ", retrying: " + e);
+                }
+                primary = null;
+                caughtUp = false;
+                pause();
+            } catch (IOException e) {
+                Metrics.ioErrors.increment();
+                System.out.println("Error applying replicated records, retrying: " + e);
+                caughtUp = false;
+                pause();
+            }
+        }
+    }
+
+    private void apply(ChangeBatch batch) throws IOException {
+        // Cars first, a receipt never comes before the car it sold
+        if (!batch.getCars().isEmpty()) {
+            store.applyCars(batch.getCars());
+        }
+        if (!batch.getReceipts().isEmpty()) {
+            store.applyReceipts(batch.getReceipts());
+        }
+        applied.add(batch.size());
+        appliedSequence = batch.getLastSequence();
+        writeOffset();
+    }
+
+    /**
+     * Copies every record of the primary, then continues after the feed position of the batch.
+     */
+    private void copyAll(ChangeBatch batch) throws IOException {
+        System.out.println("Copying every record of " + source + " to start following its feed");
+        long start = System.nanoTime();
+        long copied = copy(primary::getCars, store::applyCars) + copy(primary::getReceipts, store::applyReceipts);
+        feedId = batch.getFeedId();
+        appliedSequence = batch.getFeedSequence();
+        writeOffset();
+        System.out.println("Copied " + copied + " records in " + (System.nanoTime() - start) / 1_000_000
+                + " ms, following from sequence " + appliedSequence);
+    }
+
+    private interface PageSource<T> {
+        Page<T> fetch(int limit, String continuationToken) throws RemoteException;
+    }
+
+    private interface Inserter<T> {
+        Object insert(List<T> records) throws IOException;
+    }
+
+    private <T> long copy(PageSource<T> pages, Inserter<T> inserter) throws IOException {
+        long copied = 0;
+        String token = null;
+        do {
+            if (!running) {
+                throw new IOException("Replication stopped while copying");
+            }
+            Page<T> page = pages.fetch(COPY_PAGE_SIZE, token);
+            if (!page.getItems().isEmpty()) {
+                inserter.insert(page.getItems());
+                applied.add(page.getItems().size());
+                copied += page.getItems().size();
+            }
+            token = page.getContinuationToken();
+        } while (token != null);
+        return copied;
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+
+    /**
+     * The offset file holds the feed id in hex and the sequence number.
+     */
+    private void readOffset() throws IOException {
+        try {
+            String[] fields = new String(Files.readAllBytes(offsetFile), StandardCharsets.US_ASCII).trim().split(" ");
+            if (fields.length == 2) {
+                feedId = Long.parseUnsignedLong(fields[0], 16);
+                appliedSequence = Long.parseLong(fields[1]);
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring the unreadable replication offset in " + offsetFile);
+        }
+    }
+
+    private void writeOffset() throws IOException {
+        Files.write(offsetFile, (Long.toHexString(feedId) + " " + appliedSequence + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static DealerInterface lookup(String node) throws RemoteException, NotBoundException {
+        int colon = node.lastIndexOf(':');
+        int slash = node.indexOf('/', colon);
+        if (colon < 0 || slash < 0) {
+            throw new IllegalArgumentException("Node " + node + " is not host:port/name");
+        }
+        return (DealerInterface) LocateRegistry.getRegistry(node.substring(0, colon),
+                Integer.parseInt(node.substring(colon + 1, slash))).lookup(node.substring(slash + 1));
+    }
+}
@@ -0,0 +1,190 @@
+package server;
+
+import interfaces.Car;
+import interfaces.Receipt;
+import interfaces.SalesTotal;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Sales totals per vendor, per brand and month and per model, computed by joining every receipt to the car
+ * it sold through its car serial number. The join is a hash join whose build side is the serial number
+ * index the store keeps anyway, so each receipt costs one hash lookup and nothing is rescanned.
+ * Receipts whose car is unknown are left out, as are receipts that repeat an earlier receipt id.
+ * <p>
+ * Reports are either computed on demand with {@link #compute(Iterable, Function, boolean)} or, with
+ * -Ddealer.materializedReports=true, kept up to date by the store's writer thread as records are added, so
+ * reading them costs nothing but copying the totals. A materialized report remembers receipts that arrive
+ * before their car and joins them once the car is added.
+ * <p>
+ * Only one thread adds records, readers never lock. Each total is an immutable object replaced on every
+ * update, so a reader never sees a count that doesn't match its revenue.
+ */
+class SalesReports {
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private final Function<String, Car> findCar;
+    private final boolean joinLateCars;
+    private final Map<String, Total> byVendor = new ConcurrentHashMap<>();
+    private final Map<String, Months> byBrand = new ConcurrentHashMap<>();
+    private final Map<String, Total> byModel = new ConcurrentHashMap<>();
+    // Receipts waiting for their car, only touched by the writer thread
+    private final Map<String, List<Receipt>> unmatched = new HashMap<>();
+
+    /**
+     * @param findCar Finds the car with a serial number, null if there is none
+     * @param joinLateCars True to keep receipts without a car until the car is added
+     */
+    private SalesReports(Function<String, Car> findCar, boolean joinLateCars) {
+        this.findCar = findCar;
+        this.joinLateCars = joinLateCars;
+    }
+
+    private static final class Total {
+        final String name;
+        final long count;
+        final double revenue;
+
+        Total(String name, long count, double revenue) {
+            this.name = name;
+            this.count = count;
+            this.revenue = revenue;
+        }
+
+        /**
+         * @return The total with one more car sold, the name is only evaluated for the first car
+         */
+        static Total plus(Total total, Supplier<String> name, double price) {
+            return total == null ? new Total(name.get(), 1, price)
+                    : new Total(total.name, total.count + 1, total.revenue + price);
+        }
+
+        SalesTotal toSalesTotal() {
+            return new SalesTotal(name, count, revenue);
+        }
+    }
+
+    /**
+     * Monthly totals of one brand, keyed by year * 12 + month so that they sort by month.
+     */
+    private static final class Months {
+        final String brand;
+        final Map<Integer, Total> totals = new ConcurrentSkipListMap<>();
+
+        Months(String brand) {
+            this.brand = brand;
+        }
+    }
+
+    /**
+     * Joins every receipt to its car and sums them up.
+     * @param receipts Every receipt, in insertion order
+     * @param findCar Finds the car with a serial number, null if there is none
+     * @param joinLateCars True to keep receipts without a car so that the report can be kept up to date
+     * @return The report
+     */
+    static SalesReports compute(Iterable<Receipt> receipts, Function<String, Car> findCar, boolean joinLateCars) {
+        SalesReports reports = new SalesReports(findCar, joinLateCars);
+        Set<String> ids = new HashSet<>();
+        for (Receipt receipt : receipts) {
+            if (ids.add(receipt.getID())) {
+                reports.addReceipt(receipt);
+            }
+        }
+        return reports;
+    }
+
+    /**
+     * Adds a receipt that was just stored. Must only be called by the writer thread.
+     */
+    void addReceipt(Receipt receipt) {
+        Car car = receipt.getCarSerialNumber() == null ? null : findCar.apply(receipt.getCarSerialNumber());
+        if (car != null) {
+            join(receipt, car);
+        } else if (joinLateCars && receipt.getCarSerialNumber() != null) {
+            unmatched.computeIfAbsent(receipt.getCarSerialNumber(), key -> new ArrayList<>(1)).add(receipt);
+        }
+    }
+
+    /**
+     * Adds a car that was just stored, joining the receipts that were waiting for it.
+     * Must only be called by the writer thread.
+     */
+    void addCar(Car car) {
+        List<Receipt> waiting = unmatched.remove(car.getSerialNumber());
+        if (waiting != null) {
+            for (Receipt receipt : waiting) {
+                join(receipt, car);
+            }
+        }
+    }
+
+    private void join(Receipt receipt, Car car) {
+        double price = car.getPrice();
+        byVendor.compute(DataStore.fold(receipt.getVendor()), (key, total) -> Total.plus(total, receipt::getVendor, price));
+        byModel.compute(DataStore.fold(car.getBrand()) + '\0' + DataStore.fold(car.getModel()),
+                (key, total) -> Total.plus(total, () -> car.getBrand() + " " + car.getModel(), price));
+        if (receipt.getDate() != null) {
+            // Formatting a date per receipt would cost more than the rest of the join
+            LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(receipt.getDate().getTime(), MILLIS_PER_DAY));
+            int month = day.getYear() * 12 + day.getMonthValue() - 1;
+            byBrand.computeIfAbsent(DataStore.fold(car.getBrand()), key -> new Months(car.getBrand()))
+                    .totals.compute(month, (key, total) -> Total.plus(total,
+                            () -> String.format("%04d-%02d", day.getYear(), day.getMonthValue()), price));
+        }
+    }
+
+    /**
+     * @return Cars sold and revenue of every vendor, highest revenue first
+     */
+    List<SalesTotal> getRevenueByVendor() {
+        List<SalesTotal> totals = new ArrayList<>(byVendor.size());
+        for (Total total : byVendor.values()) {
+            totals.add(total.toSalesTotal());
+        }
+        totals.sort(Comparator.comparingDouble(SalesTotal::getRevenue).reversed());
+        return totals;
+    }
+
+    /**
+     * @return Cars sold and revenue of every brand per month in UTC, brands by name and months in order.
+     * Receipts without a date are left out.
+     */
+    Map<String, List<SalesTotal>> getSalesByBrandPerMonth() {
+        Map<String, List<SalesTotal>> sales = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Months months : byBrand.values()) {
+            List<SalesTotal> totals = new ArrayList<>(months.totals.size());
+            for (Total total : months.totals.values()) {
+                totals.add(total.toSalesTotal());
+            }
+            sales.put(String.valueOf(months.brand), totals);
+        }
+        return sales;
+    }
+
+    /**
+     * @param n Number of models to return
+     * @return The n models with the most cars sold, by revenue when they sold as many
+     */
+    List<SalesTotal> getTopModels(int n) {
+        PriorityQueue<Total> top = new PriorityQueue<>(Comparator.<Total>comparingLong(total -> total.count)
+                .thenComparingDouble(total -> total.revenue));
+        for (Total total : byModel.values()) {
+            top.add(total);
+            if (top.size() > n) {
+                top.poll();
+            }
+        }
+        List<SalesTotal> totals = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            totals.add(top.poll().toSalesTotal());
+        }
+        Collections.reverse(totals);
+        return totals;
+    }
+}
@@ -0,0 +1,395 @@
+package server;
+
+import interfaces.Car;
+import interfaces.Receipt;
+import interfaces.SearchHit;
+import interfaces.SearchQuery;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Type-ahead and fuzzy search over the brands, models and colors of the cars and the vendors of the receipts,
+ * see {@link SearchQuery}. The index holds the distinct values of each field ignoring case with their number
+ * of records, not the records, so its size and the cost of a search depend on how many brands and models
+ * there are rather than on how many cars: a million cars of a few thousand models is a few thousand terms.
+ * <p>
+ * Every value is split into words. The words are kept in a sorted map, so the words starting with what the
+ * user typed are one range of it. For the fuzzy matches each word is also indexed by its trigrams, padded at
+ * the start so that the first letters count the most: a word within k edits of a prefix of another word
+ * shares all but 3k of its trigrams with it, which rules out nearly every word before an edit distance is
+ * computed.
+ * <p>
+ * A query of several words is driven by the word with the fewest candidate values, counted with the smallest
+ * count so far as a cap, and the other words are checked against the words of each of those values. The top
+ * hits are kept in a heap of the size of the limit.
+ * <p>
+ * Only the store's writer thread adds records, readers never lock.
+ */
+final class SearchIndex {
+    private static final int GRAM = 3;
+    private static final String PADDING = "$$";
+
+    /**
+     * One distinct value of a field, ignoring case.
+     */
+    private static final class Term {
+        final SearchQuery.Field field;
+        // The value as first inserted
+        final String value;
+        final String[] words;
+        // Only written by the writer thread
+        volatile long records;
+
+        Term(SearchQuery.Field field, String value, String[] words) {
+            this.field = field;
+            this.value = value;
+            this.words = words;
+        }
+    }
+
+    // Terms by case folded value for each field, only used by the writer thread
+    private final Map<SearchQuery.Field, Map<String, Term>> terms = new EnumMap<>(SearchQuery.Field.class);
+    // Terms by every word of their value
+    private final ConcurrentSkipListMap<String, AppendOnlyList<Term>> byWord = new ConcurrentSkipListMap<>();
+    // Words by every trigram of the padded word
+    private final Map<String, AppendOnlyList<String>> byGram = new ConcurrentHashMap<>();
+    private volatile int termCount;
+
+    SearchIndex() {
+        for (SearchQuery.Field field : SearchQuery.Field.values()) {
+            terms.put(field, new HashMap<>());
+        }
+    }
+
+    /**
+     * Must only be called by the writer thread, or while loading before there is one.
+     */
+    void addCar(Car car) {
+        add(SearchQuery.Field.BRAND, car.getBrand());
+        add(SearchQuery.Field.MODEL, car.getModel());
+        add(SearchQuery.Field.COLOR, car.getColor());
+    }
+
+    /**
+     * Must only be called by the writer thread, or while loading before there is one.
+     */
+    void addReceipt(Receipt receipt) {
+        add(SearchQuery.Field.VENDOR, receipt.getVendor());
+    }
+
+    private void add(SearchQuery.Field field, String value) {
+        if (value == null) {
+            return;
+        }
+        String folded = DataStore.fold(value);
+        Term term = terms.get(field).get(folded);
+        if (term == null) {
+            String[] words = words(folded);
+            if (words.length == 0) {
+                return;
+            }
+            term = new Term(field, value, words);
+            terms.get(field).put(folded, term);
+            for (String word : new LinkedHashSet<>(Arrays.asList(words))) {
+                AppendOnlyList<Term> wordTerms = byWord.get(word);
+                if (wordTerms == null) {
+                    wordTerms = new AppendOnlyList<>();
+                    byWord.put(word, wordTerms);
+                    for (String gram : grams(word)) {
+                        byGram.computeIfAbsent(gram, key -> new AppendOnlyList<>()).add(word);
+                    }
+                }
+                wordTerms.add(term);
+            }
+            termCount++;
+        }
+        term.records++;
+    }
+
+    /**
+     * @return Number of distinct values indexed
+     */
+    int size() {
+        return termCount;
+    }
+
+    /**
+     * @param limit Maximum number of hits to return
+     * @return The values matching every word of the query, ranked by {@link SearchHit#RANKING}
+     */
+    List<SearchHit> search(SearchQuery query, int limit) {
+        String[] queryWords = words(DataStore.fold(query.getText()));
+        if (queryWords.length == 0 || limit <= 0 || query.getFields().isEmpty()) {
+            return Collections.emptyList();
+        }
+        int driver = 0;
+        long fewest = Long.MAX_VALUE;
+        for (int i = 0; i < queryWords.length; i++) {
+            long count = countMatches(queryWords[i], query.isFuzzy(), fewest);
+            if (count < fewest) {
+                fewest = count;
+                driver = i;
+            }
+        }
+        Ranking ranking = new Ranking(query, queryWords, driver, limit);
+        String queryWord = queryWords[driver];
+        for (Map.Entry<String, AppendOnlyList<Term>> entry : byWord.tailMap(queryWord).entrySet()) {
+            String word = entry.getKey();
+            if (!word.startsWith(queryWord)) {
+                break;
+            }
+            for (Term term : entry.getValue()) {
+                // A value with several matching words is ranked at the first of them
+                if (term.words.length == 1 || word.equals(firstMatch(term, queryWord))) {
+                    ranking.offer(term, 0);
+                }
+            }
+        }
+        int maxEdits = query.isFuzzy() ? maxEdits(queryWord) : 0;
+        if (maxEdits > 0) {
+            Map<Term, Integer> close = new HashMap<>();
+            for (String word : closeWords(queryWord, maxEdits)) {
+                int edits = prefixDistance(queryWord, word, maxEdits);
+                if (edits <= maxEdits) {
+                    for (Term term : byWord.get(word)) {
+                        close.merge(term, edits, Math::min);
+                    }
+                }
+            }
+            close.forEach((term, edits) -> {
+                // Values that also have an exact prefix were ranked with it already
+                if (firstMatch(term, queryWord) == null) {
+                    ranking.offer(term, edits);
+                }
+            });
+        }
+        return ranking.hits();
+    }
+
+    /**
+     * The best hits so far in a heap, worst first. A value is only turned into a hit once it is known to
+     * make it into the heap, so ranking thousands of values allocates next to nothing.
+     */
+    private static final class Ranking {
+        private final SearchQuery query;
+        private final String[] queryWords;
+        private final int driver;
+        private final int limit;
+        private final PriorityQueue<SearchHit> top;
+
+        Ranking(SearchQuery query, String[] queryWords, int driver, int limit) {
+            this.query = query;
+            this.queryWords = queryWords;
+            this.driver = driver;
+            this.limit = limit;
+            top = new PriorityQueue<>(Math.min(limit, 1024) + 1, SearchHit.RANKING.reversed());
+        }
+
+        /**
+         * Checks the other words of the query on a value matched by the driving word, and keeps it if it ranks
+         * among the best.
+         * @param edits Edits the driving word took
+         */
+        void offer(Term term, int edits) {
+            if (!query.getFields().contains(term.field)) {
+                return;
+            }
+            for (int i = 0; i < queryWords.length; i++) {
+                if (i != driver) {
+                    int wordEdits = match(queryWords[i], term.words, query.isFuzzy());
+                    if (wordEdits < 0) {
+                        return;
+                    }
+                    edits += wordEdits;
+                }
+            }
+            long records = term.records;
+            if (top.size() == limit && !ranksBefore(edits, records, term, top.peek())) {
+                return;
+            }
+            top.add(new SearchHit(term.field, term.value, records, edits));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+
+        /**
+         * @return True if the value would come before the hit, by {@link SearchHit#RANKING}
+         */
+        private static boolean ranksBefore(int edits, long records, Term term, SearchHit hit) {
+            if (edits != hit.getEdits()) {
+                return edits < hit.getEdits();
+            }
+            if (records != hit.getRecords()) {
+                return records > hit.getRecords();
+            }
+            int order = String.CASE_INSENSITIVE_ORDER.compare(term.value, hit.getValue());
+            return order != 0 ? order < 0 : term.field.compareTo(hit.getField()) < 0;
+        }
+
+        List<SearchHit> hits() {
+            List<SearchHit> hits = new ArrayList<>(top);
+            hits.sort(SearchHit.RANKING);
+            return hits;
+        }
+    }
+
+    /**
+     * Counts the values with a word matching a word of the query, up to a cap. The close words are counted
+     * without checking their edit distance, the count only has to tell the selective words of a query from
+     * the others.
+     */
+    private long countMatches(String queryWord, boolean fuzzy, long cap) {
+        long count = 0;
+        for (Map.Entry<String, AppendOnlyList<Term>> entry : byWord.tailMap(queryWord).entrySet()) {
+            if (!entry.getKey().startsWith(queryWord) || count >= cap) {
+                break;
+            }
+            count += entry.getValue().size();
+        }
+        int maxEdits = fuzzy ? maxEdits(queryWord) : 0;
+        if (maxEdits > 0) {
+            for (String word : closeWords(queryWord, maxEdits)) {
+                if (count >= cap) {
+                    break;
+                }
+                count += byWord.get(word).size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The first word of the value starting with the word of the query, null if none does
+     */
+    private static String firstMatch(Term term, String queryWord) {
+        for (String word : term.words) {
+            if (word.startsWith(queryWord)) {
+                return word;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The words not starting with the word of the query that share enough trigrams with it to be
+     * within the given number of edits of it
+     */
+    private List<String> closeWords(String queryWord, int maxEdits) {
+        Set<String> queryGrams = grams(queryWord);
+        Map<String, Integer> shared = new HashMap<>();
+        for (String gram : queryGrams) {
+            AppendOnlyList<String> words = byGram.get(gram);
+            if (words != null) {
+                for (String word : words) {
+                    shared.merge(word, 1, Integer::sum);
+                }
+            }
+        }
+        int needed = queryGrams.size() - GRAM * maxEdits;
+        List<String> close = new ArrayList<>();
+        shared.forEach((word, count) -> {
+            if (count >= needed && !word.startsWith(queryWord)) {
+                close.add(word);
+            }
+        });
+        return close;
+    }
+
+    /**
+     * @return Fewest edits for a word of the query to match one of the words of a value, -1 if none does
+     */
+    private static int match(String queryWord, String[] words, boolean fuzzy) {
+        int maxEdits = fuzzy ? maxEdits(queryWord) : 0;
+        int best = -1;
+        for (String word : words) {
+            if (word.startsWith(queryWord)) {
+                return 0;
+            }
+            if (maxEdits > 0) {
+                int edits = prefixDistance(queryWord, word, maxEdits);
+                if (edits <= maxEdits && (best < 0 || edits < best)) {
+                    best = edits;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Short words get no edits at all, one letter off a two letter prefix matches nearly everything.
+     */
+    private static int maxEdits(String queryWord) {
+        return queryWord.length() < 4 ? 0 : queryWord.length() < 8 ? 1 : 2;
+    }
+
+    /**
+     * Edit distance between a word of the query and the closest prefix of a word, counting an insertion, a
+     * deletion, a substitution or the swap of two neighbouring letters as one edit. It is computed one row
+     * per letter of the query and given up once every prefix is further than the maximum.
+     * @return The distance, or more than maxEdits if it is larger
+     */
+    private static int prefixDistance(String queryWord, String word, int maxEdits) {
+        int columns = Math.min(word.length(), queryWord.length() + maxEdits);
+        int[] beforePrevious = new int[columns + 1];
+        int[] previous = new int[columns + 1];
+        int[] current = new int[columns + 1];
+        for (int j = 0; j <= columns; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= queryWord.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= columns; j++) {
+                char letter = queryWord.charAt(i - 1);
+                int substitution = previous[j - 1] + (letter == word.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+                if (i > 1 && j > 1 && letter == word.charAt(j - 2) && queryWord.charAt(i - 2) == word.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] swap = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = swap;
+        }
+        int best = Integer.MAX_VALUE;
+        for (int j = 0; j <= columns; j++) {
+            best = Math.min(best, previous[j]);
+        }
+        return best;
+    }
+
+    /**
+     * @return The words of a case folded text, split at everything but letters and digits
+     */
+    private static String[] words(String folded) {
+        List<String> words = new ArrayList<>(2);
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean letter = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                words.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+
+    private static Set<String> grams(String word) {
+        String padded = PADDING + word;
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,221 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Ordered index on a numeric field of the records in a {@link RecordTable}, used for range queries and for
+ * returning records sorted by that field without sorting them. It holds row numbers, and records with equal
+ * values stay in row order, which is insertion order. Float prices, int years and epoch millisecond dates
+ * are all exact as doubles.
+ * <p>
+ * The records loaded on startup are kept in two sorted arrays, built with a parallel sort rather than a
+ * million skip list inserts and taking a fraction of their memory. Records added afterwards go into a skip
+ * list, and range reads merge the two. Every loaded record comes before every added one in insertion order.
+ * <p>
+ * Only the store's writer thread adds records, readers never lock.
+ *
+ * @param <T> Car or Receipt
+ */
+class SortedIndex<T> {
+    private final ToDoubleFunction<T> valueOf;
+    // Values and rows loaded in bulk, sorted by value then row and never modified
+    private volatile double[] baseValues = new double[0];
+    private volatile int[] baseRows = new int[0];
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+    private boolean empty = true;
+
+    /**
+     * @param valueOf Extracts the indexed value, NaN for records that should not be indexed
+     */
+    SortedIndex(ToDoubleFunction<T> valueOf) {
+        this.valueOf = valueOf;
+    }
+
+    /**
+     * One record added after loading: its value, then its row to keep equal values apart.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final double value;
+        final int row;
+
+        Entry(double value, int row) {
+            this.value = value;
+            this.row = row;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int c = Double.compare(value, other.value);
+            return c != 0 ? c : Integer.compare(row, other.row);
+        }
+    }
+
+    ToDoubleFunction<T> getValueOf() {
+        return valueOf;
+    }
+
+    /**
+     * Adds a record. Must only be called by the writer thread.
+     * @param row Row of the record, higher than the row of any record added before
+     */
+    void add(T record, int row) {
+        double value = valueOf.applyAsDouble(record);
+        if (!Double.isNaN(value)) {
+            entries.add(new Entry(value, row));
+            empty = false;
+        }
+    }
+
+    /**
+     * Adds records with consecutive rows, sorting them on every core when nothing was added yet and one by
+     * one otherwise. Must only be called by the writer thread, or while loading before there is one.
+     * @param firstRow Row of the first record
+     */
+    void addAll(List<T> records, int firstRow) {
+        if (!empty) {
+            for (int i = 0; i < records.size(); i++) {
+                add(records.get(i), firstRow + i);
+            }
+            return;
+        }
+        Entry[] loaded = new Entry[records.size()];
+        int count = 0;
+        for (int i = 0; i < records.size(); i++) {
+            double value = valueOf.applyAsDouble(records.get(i));
+            if (!Double.isNaN(value)) {
+                loaded[count++] = new Entry(value, firstRow + i);
+            }
+        }
+        // The parallel sort of objects is stable, so equal values keep their row order
+        Arrays.parallelSort(loaded, 0, count, (a, b) -> Double.compare(a.value, b.value));
+        double[] values = new double[count];
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = loaded[i].value;
+            rows[i] = loaded[i].row;
+        }
+        baseRows = rows;
+        baseValues = values;
+        empty = count == 0;
+    }
+
+    private NavigableSet<Entry> range(double min, double max) {
+        if (min > max) {
+            return Collections.emptyNavigableSet();
+        }
+        return entries.subSet(new Entry(min, Integer.MIN_VALUE), true, new Entry(max, Integer.MAX_VALUE), true);
+    }
+
+    /**
+     * @return Index of the first loaded value above the given one, or not below it if inclusive
+     */
+    private static int bound(double[] values, double value, boolean inclusive) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int c = Double.compare(values[mid], value);
+            if (c < 0 || (c == 0 && !inclusive)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param min Lowest value to include, negative infinity for no lower bound
+     * @param max Highest value to include, positive infinity for no upper bound
+     * @param descending True to iterate from the highest value down
+     * @return Rows within the range in value order, including the records added after loading while iterating
+     */
+    PrimitiveIterator.OfInt find(double min, double max, boolean descending) {
+        NavigableSet<Entry> range = range(min, max);
+        double[] values = baseValues;
+        int[] rows = baseRows;
+        int from = min > max ? 0 : bound(values, min, true);
+        int to = min > max ? 0 : bound(values, max, false);
+        return new MergingIterator(values, rows, from, to,
+                (descending ? range.descendingSet() : range).iterator(), descending);
+    }
+
+    /**
+     * Counts the records within a range, giving up once the count reaches the cap. The planner only needs
+     * to know whether the range is smaller than the best index found so far, so it never walks more
+     * entries than the cheapest plan would. Loaded records are counted with two binary searches.
+     * @return Number of records within the range, or cap if there are at least that many
+     */
+    int count(double min, double max, int cap) {
+        if (min > max) {
+            return 0;
+        }
+        double[] values = baseValues;
+        int count = (int) Math.min(cap, (long) bound(values, max, false) - bound(values, min, true));
+        Iterator<Entry> it = range(min, max).iterator();
+        while (count < cap && it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Merges a range of the loaded rows with the rows added after them. On equal values the loaded row
+     * comes first going up and last going down, since it was inserted earlier.
+     */
+    private static final class MergingIterator implements PrimitiveIterator.OfInt {
+        private final double[] values;
+        private final int[] rows;
+        private final int from;
+        private final int to;
+        private final Iterator<Entry> added;
+        private final boolean descending;
+        private int next;
+        private Entry pending;
+
+        MergingIterator(double[] values, int[] rows, int from, int to, Iterator<Entry> added, boolean descending) {
+            this.values = values;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.added = added;
+            this.descending = descending;
+            next = descending ? to - 1 : from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (descending ? next >= from : next < to) || pending != null || added.hasNext();
+        }
+
+        @Override
+        public int nextInt() {
+            if (pending == null && added.hasNext()) {
+                pending = added.next();
+            }
+            boolean baseLeft = descending ? next >= from : next < to;
+            if (!baseLeft && pending == null) {
+                throw new NoSuchElementException();
+            }
+            boolean takeBase = baseLeft && (pending == null
+                    || (descending ? values[next] > pending.value : values[next] <= pending.value));
+            if (takeBase) {
+                int row = rows[next];
+                next += descending ? -1 : 1;
+                return row;
+            }
+            int row = pending.row;
+            pending = null;
+            return row;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package server;
+
+import interfaces.Car;
+import interfaces.InsertStatus;
+import interfaces.Receipt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inserts cars and receipts on several writer threads while reader threads look them up, then checks that the
+ * store holds exactly what was inserted, both right after the run and after reopening it from its files.
+ * <p>
+ * Every writer inserts its own keys, alternating single inserts with batches, and every receipt sells a car its
+ * writer inserted before, so the run passes with any receipt checks. While the writers run the readers check that
+ * every record a writer saw inserted can be found, that the lists of a brand only hold cars of that brand and
+ * that the number of cars never goes down.
+ * <p>
+ * Usage: {@code java -classpath "out" server.StressTest [--writers threads] [--readers threads]
+ * [--records records per writer] [--batch records]}
+ * <p>
+ * The store is written to a temporary directory that is deleted afterwards. The server settings
+ * (-Ddealer.fsync, -Ddealer.storage, -Ddealer.compactionThreshold, ...) apply as usual. Exits with status 1 if
+ * any check failed.
+ */
+public class StressTest {
+    private static final int NAMES = 50;
+    private static final int MAX_REPORTED_FAILURES = 10;
+
+    private final int writers;
+    private final int readers;
+    private final int records;
+    private final int batch;
+    // Number of cars and receipts each writer has seen inserted
+    private final AtomicIntegerArray carsWritten;
+    private final AtomicIntegerArray receiptsWritten;
+    private final AtomicLong failures = new AtomicLong();
+    private volatile boolean writing = true;
+
+    private StressTest(int writers, int readers, int records, int batch) {
+        this.writers = writers;
+        this.readers = readers;
+        this.records = records;
+        this.batch = batch;
+        carsWritten = new AtomicIntegerArray(writers);
+        receiptsWritten = new AtomicIntegerArray(writers);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int writers = 4;
+        int readers = 4;
+        int records = 10_000;
+        int batch = 100;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--writers":
+                    writers = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--readers":
+                    readers = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--records":
+                    records = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--batch":
+                    batch = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        System.out.println("Sync policy " + DealerConfig.syncPolicy() + ", storage "
+                + (DealerConfig.mappedStorage() ? "mapped" : "memory") + ", " + writers + " writers inserting "
+                + records + " cars and receipts each in batches of " + batch + ", " + readers + " readers");
+        long failures = new StressTest(writers, readers, records, Math.max(batch, 1)).run();
+        if (failures > 0) {
+            System.out.println("FAILED, " + failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * @return Number of failed checks
+     */
+    private long run() throws Exception {
+        Path directory = Files.createTempDirectory("dealer-stress");
+        try {
+            DataStore store = open(directory);
+            try {
+                long start = System.nanoTime();
+                Thread[] threads = new Thread[writers + readers];
+                for (int w = 0; w < writers; w++) {
+                    int writer = w;
+                    threads[w] = new Thread(() -> write(store, writer), "writer-" + w);
+                }
+                for (int r = 0; r < readers; r++) {
+                    int reader = r;
+                    threads[writers + r] = new Thread(() -> read(store, new SplittableRandom(42 + reader)), "reader-" + r);
+                }
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (int w = 0; w < writers; w++) {
+                    threads[w].join();
+                }
+                writing = false;
+                for (int r = 0; r < readers; r++) {
+                    threads[writers + r].join();
+                }
+                System.out.println(String.format("Inserted %,d cars and receipts in %d ms",
+                        (long) writers * records, (System.nanoTime() - start) / 1_000_000));
+                verify(store, "after the run");
+            } finally {
+                store.close();
+            }
+            DataStore reopened = open(directory);
+            try {
+                verify(reopened, "after reopening");
+            } finally {
+                reopened.close();
+            }
+            return failures.get();
+        } finally {
+            Benchmark.deleteRecursively(directory);
+        }
+    }
+
+    private static DataStore open(Path directory) throws IOException {
+        DataStore store = new DataStore(directory.resolve("cars.dat").toString(), directory.resolve("receipts.dat").toString(),
+                directory.resolve("inserts.log").toString(), 0, DealerConfig.syncPolicy(), DealerConfig.groupCommitMillis(),
+                DealerConfig.compactionThreshold(), DealerConfig.mappedStorage(), DealerConfig.materializedReports(),
+                DealerConfig.replicationBacklog(), DealerConfig.receiptChecks());
+        store.load();
+        return store;
+    }
+
+    private static Car car(int writer, int i) {
+        return new Car("W" + writer + "-C" + i, "Brand " + i % NAMES, "Model " + i % 7, i % 2 == 0 ? "Red" : "Blue",
+                2000 + i % 22, 10_000 + i % 40_000, 1000 + i % 800);
+    }
+
+    private static Receipt receipt(int writer, int i) {
+        return new Receipt("W" + writer + "-R" + i, "Vendor " + i % NAMES, "W" + writer + "-C" + i,
+                new Date(946_684_800_000L + i * 60_000L));
+    }
+
+    /**
+     * Inserts the records of a writer, every other chunk as one batch and the others one by one.
+     */
+    private void write(DataStore store, int writer) {
+        try {
+            for (int from = 0; from < records; from += batch) {
+                int to = Math.min(records, from + batch);
+                List<Car> cars = new ArrayList<>(to - from);
+                List<Receipt> receipts = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    cars.add(car(writer, i));
+                    receipts.add(receipt(writer, i));
+                }
+                List<InsertStatus> statuses = new ArrayList<>();
+                if (from / batch % 2 == 0) {
+                    statuses.addAll(store.insertCars(cars));
+                    carsWritten.set(writer, to);
+                    statuses.addAll(store.insertReceipts(receipts));
+                    receiptsWritten.set(writer, to);
+                } else {
+                    for (int i = 0; i < cars.size(); i++) {
+                        statuses.add(store.insertCar(cars.get(i)));
+                        carsWritten.set(writer, from + i + 1);
+                        statuses.add(store.insertReceipt(receipts.get(i)));
+                        receiptsWritten.set(writer, from + i + 1);
+                    }
+                }
+                for (InsertStatus status : statuses) {
+                    if (status != InsertStatus.CREATED) {
+                        fail("Writer " + writer + " got " + status + " inserting records " + from + " to " + to);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            fail("Writer " + writer + " failed: " + e);
+        }
+    }
+
+    private void read(DataStore store, SplittableRandom random) {
+        int lastCount = 0;
+        while (writing) {
+            int count = store.getCars().size();
+            if (count < lastCount) {
+                fail("Number of cars went down from " + lastCount + " to " + count);
+            }
+            lastCount = count;
+            int writer = random.nextInt(writers);
+            int written = carsWritten.get(writer);
+            if (written > 0) {
+                int i = random.nextInt(written);
+                Car car = store.findCar("W" + writer + "-C" + i);
+                if (car == null || !car.getBrand().equals("Brand " + i % NAMES)) {
+                    fail("Inserted car W" + writer + "-C" + i + " read as " + car);
+                }
+            }
+            written = receiptsWritten.get(writer);
+            if (written > 0) {
+                int i = random.nextInt(written);
+                Receipt receipt = store.findReceipt("W" + writer + "-R" + i);
+                if (receipt == null || !receipt.getCarSerialNumber().equals("W" + writer + "-C" + i)) {
+                    fail("Inserted receipt W" + writer + "-R" + i + " read as " + receipt);
+                }
+            }
+            String brand = "Brand " + random.nextInt(NAMES);
+            for (Car car : store.findCarsByBrand(brand)) {
+                if (car == null || !car.getBrand().equalsIgnoreCase(brand)) {
+                    fail("List of " + brand + " holds " + car);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the counts, the keys and the brand and vendor lists against what the writers inserted.
+     */
+    private void verify(DataStore store, String when) {
+        long expected = (long) writers * records;
+        check(store.getCars().size() == expected, "Expected " + expected + " cars " + when + ", found " + store.getCars().size());
+        check(store.getReceipts().size() == expected,
+                "Expected " + expected + " receipts " + when + ", found " + store.getReceipts().size());
+        long missing = 0;
+        for (int w = 0; w < writers; w++) {
+            for (int i = 0; i < records; i++) {
+                if (store.findCar("W" + w + "-C" + i) == null || store.findReceipt("W" + w + "-R" + i) == null) {
+                    missing++;
+                }
+            }
+        }
+        check(missing == 0, missing + " inserted keys not found " + when);
+        for (int n = 0; n < Math.min(NAMES, records); n++) {
+            // Records n, n + NAMES, ... of every writer
+            long perName = (long) writers * ((records - n + NAMES - 1) / NAMES);
+            int brand = store.findCarsByBrand("Brand " + n).size();
+            int vendor = store.findReceiptsByVendor("Vendor " + n).size();
+            check(brand == perName, "Expected " + perName + " cars of Brand " + n + " " + when + ", found " + brand);
+            check(vendor == perName, "Expected " + perName + " receipts of Vendor " + n + " " + when + ", found " + vendor);
+        }
+        System.out.println(String.format("Checked %,d cars and %,d receipts %s", store.getCars().size(),
+                store.getReceipts().size(), when));
+    }
+
+    private void check(boolean condition, String message) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    private void fail(String message) {
+        if (failures.incrementAndGet() <= MAX_REPORTED_FAILURES) {
+            System.out.println(message);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import interfaces.ChangeBatch;
+import interfaces.ChangeFilter;
+import interfaces.ChangeListener;
+import interfaces.Subscription;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+
+/**
+ * Pushes the inserts of a {@link ChangeFeed} that match a filter to a remote listener, on a thread of its own.
+ * The subscriber holds nothing but its position in the feed and the batch being delivered, so a slow listener
+ * only delays itself: once the feed has moved past its position it gets a reset batch and carries on from the
+ * end of the feed.
+ * <p>
+ * A failed delivery is retried a few times with a growing pause, then the subscription ends. It also ends
+ * when it is cancelled. It stays exported so that the client can still read its position, until the RMI
+ * runtime reports that no client holds a reference to it anymore.
+ */
+class Subscriber implements Subscription, Unreferenced {
+    private static final long POLL_WAIT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 500;
+    private static final int MAX_ATTEMPTS = 4;
+
+    private final ChangeFeed feed;
+    private final ChangeFilter filter;
+    private final ChangeListener listener;
+    private final int batchRecords;
+    private final Runnable onEnd;
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Sequence number of the last change delivered or skipped
+    private volatile long sequence;
+
+    /**
+     * @param afterSequence Sequence number of the last change the listener has, or one of the positions of
+     *                      {@link ChangeBatch}
+     * @param onEnd Called once when the subscription ends
+     */
+    Subscriber(ChangeFeed feed, ChangeFilter filter, long afterSequence, ChangeListener listener, int batchRecords,
+               Runnable onEnd) {
+        this.feed = feed;
+        this.filter = filter;
+        this.listener = listener;
+        this.batchRecords = batchRecords;
+        this.onEnd = onEnd;
+        sequence = feed.position(afterSequence);
+        thread = new Thread(this::run, "subscriber");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public boolean isActive() {
+        return running;
+    }
+
+    @Override
+    public void cancel() {
+        running = false;
+        thread.interrupt();
+    }
+
+    @Override
+    public void unreferenced() {
+        cancel();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException ignored) {
+            // Already unexported
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                ChangeBatch batch = feed.read(sequence, batchRecords, POLL_WAIT_MILLIS, filter);
+                if ((batch.isReset() || batch.size() > 0) && !deliver(batch)) {
+                    break;
+                }
+                sequence = batch.isReset() ? batch.getFeedSequence() : batch.getLastSequence();
+            }
+        } catch (InterruptedException e) {
+            // Cancelled while waiting for changes
+        } finally {
+            running = false;
+            onEnd.run();
+        }
+    }
+
+    /**
+     * @return True once the listener took the batch, false if it kept failing or the subscription was cancelled
+     */
+    private boolean deliver(ChangeBatch batch) throws InterruptedException {
+        for (int attempt = 1; running; attempt++) {
+            try {
+                listener.onChanges(batch);
+                Metrics.pushedRecords.add(batch.size());
+                return true;
+            } catch (RemoteException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    System.out.println("Ended a subscription at sequence " + sequence + ", the listener failed: " + e);
+                    return false;
+                }
+                Thread.sleep(RETRY_MILLIS * attempt);
+            }
+        }
+        return false;
+    }
+}